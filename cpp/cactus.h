@@ -1,9 +1,13 @@
 #ifndef CACTUS_H
 #define CACTUS_H
 
+#include <atomic>
 #include <sstream>
 #include <iostream>
 #include <chrono>
+#include <functional>
+#include <memory>
+#include <mutex>
 #include "chat.h"
 #include "common.h"
 #include "ggml.h"
@@ -16,6 +20,7 @@
 #endif
 
 struct mtmd_context;
+struct mtmd_input_chunk;
 
 namespace cactus {
 
@@ -25,6 +30,13 @@ std::string tokens_to_str(llama_context *ctx, const std::vector<llama_token>::co
 
 lm_ggml_type kv_cache_type_from_str(const std::string & s);
 
+// Returns the already loaded model for the same file and load params, or loads it.
+// The weights are freed when the last context holding a reference releases it.
+std::shared_ptr<llama_model> acquire_shared_model(common_params &params);
+
+// Sequences an embedding context can evaluate in one decode
+constexpr int EMBEDDING_BATCH_MAX_SEQ = 16;
+
 enum stop_type
 {
     STOP_FULL,
@@ -56,6 +68,26 @@ struct conversation_result {
     int tokens_generated;
 };
 
+// Layout of a media_buffer; the values are shared with the Android bindings
+enum media_format {
+    MEDIA_RGB = 0,     // 3 bytes per pixel
+    MEDIA_RGBA = 1,    // 4 bytes per pixel, alpha is ignored
+    MEDIA_NV21 = 2,    // Y plane followed by interleaved V/U at half resolution
+    MEDIA_PCM_F32 = 3, // mono float samples at the audio encoder's rate (16 kHz)
+    MEDIA_PCM_S16 = 4, // mono 16-bit samples at the audio encoder's rate (16 kHz)
+};
+
+// Raw image or audio handed over in memory instead of by path. The data is
+// borrowed and only read during the call it is passed to.
+struct media_buffer {
+    media_format format = MEDIA_RGB;
+    const uint8_t *data = nullptr;
+    size_t size = 0;
+    uint32_t width = 0;
+    uint32_t height = 0;
+    uint32_t row_stride = 0; // bytes per row (of the Y plane for NV21), 0 when rows are packed
+};
+
 struct cactus_tokenize_result {
     std::vector<llama_token> tokens;
     bool has_media = false;
@@ -64,9 +96,49 @@ struct cactus_tokenize_result {
     std::vector<size_t> chunk_pos_media;
 };
 
+struct cactus_parallel_request {
+    std::string prompt;
+    common_params_sampling sampling;
+    std::vector<std::string> antiprompt;
+    int n_predict = -1;
+    // Polled on the requesting thread until a slot is claimed, so a stop sent before then is not lost
+    std::function<bool()> is_cancelled;
+};
+
+struct cactus_parallel_result {
+    std::string text;
+    std::vector<completion_token_output> probs;
+    size_t n_prompt_tokens = 0;
+    size_t n_predicted = 0;
+    bool truncated = false;
+    bool stopped_eos = false;
+    bool stopped_word = false;
+    bool stopped_limit = false;
+    bool interrupted = false;
+    std::string stopping_word;
+    std::string error;
+    double t_prompt_ms = 0;
+    double t_predicted_ms = 0;
+};
+
+// Sequence 0 of the KV cache and the tokens it was built from
+struct cactus_state_snapshot {
+    std::vector<llama_token> tokens;
+    std::vector<uint8_t> state;
+    // False when positions do not map onto tokens (media prompts)
+    bool reusable = false;
+};
+
+struct cactus_parallel_engine;
+struct cactus_prefix_cache;
+struct cactus_chat_cache;
+struct cactus_grammar_cache;
+struct cactus_media_cache;
+struct cactus_session_writer;
+
 struct cactus_context {
-    bool is_predicting = false;
-    bool is_interrupted = false;
+    std::atomic<bool> is_predicting{false};
+    std::atomic<bool> is_interrupted{false};
     bool has_next_token = false;
     std::string generated_text;
     std::vector<completion_token_output> generated_token_probs;
@@ -77,7 +149,11 @@ struct cactus_context {
     size_t n_remain = 0;
 
     std::vector<llama_token> embd;
+    // Tokens resident in the KV cache for sequence 0, in position order
+    std::vector<llama_token> kv_tokens;
     common_params params;
+    // Declared before llama_init so the context is freed before the model it references
+    std::shared_ptr<llama_model> model_ref;
     common_init_result llama_init;
 
     llama_model *model = nullptr;
@@ -86,7 +162,11 @@ struct cactus_context {
 
     llama_context *ctx = nullptr;
     common_sampler *ctx_sampling = nullptr;
+    // Parsed grammars reused across requests, see createSampler
+    cactus_grammar_cache *grammar_cache = nullptr;
     common_chat_templates_ptr templates;
+    // Compiled custom templates, parsed tools and recent formatting results
+    cactus_chat_cache *chat_cache = nullptr;
 
     int n_ctx;
 
@@ -109,6 +189,7 @@ struct cactus_context {
     cactus_context_mtmd *mtmd_wrapper = nullptr;
     bool has_multimodal = false;
     std::vector<std::string> mtmd_bitmap_past_hashes;
+    cactus_media_cache *media_cache = nullptr;
 
     struct cactus_context_vocoder {
         common_init_result init_result;
@@ -120,6 +201,19 @@ struct cactus_context {
     bool has_vocoder = false;
     std::vector<llama_token> audio_tokens;
 
+    // Continuous batching over params.n_parallel sequences, one sampler per slot
+    cactus_parallel_engine *parallel_engine = nullptr;
+    // Held by the parallel decode thread around each batch and by work outside
+    // completions that touches ctx, so the two never use the context at once
+    std::mutex ctx_mutex;
+
+    // Snapshots of sequence 0 after prompt prefill, keyed by prompt prefix
+    cactus_prefix_cache *prefix_cache = nullptr;
+    bool prefix_snapshot_pending = false;
+
+    // Background appender for checkpointSession, bound to one file at a time
+    cactus_session_writer *session_writer = nullptr;
+
     // Conversation management state
     bool conversation_active = false;
     std::string last_chat_template = "";
@@ -128,12 +222,58 @@ struct cactus_context {
 
     void rewind();
 
+    bool snapshotState(cactus_state_snapshot &snapshot);
+
+    bool restoreState(const cactus_state_snapshot &snapshot);
+
+    // Queues the KV state added since the last checkpoint of `path` for a
+    // background append and returns the checkpointed token count, or -1
+    int checkpointSession(const std::string &path);
+
+    // Loads a file written by checkpointSession, returns the token count or -1
+    int restoreSession(const std::string &path);
+
+    // Loads a file written by llama_state_save_file, copying the state
+    // straight from a mapping of the file. Returns the token count or -1
+    int loadSession(const std::string &path);
+
+    // Writes the first `size` tokens (all when out of range) and the context
+    // state with llama_state_save_file. Returns the token count or -1
+    int saveSession(const std::string &path, int size);
+
+    // Waits until queued checkpoints are on disk
+    void flushSession();
+
+    cactus_session_writer *sessionWriterFor(const std::string &path);
+
+    void releaseSessionWriter();
+
     bool initSampling();
 
+    void initGrammarCache();
+
+    void releaseGrammarCache();
+
+    // common_sampler_init that clones previously parsed grammars
+    common_sampler *createSampler(const common_params_sampling &sampling);
+
     bool loadModel(common_params &params_);
 
+    // Pages in the mapped weights in layer order. Only reads the mapping, so it
+    // may run alongside other work. on_progress gets 0..0.9 and stops the
+    // warmup by returning false.
+    bool warmup(const std::function<bool(float)> &on_progress);
+
+    // Runs the dummy decode of a warmup unless the context has decoded since
+    // it was loaded. Must be serialized with other work on the context
+    bool warmupDecode();
+
     bool validateModelChatTemplate(bool use_jinja, const char *name) const;
 
+    void initChatCache();
+
+    void releaseChatCache();
+
     common_chat_params getFormattedChatWithJinja(
       const std::string &messages,
       const std::string &chat_template,
@@ -152,7 +292,11 @@ struct cactus_context {
 
     void loadPrompt();
 
-    void loadPrompt(const std::vector<std::string> &media_paths);
+    // Media buffers follow the media paths in the order their markers are matched
+    void loadPrompt(const std::vector<std::string> &media_paths, const std::vector<media_buffer> &media_buffers = {});
+
+    // Evaluates `prompt` into the KV cache without sampling, returns n_past or -1
+    int prefillPrompt(const std::string &prompt);
 
     void setGuideTokens(const std::vector<llama_token> &tokens);
    
@@ -167,31 +311,59 @@ struct cactus_context {
     completion_token_output doCompletion();
    
     std::vector<float> getEmbedding(common_params &embd_params);
+
+    // Embeds all texts, packing as many as fit into each decode. Returns a
+    // row-major texts.size() x n_embd matrix, or an empty vector on failure.
+    std::vector<float> getEmbeddingBatch(const std::vector<std::string> &texts, int embd_normalize);
     
     std::string bench(int pp, int tg, int pl, int nr);
    
     int applyLoraAdapters(std::vector<common_adapter_lora_info> lora);
    
-    void removeLoraAdapters();
+    bool removeLoraAdapters();
     
     std::vector<common_adapter_lora_info> getLoadedLoraAdapters();
 
-    cactus_tokenize_result tokenize(const std::string &text, const std::vector<std::string> &media_paths);
+    cactus_tokenize_result tokenize(const std::string &text, const std::vector<std::string> &media_paths, const std::vector<media_buffer> &media_buffers = {});
 
-    bool initMultimodal(const std::string &mmproj_path, bool use_gpu);
+    // media_cache_bytes bounds the cache of encoded image and audio chunks, 0 disables it
+    bool initMultimodal(const std::string &mmproj_path, bool use_gpu, size_t media_cache_bytes = 64u << 20);
     bool isMultimodalEnabled() const;
     bool isMultimodalSupportVision() const;
     bool isMultimodalSupportAudio() const;
     void releaseMultimodal();
-    void processMedia(const std::string &prompt, const std::vector<std::string> &media_paths);
+    int32_t evalMediaChunk(const mtmd_input_chunk *chunk, const std::string &key, llama_pos n_past_in, llama_pos *new_n_past);
+    void processMedia(const std::string &prompt, const std::vector<std::string> &media_paths, const std::vector<media_buffer> &media_buffers = {});
 
     bool initVocoder(const std::string &vocoder_model_path);
     bool isVocoderEnabled() const;
     tts_type getTTSType() const;
     std::string getFormattedAudioCompletion(const std::string &speaker_json_str, const std::string &text_to_speak);
     std::vector<llama_token> getAudioCompletionGuideTokens(const std::string &text_to_speak);
+    // Audio code tokens in generated output, in order; anything else (words, timing tokens) is dropped
+    std::vector<llama_token> filterAudioTokens(const std::vector<llama_token> &tokens) const;
     std::vector<float> decodeAudioTokens(const std::vector<llama_token> &tokens);
     void releaseVocoder();
+
+    bool initParallel(int n_parallel);
+    bool isParallelEnabled() const;
+    bool isParallelBusy();
+    // Owns ctx_mutex on return unless a parallel slot still holds a sequence
+    std::unique_lock<std::mutex> lockIdle();
+    cactus_parallel_result parallelCompletion(
+      const cactus_parallel_request &request,
+      const std::function<void(const completion_token_output &, const std::string &)> &on_token
+    );
+    void stopParallel();
+    void releaseParallel();
+
+    void enablePrefixCache(size_t budget_bytes);
+    void releasePrefixCache();
+    // Keeps the longest cached prefix of embd in the KV cache and sets n_past past it
+    void reuseKvPrefix();
+    void savePrefixSnapshot();
+    // Forgets reusable KV state, e.g. after the adapters change
+    void invalidateKvPrefix();
 };
 
 extern bool cactus_verbose;
@@ -13,6 +13,11 @@ std::string cactus_context::bench(int pp, int tg, int pl, int nr)
         LOG_ERROR("cannot benchmark while predicting", "");
         return std::string("[]");
     }
+    auto gate = lockIdle();
+    if (!gate.owns_lock()) {
+        LOG_ERROR("cannot benchmark while parallel completions are running");
+        return std::string("[]");
+    }
     if (!ctx || !model) {
         LOG_ERROR("Context or model not initialized for benchmarking.");
         return std::string("[]");
@@ -124,6 +129,7 @@ std::string cactus_context::bench(int pp, int tg, int pl, int nr)
 cleanup_and_exit:
     llama_batch_free(batch);
     llama_kv_self_clear(ctx);
+    kv_tokens.clear();
     is_predicting = false;
 
     int valid_repetitions = is_interrupted ? 0 : nr;
@@ -1,11 +1,135 @@
 #include "cactus.h"
 #include "common.h"
 #include "json.hpp"
+#include <chrono>
+#include <ctime>
+#include <map>
+#include <memory>
+#include <mutex>
 
 using json = nlohmann::ordered_json;
 
 namespace cactus {
 
+// Memoizes the parts of chat formatting that repeat across turns: compiled
+// custom templates, parsed tool lists, and whole results for requests seen
+// recently. Each map is bounded and evicts its least recently used entry.
+struct cactus_chat_cache {
+    template <typename T>
+    struct lru {
+        explicit lru(size_t capacity) : capacity(capacity) {}
+
+        const T *get(const std::string &key) {
+            auto it = entries.find(key);
+            if (it == entries.end()) {
+                return nullptr;
+            }
+            it->second.second = ++clock;
+            return &it->second.first;
+        }
+
+        void put(const std::string &key, T value) {
+            if (entries.size() >= capacity && entries.find(key) == entries.end()) {
+                auto oldest = entries.begin();
+                for (auto it = entries.begin(); it != entries.end(); ++it) {
+                    if (it->second.second < oldest->second.second) {
+                        oldest = it;
+                    }
+                }
+                entries.erase(oldest);
+            }
+            entries[key] = std::make_pair(std::move(value), ++clock);
+        }
+
+        size_t capacity;
+        uint64_t clock = 0;
+        std::map<std::string, std::pair<T, uint64_t>> entries;
+    };
+
+    std::mutex mutex;
+    lru<std::shared_ptr<common_chat_templates>> templates{4};
+    lru<std::vector<common_chat_tool>> tools{8};
+    lru<common_chat_params> results{8};
+
+    std::shared_ptr<common_chat_templates> compile(const llama_model *model, const std::string &source, bool use_jinja) {
+        const std::string key = std::string(use_jinja ? "j" : "l") + source;
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            if (auto hit = templates.get(key)) {
+                return *hit;
+            }
+        }
+        if (!common_chat_verify_template(source.c_str(), use_jinja)) {
+            LOG_WARNING("Provided custom chat template is invalid.");
+        }
+        std::shared_ptr<common_chat_templates> compiled(
+            common_chat_templates_init(model, source).release(), common_chat_templates_deleter());
+        std::lock_guard<std::mutex> lock(mutex);
+        templates.put(key, compiled);
+        return compiled;
+    }
+
+    std::vector<common_chat_tool> parseTools(const std::string &source) {
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            if (auto hit = tools.get(source)) {
+                return *hit;
+            }
+        }
+        auto parsed = common_chat_tools_parse_oaicompat(json::parse(source));
+        std::lock_guard<std::mutex> lock(mutex);
+        tools.put(source, parsed);
+        return parsed;
+    }
+
+    bool findResult(const std::string &key, common_chat_params &out) {
+        std::lock_guard<std::mutex> lock(mutex);
+        if (auto hit = results.get(key)) {
+            out = *hit;
+            return true;
+        }
+        return false;
+    }
+
+    void putResult(const std::string &key, const common_chat_params &result) {
+        std::lock_guard<std::mutex> lock(mutex);
+        results.put(key, result);
+    }
+};
+
+// Everything a rendered prompt depends on. Templates may print today's date
+// through strftime_now, which uses local time, so results are only reused
+// within the same local calendar day.
+static std::string chat_request_key(std::initializer_list<std::string> parts) {
+    const std::time_t now = std::chrono::system_clock::to_time_t(std::chrono::system_clock::now());
+    std::tm local = {};
+#ifdef _WIN32
+    localtime_s(&local, &now);
+#else
+    localtime_r(&now, &local);
+#endif
+    char day[16];
+    std::strftime(day, sizeof(day), "%Y-%m-%d", &local);
+    std::string key = day;
+    for (const auto &part : parts) {
+        key += '\0';
+        key += std::to_string(part.size());
+        key += ':';
+        key += part;
+    }
+    return key;
+}
+
+void cactus_context::initChatCache() {
+    releaseChatCache();
+    chat_cache = new cactus_chat_cache();
+}
+
+void cactus_context::releaseChatCache() {
+    delete chat_cache;
+    chat_cache = nullptr;
+}
+
 common_chat_params cactus_context::getFormattedChatWithJinja(
   const std::string &messages,
   const std::string &chat_template,
@@ -14,17 +138,26 @@ common_chat_params cactus_context::getFormattedChatWithJinja(
   const bool &parallel_tool_calls,
   const std::string &tool_choice
 ) const {
-    if (!model || !templates) {
+    if (!model || !templates || !chat_cache) {
          LOG_ERROR("Model or templates not loaded, cannot format chat.");
          return {}; 
     }
+    const std::string key = chat_request_key({
+        "jinja", messages, chat_template, json_schema, tools, tool_choice,
+        parallel_tool_calls ? "1" : "0", std::to_string(params.reasoning_format)
+    });
+    common_chat_params result;
+    if (chat_cache->findResult(key, result)) {
+        return result;
+    }
+
     common_chat_templates_inputs inputs;
     inputs.use_jinja = true;
     try {
         inputs.messages = common_chat_msgs_parse_oaicompat(json::parse(messages));
         auto useTools = !tools.empty();
         if (useTools) {
-            inputs.tools = common_chat_tools_parse_oaicompat(json::parse(tools));
+            inputs.tools = chat_cache->parseTools(tools);
         }
         if (!tool_choice.empty()) {
              inputs.tool_choice = common_chat_tool_choice_parse_oaicompat(tool_choice);
@@ -41,28 +174,33 @@ common_chat_params cactus_context::getFormattedChatWithJinja(
 
     if (!chat_template.empty()) {
         try {
-            if (!common_chat_verify_template(chat_template.c_str(), true)) {
-                 LOG_WARNING("Provided custom Jinja template is invalid.");
-            }
-            auto tmps = common_chat_templates_init(model, chat_template);
-            return common_chat_templates_apply(tmps.get(), inputs);
+            auto tmps = chat_cache->compile(model, chat_template, true);
+            result = common_chat_templates_apply(tmps.get(), inputs);
         } catch (const std::exception& e) {
              LOG_ERROR("Error applying custom chat template: %s", e.what());
-              return common_chat_templates_apply(templates.get(), inputs);
+              result = common_chat_templates_apply(templates.get(), inputs);
         }
     } else {
-        return common_chat_templates_apply(templates.get(), inputs);
+        result = common_chat_templates_apply(templates.get(), inputs);
     }
+    chat_cache->putResult(key, result);
+    return result;
 }
 
 std::string cactus_context::getFormattedChat(
   const std::string &messages,
   const std::string &chat_template
 ) const {
-    if (!model || !templates) {
+    if (!model || !templates || !chat_cache) {
          LOG_ERROR("Model or templates not loaded, cannot format chat.");
          return ""; 
     }
+    const std::string key = chat_request_key({"legacy", messages, chat_template});
+    common_chat_params result;
+    if (chat_cache->findResult(key, result)) {
+        return result.prompt;
+    }
+
     common_chat_templates_inputs inputs;
     inputs.use_jinja = false;
      try {
@@ -74,18 +212,17 @@ std::string cactus_context::getFormattedChat(
 
     if (!chat_template.empty()) {
          try {
-             if (!common_chat_verify_template(chat_template.c_str(), false)) {
-                 LOG_WARNING("Provided custom standard template is invalid.");
-             }
-             auto tmps = common_chat_templates_init(model, chat_template);
-             return common_chat_templates_apply(tmps.get(), inputs).prompt;
+             auto tmps = chat_cache->compile(model, chat_template, false);
+             result = common_chat_templates_apply(tmps.get(), inputs);
          } catch (const std::exception& e) {
              LOG_ERROR("Error applying custom chat template: %s", e.what());
-             return common_chat_templates_apply(templates.get(), inputs).prompt;
+             result = common_chat_templates_apply(templates.get(), inputs);
          }
     } else {
-        return common_chat_templates_apply(templates.get(), inputs).prompt;
+        result = common_chat_templates_apply(templates.get(), inputs);
     }
+    chat_cache->putResult(key, result);
+    return result.prompt;
 }
 
 } // namespace cactus 
\ No newline at end of file
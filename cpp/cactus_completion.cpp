@@ -60,6 +60,10 @@ void cactus_context::loadPrompt() {
         LM_GGML_ASSERT(embd.size() < (size_t) n_ctx || n_ctx == 0);
     }
 
+    if (!is_continuation) {
+        reuseKvPrefix();
+    }
+
     for (auto & token : new_tokens) {
         common_sampler_accept(ctx_sampling, token, false);
     }
@@ -73,8 +77,8 @@ void cactus_context::loadPrompt() {
     has_next_token = true;
 }
 
-void cactus_context::loadPrompt(const std::vector<std::string> &media_paths) {
-    bool has_media = !media_paths.empty();
+void cactus_context::loadPrompt(const std::vector<std::string> &media_paths, const std::vector<media_buffer> &media_buffers) {
+    bool has_media = !media_paths.empty() || !media_buffers.empty();
 
     if (!has_media) {
         loadPrompt();
@@ -85,7 +89,7 @@ void cactus_context::loadPrompt(const std::vector<std::string> &media_paths) {
         throw std::runtime_error("Multimodal is not enabled but media paths are provided");
     }
 
-    processMedia(params.prompt, media_paths);
+    processMedia(params.prompt, media_paths, media_buffers);
     num_prompt_tokens = embd.size();
 
     if (params.n_keep < 0) {
@@ -103,9 +107,31 @@ void cactus_context::loadPrompt(const std::vector<std::string> &media_paths) {
              n_past, embd.size(), num_prompt_tokens, has_media ? 1 : 0);
 }
 
+int cactus_context::prefillPrompt(const std::string &prompt) {
+    if (is_predicting || isParallelEnabled()) {
+        LOG_ERROR("Cannot prefill a prompt while predicting or with parallel sequences");
+        return -1;
+    }
+    rewind();
+    params.prompt = prompt;
+    const int n_predict = params.n_predict;
+    params.n_predict = 0;
+    if (!initSampling()) {
+        params.n_predict = n_predict;
+        return -1;
+    }
+    beginCompletion();
+    loadPrompt();
+    nextToken();
+    endCompletion();
+    params.n_predict = n_predict;
+    return (size_t) n_past == embd.size() ? n_past : -1;
+}
+
 void cactus_context::beginCompletion() {
     n_remain = params.n_predict;
     llama_perf_context_reset(ctx);
+    is_interrupted = false;
     is_predicting = true;
     num_tokens_predicted = 0;
     num_prompt_tokens = 0;
@@ -136,6 +162,9 @@ completion_token_output cactus_context::nextToken()
         }
         embd.resize(embd.size() - n_discard);
 
+        if (kv_tokens.size() == n_past) {
+            kv_tokens.assign(embd.begin(), embd.begin() + (n_past - n_discard));
+        }
         n_past -= n_discard;
         truncated = true;
 
@@ -157,7 +186,15 @@ completion_token_output cactus_context::nextToken()
             break;
         }
 
-        if (llama_decode(ctx, llama_batch_get_one(&embd[n_past], n_eval)) != 0)
+        const int ret = llama_decode(ctx, llama_batch_get_one(&embd[n_past], n_eval));
+        if (ret == 2 && is_interrupted)
+        {
+            LOG_INFO("Decoding Interrupted");
+            embd.resize(n_past);
+            has_next_token = false;
+            return result;
+        }
+        if (ret != 0)
         {
             LOG_ERROR("failed to eval, n_eval: %d, n_past: %d, n_threads: %d, embd_size: %zu",
                 n_eval,
@@ -168,6 +205,9 @@ completion_token_output cactus_context::nextToken()
             has_next_token = false;
             return result;
         }
+        if (kv_tokens.size() == n_past) {
+            kv_tokens.insert(kv_tokens.end(), embd.begin() + n_past, embd.begin() + n_past + n_eval);
+        }
         n_past += n_eval;
 
         if(is_interrupted) {
@@ -178,6 +218,10 @@ completion_token_output cactus_context::nextToken()
         }
     }
 
+    if (prefix_snapshot_pending && n_past >= num_prompt_tokens) {
+        savePrefixSnapshot();
+    }
+
     if (!model) {
         LOG_ERROR("Model is null in nextToken");
         has_next_token = false;
@@ -1,16 +1,100 @@
 #include "cactus.h"
 #include "common.h"
 #include "json.hpp"
+#include <map>
+#include <mutex>
 
 using json = nlohmann::ordered_json;
 
 namespace cactus {
 
+// Parsed grammar samplers keyed by grammar source and triggers. Resetting a
+// grammar sampler parses the GBNF again, so each request gets a clone of a
+// pristine parsed copy instead.
+struct cactus_grammar_cache {
+    static const size_t capacity = 8;
+
+    struct entry {
+        llama_sampler *grammar;
+        uint64_t last_used;
+    };
+
+    ~cactus_grammar_cache() {
+        for (auto &e : entries) {
+            llama_sampler_free(e.second.grammar);
+        }
+    }
+
+    static std::string key(const common_params_sampling &sampling) {
+        std::string key = sampling.grammar_lazy ? "lazy" : "eager";
+        for (const auto &trigger : sampling.grammar_triggers) {
+            key += '\0' + std::to_string(trigger.type) + ':' + std::to_string(trigger.token) + ':' + trigger.value;
+        }
+        return key + '\0' + sampling.grammar;
+    }
+
+    llama_sampler *get(const llama_model *model, const common_params_sampling &sampling) {
+        const std::string k = key(sampling);
+        std::lock_guard<std::mutex> lock(mutex);
+        auto it = entries.find(k);
+        if (it == entries.end()) {
+            llama_sampler *grammar = common_sampler_init_grammar(model, sampling);
+            if (grammar == nullptr) {
+                return nullptr;
+            }
+            if (entries.size() >= capacity) {
+                auto oldest = entries.begin();
+                for (auto e = entries.begin(); e != entries.end(); ++e) {
+                    if (e->second.last_used < oldest->second.last_used) {
+                        oldest = e;
+                    }
+                }
+                llama_sampler_free(oldest->second.grammar);
+                entries.erase(oldest);
+            }
+            it = entries.emplace(k, entry{grammar, 0}).first;
+        }
+        it->second.last_used = ++clock;
+        return llama_sampler_clone(it->second.grammar);
+    }
+
+    std::mutex mutex;
+    std::map<std::string, entry> entries;
+    uint64_t clock = 0;
+};
+
+void cactus_context::initGrammarCache() {
+    releaseGrammarCache();
+    grammar_cache = new cactus_grammar_cache();
+}
+
+void cactus_context::releaseGrammarCache() {
+    delete grammar_cache;
+    grammar_cache = nullptr;
+}
+
+common_sampler *cactus_context::createSampler(const common_params_sampling &sampling) {
+    // Plain sampling has no grammar to parse, and llguidance grammars are not clonable
+    if (grammar_cache == nullptr || sampling.grammar.empty() || sampling.grammar.compare(0, 11, "%llguidance") == 0) {
+        return common_sampler_init(model, sampling);
+    }
+    llama_sampler *grammar = grammar_cache->get(model, sampling);
+    if (grammar == nullptr) {
+        return nullptr;
+    }
+    return common_sampler_init(model, sampling, grammar);
+}
+
 cactus_context::~cactus_context() {
+    releaseParallel();
+    releasePrefixCache();
+    releaseSessionWriter();
+    releaseChatCache();
     if (ctx_sampling != nullptr) {
         common_sampler_free(ctx_sampling);
         ctx_sampling = nullptr;
     }
+    releaseGrammarCache();
     releaseMultimodal();
     releaseVocoder();
 }
@@ -43,13 +127,53 @@ void cactus_context::rewind() {
     }
 }
 
+bool cactus_context::snapshotState(cactus_state_snapshot &snapshot) {
+    if (is_predicting) {
+        LOG_ERROR("Cannot snapshot state while predicting");
+        return false;
+    }
+    const size_t n_tokens = std::min(n_past, embd.size());
+    const size_t size = llama_state_seq_get_size(ctx, 0);
+    snapshot.state.resize(size);
+    if (llama_state_seq_get_data(ctx, snapshot.state.data(), size, 0) != size) {
+        LOG_ERROR("Failed to copy sequence state");
+        snapshot.state.clear();
+        return false;
+    }
+    snapshot.tokens.assign(embd.begin(), embd.begin() + n_tokens);
+    snapshot.reusable = kv_tokens.size() == n_tokens;
+    return true;
+}
+
+bool cactus_context::restoreState(const cactus_state_snapshot &snapshot) {
+    if (is_predicting) {
+        LOG_ERROR("Cannot restore state while predicting");
+        return false;
+    }
+    llama_kv_self_seq_rm(ctx, 0, -1, -1);
+    kv_tokens.clear();
+    prefix_snapshot_pending = false;
+    if (llama_state_seq_set_data(ctx, snapshot.state.data(), snapshot.state.size(), 0) == 0) {
+        LOG_ERROR("Failed to restore sequence state");
+        embd.clear();
+        n_past = 0;
+        return false;
+    }
+    embd = snapshot.tokens;
+    n_past = embd.size();
+    if (snapshot.reusable) {
+        kv_tokens = embd;
+    }
+    return true;
+}
+
 bool cactus_context::initSampling() {
     if (ctx_sampling != nullptr) {
         common_sampler_free(ctx_sampling);
         ctx_sampling = nullptr;
     }
     if (model) {
-        ctx_sampling = common_sampler_init(model, params.sampling);
+        ctx_sampling = createSampler(params.sampling);
         if (ctx_sampling) {
              params.sampling.n_prev = n_ctx;
         }
@@ -1,6 +1,7 @@
 #include "cactus.h"
 #include "common.h"
 #include "llama.h"
+#include <algorithm>
 #include <vector>
 #include <cstdio>
 
@@ -41,4 +42,98 @@ std::vector<float> cactus_context::getEmbedding(common_params &embd_params)
     return out;
 }
 
+std::vector<float> cactus_context::getEmbeddingBatch(const std::vector<std::string> &texts, int embd_normalize)
+{
+    if (!ctx || !model) {
+        LOG_ERROR("Context or model not initialized for embedding generation.");
+        return {};
+    }
+    if (!params.embedding) {
+        LOG_WARNING("Embedding mode not enabled for this context.");
+        return {};
+    }
+    auto gate = lockIdle();
+    if (!gate.owns_lock()) {
+        LOG_ERROR("Cannot compute embeddings while parallel completions are running.");
+        return {};
+    }
+
+    kv_tokens.clear();
+
+    const int n_embd = llama_model_n_embd(model);
+    const size_t n_seq_max = llama_n_seq_max(ctx);
+    // Non-causal models need each sequence whole inside one ubatch
+    const size_t n_tokens_max = std::min(llama_n_batch(ctx), llama_n_ubatch(ctx));
+    const enum llama_pooling_type pooling_type = llama_pooling_type(ctx);
+
+    std::vector<std::vector<llama_token>> inputs;
+    inputs.reserve(texts.size());
+    for (const auto &text : texts) {
+        std::vector<llama_token> tokens = common_tokenize(ctx, text, true, true);
+        if (tokens.size() > n_tokens_max) {
+            LOG_WARNING("Truncating embedding input from %zu to %zu tokens", tokens.size(), n_tokens_max);
+            tokens.resize(n_tokens_max);
+        }
+        inputs.push_back(std::move(tokens));
+    }
+
+    // Batch decoding overwrites the KV cache, so drop any completion state first
+    rewind();
+
+    std::vector<float> out(texts.size() * n_embd, 0.0f);
+    llama_batch batch = llama_batch_init(n_tokens_max, 0, n_seq_max);
+    std::vector<size_t> rows;
+    std::vector<int32_t> last_index;
+
+    size_t next = 0;
+    while (next < inputs.size()) {
+        common_batch_clear(batch);
+        rows.clear();
+        last_index.clear();
+        while (next < inputs.size() && rows.size() < n_seq_max &&
+               batch.n_tokens + inputs[next].size() <= n_tokens_max) {
+            const auto &tokens = inputs[next];
+            if (tokens.empty()) {
+                next++;
+                continue;
+            }
+            const llama_seq_id seq_id = rows.size();
+            for (size_t i = 0; i < tokens.size(); i++) {
+                const bool output = pooling_type != LLAMA_POOLING_TYPE_NONE || i + 1 == tokens.size();
+                common_batch_add(batch, tokens[i], i, { seq_id }, output);
+            }
+            rows.push_back(next++);
+            last_index.push_back(batch.n_tokens - 1);
+        }
+        if (rows.empty()) {
+            continue;
+        }
+
+        llama_kv_self_clear(ctx);
+        if (llama_decode(ctx, batch) != 0) {
+            LOG_ERROR("Failed to decode embedding batch");
+            llama_batch_free(batch);
+            llama_kv_self_clear(ctx);
+            return {};
+        }
+
+        for (size_t s = 0; s < rows.size(); s++) {
+            const float *data = pooling_type == LLAMA_POOLING_TYPE_NONE
+                ? llama_get_embeddings_ith(ctx, last_index[s])
+                : llama_get_embeddings_seq(ctx, s);
+            if (!data) {
+                LOG_ERROR("Failed to retrieve embeddings for sequence %zu", s);
+                llama_batch_free(batch);
+                llama_kv_self_clear(ctx);
+                return {};
+            }
+            common_embd_normalize(data, out.data() + rows[s] * n_embd, n_embd, embd_normalize);
+        }
+    }
+
+    llama_batch_free(batch);
+    llama_kv_self_clear(ctx);
+    return out;
+}
+
 } // namespace cactus
\ No newline at end of file
@@ -1,23 +1,263 @@
 #include "cactus.h"
 #include "common.h"
+#include "llama-model.h"
+#include <algorithm>
+#include <climits>
+#include <cstdlib>
+#include <mutex>
 #include <stdexcept>
+#include <sys/stat.h>
+#include <unordered_map>
+#ifndef _WIN32
+#include <sys/mman.h>
+#include <unistd.h>
+#endif
 
 namespace cactus {
 
+namespace {
+
+struct shared_model_entry {
+    std::mutex load_mutex;
+    std::weak_ptr<llama_model> model;
+};
+
+std::mutex shared_models_mutex;
+std::unordered_map<std::string, std::shared_ptr<shared_model_entry>> shared_models;
+
+// Everything that changes how the weights are loaded; context params are per-context
+std::string shared_model_key(const common_params &params) {
+    const std::string &path = params.model.path;
+    std::string key = path;
+    struct stat st;
+    // "<path>@<offset>+<size>" regions usually name a descriptor under /proc/self/fd,
+    // whose number is reused once closed, so they are keyed on the file behind it
+    const size_t at = path.rfind('@');
+    if (at != std::string::npos && path.find('+', at) != std::string::npos &&
+        stat(path.substr(0, at).c_str(), &st) == 0) {
+        key = "region|" + std::to_string((unsigned long long) st.st_dev) + ":" + std::to_string((unsigned long long) st.st_ino) +
+              "|" + std::to_string((long long) st.st_size) + "|" + std::to_string((long long) st.st_mtime) +
+              "|" + path.substr(at);
+    } else if (stat(path.c_str(), &st) == 0) {
+        key += "|" + std::to_string((long long) st.st_size) + "|" + std::to_string((long long) st.st_mtime);
+    }
+    key += "|gpu=" + std::to_string(params.n_gpu_layers);
+    key += "|main_gpu=" + std::to_string(params.main_gpu);
+    key += "|split=" + std::to_string((int) params.split_mode);
+    key += "|mmap=" + std::to_string(params.use_mmap);
+    key += "|mlock=" + std::to_string(params.use_mlock);
+    key += "|vocab_only=" + std::to_string(params.vocab_only);
+    key += "|check=" + std::to_string(params.check_tensors);
+    return key;
+}
+
+void warmup_context(common_params &params, llama_model *model, llama_context *lctx) {
+    const llama_vocab *vocab = llama_model_get_vocab(model);
+
+    llama_set_warmup(lctx, true);
+
+    std::vector<llama_token> tmp;
+    llama_token bos = llama_vocab_bos(vocab);
+    llama_token eos = llama_vocab_eos(vocab);
+    if (bos != LLAMA_TOKEN_NULL) {
+        tmp.push_back(bos);
+    }
+    if (eos != LLAMA_TOKEN_NULL) {
+        tmp.push_back(eos);
+    }
+    if (tmp.empty()) {
+        tmp.push_back(0);
+    }
+
+    if (llama_model_has_encoder(model)) {
+        llama_encode(lctx, llama_batch_get_one(tmp.data(), tmp.size()));
+        llama_token decoder_start_token_id = llama_model_decoder_start_token(model);
+        if (decoder_start_token_id == LLAMA_TOKEN_NULL) {
+            decoder_start_token_id = bos;
+        }
+        tmp.clear();
+        tmp.push_back(decoder_start_token_id);
+    }
+    if (llama_model_has_decoder(model)) {
+        llama_decode(lctx, llama_batch_get_one(tmp.data(), std::min(tmp.size(), (size_t) params.n_batch)));
+    }
+    llama_kv_self_clear(lctx);
+    llama_synchronize(lctx);
+    llama_perf_context_reset(lctx);
+    llama_set_warmup(lctx, false);
+}
+
+// Input embeddings first, then the repeating blocks in order, then the rest
+int tensor_layer_order(const std::string &name) {
+    if (name.rfind("blk.", 0) == 0) {
+        return atoi(name.c_str() + 4);
+    }
+    return name.rfind("token_", 0) == 0 ? -1 : INT_MAX;
+}
+
+} // namespace
+
+std::shared_ptr<llama_model> acquire_shared_model(common_params &params) {
+    const std::string key = shared_model_key(params);
+
+    std::shared_ptr<shared_model_entry> entry;
+    {
+        std::lock_guard<std::mutex> lock(shared_models_mutex);
+        auto &slot = shared_models[key];
+        if (!slot) {
+            slot = std::make_shared<shared_model_entry>();
+        }
+        entry = slot;
+    }
+
+    // Concurrent opens of the same file wait for the first load instead of mapping it twice
+    std::lock_guard<std::mutex> load_lock(entry->load_mutex);
+    if (auto model = entry->model.lock()) {
+        LOG_INFO("Reusing loaded model: %s", params.model.path.c_str());
+        return model;
+    }
+
+    llama_model *raw = llama_model_load_from_file(params.model.path.c_str(), common_model_params_to_llama(params));
+    if (raw == nullptr) {
+        return nullptr;
+    }
+    std::shared_ptr<llama_model> model(raw, [key](llama_model *m) {
+        llama_model_free(m);
+        std::lock_guard<std::mutex> lock(shared_models_mutex);
+        auto it = shared_models.find(key);
+        if (it != shared_models.end() && it->second->model.expired()) {
+            shared_models.erase(it);
+        }
+    });
+    entry->model = model;
+    return model;
+}
+
 bool cactus_context::loadModel(common_params &params_)
 {
     params = params_;
-    llama_init = common_init_from_params(params);
-    model = llama_init.model.get();
-    ctx = llama_init.context.get();
+    model_ref = acquire_shared_model(params);
+    model = model_ref.get();
     if (model == nullptr)
     {
         LOG_ERROR("unable to load model: %s", params.model.path.c_str());
         return false;
     }
+
+    llama_context_params cparams = common_context_params_to_llama(params);
+    if (params.embedding) {
+        // Leave room for several sequences per decode in getEmbeddingBatch
+        cparams.n_seq_max = std::max(cparams.n_seq_max, (uint32_t) EMBEDDING_BATCH_MAX_SEQ);
+    }
+    llama_context *lctx = llama_init_from_model(model, cparams);
+    if (lctx == nullptr)
+    {
+        LOG_ERROR("unable to create context for model: %s", params.model.path.c_str());
+        model_ref.reset();
+        model = nullptr;
+        return false;
+    }
+    llama_init.context.reset(lctx);
+    ctx = lctx;
+
+    if (params.ctx_shift && !llama_kv_self_can_shift(ctx)) {
+        LOG_WARNING("KV cache shifting is not supported for this context, disabling KV cache shifting");
+        params.ctx_shift = false;
+    }
+    if (params.sampling.penalty_last_n == -1) {
+        params.sampling.penalty_last_n = llama_n_ctx(ctx);
+    }
+    if (params.sampling.dry_penalty_last_n == -1) {
+        params.sampling.dry_penalty_last_n = llama_n_ctx(ctx);
+    }
+    if (params.warmup) {
+        warmup_context(params, model, ctx);
+    }
+
     templates = common_chat_templates_init(model, params.chat_template);
+    initChatCache();
+    initGrammarCache();
     n_ctx = llama_n_ctx(ctx);
 
+    // Abort the running graph as soon as a stop is requested, so a stop lands
+    // within one ubatch instead of after a whole prompt batch
+    llama_set_abort_callback(ctx, [](void * data) {
+        auto * self = static_cast<cactus_context *>(data);
+        return self->is_predicting.load() && self->is_interrupted.load();
+    }, this);
+
+    if (params.n_parallel > 1 && !params.embedding) {
+        initParallel(params.n_parallel);
+    }
+
+    return true;
+}
+
+bool cactus_context::warmup(const std::function<bool(float)> &on_progress) {
+    // Decoding the dummy batch in warmupDecode is the last tenth of the reported progress
+    const float page_in_share = 0.9f;
+
+    std::vector<lm_ggml_tensor *> tensors;
+    size_t total = 0;
+    if (params.use_mmap) {
+        for (const auto &it : model->tensors_by_name) {
+            lm_ggml_tensor *t = it.second;
+            if (t->data != nullptr && t->buffer != nullptr && lm_ggml_backend_buffer_is_host(t->buffer)) {
+                tensors.push_back(t);
+                total += lm_ggml_nbytes(t);
+            }
+        }
+        std::stable_sort(tensors.begin(), tensors.end(), [](const lm_ggml_tensor *a, const lm_ggml_tensor *b) {
+            return tensor_layer_order(a->name) < tensor_layer_order(b->name);
+        });
+    }
+
+#ifndef _WIN32
+    const size_t page = (size_t) sysconf(_SC_PAGESIZE);
+#else
+    const size_t page = 4096;
+#endif
+    size_t done = 0;
+    int last_percent = -1;
+    for (lm_ggml_tensor *t : tensors) {
+        const uint8_t *data = (const uint8_t *) t->data;
+        const size_t size = lm_ggml_nbytes(t);
+#ifndef _WIN32
+        const uintptr_t begin = (uintptr_t) data & ~(uintptr_t) (page - 1);
+        madvise((void *) begin, (uintptr_t) data + size - begin, MADV_WILLNEED);
+#endif
+        // Reading one byte per page faults it in now rather than during the first prompt
+        volatile uint8_t sink = 0;
+        for (size_t off = 0; off < size; off += page) {
+            sink ^= data[off];
+        }
+        (void) sink;
+        done += size;
+        const int percent = (int) (100 * page_in_share * done / total);
+        if (percent != last_percent) {
+            last_percent = percent;
+            if (!on_progress(percent / 100.0f)) {
+                return false;
+            }
+        }
+    }
+
+    return on_progress(page_in_share);
+}
+
+bool cactus_context::warmupDecode() {
+    // Work that ran during the page-in has already warmed the graph, and the KV
+    // clear would throw away a prompt it left for the next completion to reuse
+    if (is_predicting || n_past > 0 || !kv_tokens.empty()) {
+        return false;
+    }
+    // Keeps parallel completions out; once a slot holds a sequence the clear is skipped too
+    auto gate = lockIdle();
+    if (!gate.owns_lock()) {
+        return false;
+    }
+    warmup_context(params, model, ctx);
+    kv_tokens.clear();
     return true;
 }
 
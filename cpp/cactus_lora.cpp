@@ -11,6 +11,11 @@ int cactus_context::applyLoraAdapters(std::vector<common_adapter_lora_info> lora
         LOG_ERROR("Context or model not initialized for applying LoRA adapters.");
         return -1;
     }
+    auto gate = lockIdle();
+    if (!gate.owns_lock()) {
+        LOG_ERROR("Cannot apply LoRA adapters while parallel completions are running.");
+        return -1;
+    }
 
     for (auto &la : lora_adapters) {
         if (la.path.empty()) {
@@ -28,18 +33,26 @@ int cactus_context::applyLoraAdapters(std::vector<common_adapter_lora_info> lora
     this->lora = lora_adapters; 
 
     common_set_adapter_lora(ctx, this->lora);
+    invalidateKvPrefix();
     LOG_INFO("Applied %zu LoRA adapters.", this->lora.size());
     return 0;
 }
 
-void cactus_context::removeLoraAdapters() {
+bool cactus_context::removeLoraAdapters() {
     if (!ctx) {
         LOG_ERROR("Context not initialized, cannot remove LoRA adapters.");
-        return;
+        return false;
+    }
+    auto gate = lockIdle();
+    if (!gate.owns_lock()) {
+        LOG_ERROR("Cannot remove LoRA adapters while parallel completions are running.");
+        return false;
     }
     this->lora.clear();
     common_set_adapter_lora(ctx, this->lora);
+    invalidateKvPrefix();
     LOG_INFO("Removed all LoRA adapters.");
+    return true;
 }
 
 std::vector<common_adapter_lora_info> cactus_context::getLoadedLoraAdapters() {
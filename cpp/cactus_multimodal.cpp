@@ -4,7 +4,10 @@
 #include "tools/mtmd/clip.h"
 #include <vector>
 #include <string>
+#include <algorithm>
 #include <fstream>
+#include <list>
+#include <map>
 #include <stdexcept>
 
 namespace cactus {
@@ -81,6 +84,55 @@ static std::vector<uint8_t> base64_decode(const std::string &encoded_string) {
     return decoded;
 }
 
+// Encoder output of image and audio chunks, keyed by bitmap hash and the
+// chunk's place among the chunks of that bitmap. Least recently used
+// entries are dropped once the total size exceeds the budget.
+struct cactus_media_cache {
+    explicit cactus_media_cache(size_t budget_bytes) : budget(budget_bytes) {}
+
+    const float *get(const std::string &key, size_t n_floats) {
+        auto it = index.find(key);
+        if (it == index.end() || it->second->embd.size() != n_floats) {
+            return nullptr;
+        }
+        entries.splice(entries.begin(), entries, it->second);
+        return it->second->embd.data();
+    }
+
+    // Returns the stored copy, or nullptr when it does not fit in the budget
+    const float *put(const std::string &key, const float *embd, size_t n_floats) {
+        const size_t bytes = n_floats * sizeof(float);
+        if (bytes > budget) {
+            return nullptr;
+        }
+        auto it = index.find(key);
+        if (it != index.end()) {
+            used -= it->second->embd.size() * sizeof(float);
+            entries.erase(it->second);
+            index.erase(it);
+        }
+        while (used + bytes > budget && !entries.empty()) {
+            used -= entries.back().embd.size() * sizeof(float);
+            index.erase(entries.back().key);
+            entries.pop_back();
+        }
+        entries.push_front({key, std::vector<float>(embd, embd + n_floats)});
+        index[key] = entries.begin();
+        used += bytes;
+        return entries.front().embd.data();
+    }
+
+    struct entry {
+        std::string key;
+        std::vector<float> embd;
+    };
+
+    size_t budget;
+    size_t used = 0;
+    std::list<entry> entries;
+    std::map<std::string, std::list<entry>::iterator> index;
+};
+
 struct mtmd_tokenize_result {
     std::vector<std::string> bitmap_hashes;
     std::vector<llama_token> tokens;
@@ -89,7 +141,77 @@ struct mtmd_tokenize_result {
     mtmd_input_chunks* chunks = nullptr;
 };
 
-static mtmd_tokenize_result tokenizeWithMedia(cactus_context::cactus_context_mtmd *mtmd_wrapper, const std::string &prompt, const std::vector<std::string> &media_paths) {
+static uint8_t clamp_u8(int v) {
+    return (uint8_t) (v < 0 ? 0 : (v > 255 ? 255 : v));
+}
+
+// Copies a media_buffer into an mtmd bitmap, converting it to the packed RGB
+// or float PCM layout mtmd expects
+static mtmd::bitmap bitmapFromBuffer(const media_buffer &buf) {
+    if (buf.data == nullptr) {
+        throw std::runtime_error("Media buffer has no data");
+    }
+
+    if (buf.format == MEDIA_PCM_F32) {
+        return mtmd::bitmap(mtmd_bitmap_init_from_audio(buf.size / sizeof(float), (const float *) buf.data));
+    }
+    if (buf.format == MEDIA_PCM_S16) {
+        const int16_t *samples = (const int16_t *) buf.data;
+        std::vector<float> pcmf32(buf.size / sizeof(int16_t));
+        for (size_t i = 0; i < pcmf32.size(); i++) {
+            pcmf32[i] = samples[i] / 32768.0f;
+        }
+        return mtmd::bitmap(mtmd_bitmap_init_from_audio(pcmf32.size(), pcmf32.data()));
+    }
+
+    const size_t nx = buf.width;
+    const size_t ny = buf.height;
+    if (nx == 0 || ny == 0) {
+        throw std::runtime_error("Image buffer needs a width and height");
+    }
+    // NV21 rows are padded to whole V/U pairs
+    const size_t row_bytes = buf.format == MEDIA_RGB ? nx * 3 : (buf.format == MEDIA_RGBA ? nx * 4 : (nx + 1) & ~(size_t) 1);
+    const size_t stride = buf.row_stride != 0 ? buf.row_stride : row_bytes;
+    const size_t rows = buf.format == MEDIA_NV21 ? ny + (ny + 1) / 2 : ny;
+    if (stride < row_bytes || buf.size < stride * (rows - 1) + row_bytes) {
+        throw std::runtime_error("Image buffer is smaller than its dimensions");
+    }
+
+    if (buf.format == MEDIA_RGB && stride == nx * 3) {
+        return mtmd::bitmap(nx, ny, buf.data);
+    }
+
+    std::vector<uint8_t> rgb(nx * ny * 3);
+    for (size_t y = 0; y < ny; y++) {
+        const uint8_t *row = buf.data + y * stride;
+        uint8_t *out = rgb.data() + y * nx * 3;
+        if (buf.format == MEDIA_RGB) {
+            std::copy(row, row + nx * 3, out);
+        } else if (buf.format == MEDIA_RGBA) {
+            for (size_t x = 0; x < nx; x++) {
+                out[x * 3 + 0] = row[x * 4 + 0];
+                out[x * 3 + 1] = row[x * 4 + 1];
+                out[x * 3 + 2] = row[x * 4 + 2];
+            }
+        } else if (buf.format == MEDIA_NV21) {
+            // Full range BT.601, as produced by Android cameras
+            const uint8_t *vu = buf.data + ny * stride + (y / 2) * stride;
+            for (size_t x = 0; x < nx; x++) {
+                const int c = row[x];
+                const int v = vu[(x & ~(size_t) 1) + 0] - 128;
+                const int u = vu[(x & ~(size_t) 1) + 1] - 128;
+                out[x * 3 + 0] = clamp_u8(c + ((359 * v) >> 8));
+                out[x * 3 + 1] = clamp_u8(c - ((88 * u + 183 * v) >> 8));
+                out[x * 3 + 2] = clamp_u8(c + ((454 * u) >> 8));
+            }
+        } else {
+            throw std::runtime_error("Unsupported media buffer format");
+        }
+    }
+    return mtmd::bitmap(nx, ny, rgb.data());
+}
+
+static mtmd_tokenize_result tokenizeWithMedia(cactus_context::cactus_context_mtmd *mtmd_wrapper, const std::string &prompt, const std::vector<std::string> &media_paths, const std::vector<media_buffer> &media_buffers) {
     mtmd_tokenize_result result;
     mtmd::bitmaps bitmaps;
 
@@ -159,6 +281,21 @@ static mtmd_tokenize_result tokenizeWithMedia(cactus_context::cactus_context_mtm
         }
     }
 
+    for (const auto &buf : media_buffers) {
+        LOG_VERBOSE("Loading media buffer: format=%d, %zu bytes", (int) buf.format, buf.size);
+
+        mtmd::bitmap bmp = bitmapFromBuffer(buf);
+        if (!bmp.ptr) {
+            throw std::runtime_error("Failed to load media buffer");
+        }
+
+        std::string hash = fnv_hash(bmp.data(), bmp.n_bytes());
+        bmp.set_id(hash.c_str());
+        LOG_VERBOSE("Media hash: %s", hash.c_str());
+        bitmaps.entries.push_back(std::move(bmp));
+        result.bitmap_hashes.push_back(hash);
+    }
+
     LOG_VERBOSE("Initializing input chunks");
     result.chunks = mtmd_input_chunks_init();
     if (result.chunks == nullptr) {
@@ -217,7 +354,7 @@ static mtmd_tokenize_result tokenizeWithMedia(cactus_context::cactus_context_mtm
     return result;
 }
 
-bool cactus_context::initMultimodal(const std::string &mmproj_path, bool use_gpu) {
+bool cactus_context::initMultimodal(const std::string &mmproj_path, bool use_gpu, size_t media_cache_bytes) {
     LOG_VERBOSE("Initializing multimodal with mmproj path: %s", mmproj_path.c_str());
 
     if (model == nullptr) {
@@ -244,6 +381,9 @@ bool cactus_context::initMultimodal(const std::string &mmproj_path, bool use_gpu
     mtmd_wrapper->mtmd_ctx = mtmd_ctx;
 
     has_multimodal = true;
+    if (media_cache_bytes > 0) {
+        media_cache = new cactus_media_cache(media_cache_bytes);
+    }
 
     bool uses_mrope = mtmd_decode_use_mrope(mtmd_ctx);
     bool uses_non_causal = mtmd_decode_use_non_causal(mtmd_ctx);
@@ -273,9 +413,31 @@ void cactus_context::releaseMultimodal() {
         mtmd_wrapper = nullptr;
         has_multimodal = false;
     }
+    delete media_cache;
+    media_cache = nullptr;
 }
 
-void cactus_context::processMedia(const std::string &prompt, const std::vector<std::string> &media_paths) {
+int32_t cactus_context::evalMediaChunk(const mtmd_input_chunk *chunk, const std::string &key, llama_pos n_past_in, llama_pos *new_n_past) {
+    mtmd_context *mtmd_ctx = mtmd_wrapper->mtmd_ctx;
+    const size_t n_floats = mtmd_input_chunk_get_n_tokens(chunk) * (size_t) llama_model_n_embd(model);
+    const float *embd = media_cache->get(key, n_floats);
+    if (embd != nullptr) {
+        LOG_VERBOSE("Reusing encoded media chunk %s", key.c_str());
+    } else {
+        int32_t ret = mtmd_encode_chunk(mtmd_ctx, chunk);
+        if (ret != 0) {
+            return ret;
+        }
+        const float *encoded = mtmd_get_output_embd(mtmd_ctx);
+        embd = media_cache->put(key, encoded, n_floats);
+        if (embd == nullptr) {
+            embd = encoded;
+        }
+    }
+    return mtmd_helper_decode_image_chunk(mtmd_ctx, ctx, chunk, const_cast<float *>(embd), n_past_in, 0, params.n_batch, new_n_past);
+}
+
+void cactus_context::processMedia(const std::string &prompt, const std::vector<std::string> &media_paths, const std::vector<media_buffer> &media_buffers) {
     if (!isMultimodalEnabled()) {
         throw std::runtime_error("Multimodal is not enabled but image paths are provided");
     }
@@ -288,10 +450,10 @@ void cactus_context::processMedia(const std::string &prompt, const std::vector<s
     }
 
     LOG_VERBOSE("Processing message with content=%s", full_prompt.c_str());
-    LOG_VERBOSE("Processing %zu media with prompt: %s", media_paths.size(), prompt.c_str());
+    LOG_VERBOSE("Processing %zu media with prompt: %s", media_paths.size() + media_buffers.size(), prompt.c_str());
     LOG_VERBOSE("Current context state: n_past=%d, n_ctx=%d", n_past, n_ctx);
 
-    auto result = tokenizeWithMedia(mtmd_wrapper, full_prompt, media_paths);
+    auto result = tokenizeWithMedia(mtmd_wrapper, full_prompt, media_paths, media_buffers);
 
     auto all_tokens = result.tokens;
     auto chunks = result.chunks;
@@ -343,30 +505,50 @@ void cactus_context::processMedia(const std::string &prompt, const std::vector<s
     }
 
     llama_kv_self_seq_rm(ctx, 0, n_past, -1);
+    // Media positions do not map one-to-one onto tokens, so text prompts start over
+    kv_tokens.clear();
 
     LOG_VERBOSE("Evaluating chunks: n_past=%d, n_batch=%d", n_past, params.n_batch);
 
     size_t num_chunks = mtmd_input_chunks_size(chunks);
+    // Slices of one image, or segments of one audio clip, share the bitmap's id
+    std::map<std::string, int> chunk_ordinal;
 
     for (size_t i = 0; i < chunk_pos.size(); i++) {
         LOG_VERBOSE("Evaluating chunk %zu: n_past=%d, chunk_pos=%zu", i, n_past, chunk_pos[i]);
 
+        auto chunk = mtmd_input_chunks_get(chunks, i);
+        const bool is_media = mtmd_input_chunk_get_type(chunk) != MTMD_INPUT_CHUNK_TYPE_TEXT;
+        std::string media_key;
+        if (is_media) {
+            const std::string id = mtmd_input_chunk_get_id(chunk);
+            media_key = id + "#" + std::to_string(chunk_ordinal[id]++);
+        }
+
         if (chunk_pos[i] >= n_past) {
             bool chunk_logits_last = (i == num_chunks - 1);
-            auto chunk = mtmd_input_chunks_get(chunks, i);
-
-            int32_t res = mtmd_helper_eval_chunk_single(
-                mtmd_wrapper->mtmd_ctx,
-                ctx,
-                chunk,
-                n_past,
-                0,
-                params.n_batch,
-                chunk_logits_last,
-                &new_n_past
-            );
+
+            int32_t res = is_media && media_cache != nullptr
+                ? evalMediaChunk(chunk, media_key, n_past, &new_n_past)
+                : mtmd_helper_eval_chunk_single(
+                    mtmd_wrapper->mtmd_ctx,
+                    ctx,
+                    chunk,
+                    n_past,
+                    0,
+                    params.n_batch,
+                    chunk_logits_last,
+                    &new_n_past
+                );
             if (res != 0) {
                 mtmd_input_chunks_free(chunks);
+                if (is_interrupted) {
+                    LOG_INFO("Media processing interrupted");
+                    embd.clear();
+                    n_past = 0;
+                    mtmd_bitmap_past_hashes.clear();
+                    return;
+                }
                 throw std::runtime_error("Failed to evaluate chunks");
             }
             n_past = new_n_past;
@@ -0,0 +1,506 @@
+#include "cactus.h"
+#include "common.h"
+#include "sampling.h"
+#include <condition_variable>
+#include <deque>
+#include <memory>
+#include <mutex>
+#include <thread>
+
+namespace cactus {
+
+namespace {
+
+// Length of the longest prefix of `text` that does not end in a partial UTF-8 sequence
+size_t utf8_complete_length(const std::string &text) {
+    const size_t len = text.size();
+    for (size_t back = 1; back <= 4 && back <= len; ++back) {
+        const unsigned char c = text[len - back];
+        if ((c & 0xC0) == 0x80) {
+            continue;
+        }
+        size_t expected = 1;
+        if      ((c & 0xE0) == 0xC0) expected = 2;
+        else if ((c & 0xF0) == 0xE0) expected = 3;
+        else if ((c & 0xF8) == 0xF0) expected = 4;
+        return back < expected ? len - back : len;
+    }
+    return len;
+}
+
+} // namespace
+
+struct cactus_parallel_piece {
+    completion_token_output token;
+    std::string text;
+};
+
+struct cactus_parallel_slot {
+    llama_seq_id seq_id = 0;
+
+    // Owned by the requesting thread, handed to the decode thread while busy
+    bool busy = false;
+    bool started = false;
+    bool finished = false;
+    bool cancelled = false;
+    const cactus_parallel_request *request = nullptr;
+    common_sampler *sampler = nullptr;
+    std::vector<llama_token> prompt_tokens;
+
+    // Decode thread state
+    size_t n_prompt_done = 0;
+    llama_pos n_past = 0;
+    int32_t i_batch = -1;
+    llama_token last_token = LLAMA_TOKEN_NULL;
+    int n_remain = -1;
+    size_t n_sent = 0;
+    int64_t t_start_us = 0;
+    int64_t t_first_token_us = 0;
+
+    std::deque<cactus_parallel_piece> pending;
+    cactus_parallel_result result;
+};
+
+struct cactus_parallel_engine {
+    llama_context *ctx = nullptr;
+    std::mutex *ctx_mutex = nullptr;
+    const llama_vocab *vocab = nullptr;
+    int n_batch = 0;
+    int n_ctx_slot = 0;
+
+    std::vector<std::unique_ptr<cactus_parallel_slot>> slots;
+    llama_batch batch = {};
+
+    std::mutex mutex;
+    std::condition_variable work_cv;
+    std::condition_variable slot_cv;
+    bool running = true;
+    std::thread worker;
+
+    bool hasWork() const {
+        for (const auto &slot : slots) {
+            if (slot->busy && !slot->finished) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void finish(cactus_parallel_slot &slot) {
+        slot.finished = true;
+        const int64_t t_end_us = lm_ggml_time_us();
+        if (slot.t_first_token_us > 0) {
+            slot.result.t_prompt_ms = (slot.t_first_token_us - slot.t_start_us) / 1e3;
+            slot.result.t_predicted_ms = (t_end_us - slot.t_first_token_us) / 1e3;
+        } else {
+            slot.result.t_prompt_ms = (t_end_us - slot.t_start_us) / 1e3;
+        }
+        // Flush text withheld for UTF-8 completion or a partial stop word that never completed
+        if (slot.n_sent < slot.result.text.size()) {
+            cactus_parallel_piece piece;
+            piece.token.tok = LLAMA_TOKEN_NULL;
+            piece.text = slot.result.text.substr(slot.n_sent);
+            slot.n_sent = slot.result.text.size();
+            slot.pending.push_back(std::move(piece));
+        }
+        llama_kv_self_seq_rm(ctx, slot.seq_id, -1, -1);
+    }
+
+    // Called with the lock held; returns false when the slot stops generating
+    bool accept(cactus_parallel_slot &slot, const completion_token_output &output) {
+        slot.result.n_predicted++;
+        slot.last_token = output.tok;
+        if (slot.request->sampling.n_probs > 0) {
+            slot.result.probs.push_back(output);
+        }
+
+        if (llama_vocab_is_eog(vocab, output.tok)) {
+            slot.result.stopped_eos = true;
+            return false;
+        }
+
+        const std::string piece = common_token_to_piece(ctx, output.tok);
+        slot.result.text += piece;
+
+        const std::string &text = slot.result.text;
+        size_t stop_pos = std::string::npos;
+        for (const std::string &word : slot.request->antiprompt) {
+            if (word.empty()) continue;
+            const size_t tail = word.size() + piece.size();
+            const size_t from = text.size() > tail ? text.size() - tail : 0;
+            const size_t pos = text.find(word, from);
+            if (pos != std::string::npos && (stop_pos == std::string::npos || pos < stop_pos)) {
+                stop_pos = pos;
+                slot.result.stopping_word = word;
+            }
+        }
+        if (stop_pos != std::string::npos) {
+            slot.result.text.erase(stop_pos);
+            slot.result.stopped_word = true;
+        }
+
+        size_t sendable = utf8_complete_length(slot.result.text);
+        if (!slot.result.stopped_word) {
+            // Hold back text that may be the start of a stop word, as the serial path does
+            const std::string unsent = slot.result.text.substr(slot.n_sent);
+            for (const std::string &word : slot.request->antiprompt) {
+                if (word.empty()) continue;
+                const size_t pos = find_partial_stop_string(word, unsent);
+                if (pos != std::string::npos) {
+                    sendable = std::min(sendable, slot.n_sent + pos);
+                }
+            }
+        }
+        cactus_parallel_piece out;
+        out.token = output;
+        if (sendable > slot.n_sent) {
+            out.text = slot.result.text.substr(slot.n_sent, sendable - slot.n_sent);
+            slot.n_sent = sendable;
+        }
+        slot.pending.push_back(std::move(out));
+
+        if (slot.result.stopped_word) {
+            return false;
+        }
+        if (slot.n_remain > 0 && --slot.n_remain == 0) {
+            slot.result.stopped_limit = true;
+            return false;
+        }
+        if (slot.n_past >= n_ctx_slot) {
+            slot.result.truncated = true;
+            slot.result.stopped_limit = true;
+            return false;
+        }
+        return true;
+    }
+
+    void run() {
+        while (true) {
+            std::vector<cactus_parallel_slot *> sampled;
+            {
+                std::unique_lock<std::mutex> lock(mutex);
+                work_cv.wait(lock, [this] { return !running || hasWork(); });
+                if (!running) {
+                    break;
+                }
+            }
+            // Not held while idle, so other work on ctx can run between completions
+            std::lock_guard<std::mutex> gate(*ctx_mutex);
+            {
+                std::unique_lock<std::mutex> lock(mutex);
+                if (!running) {
+                    break;
+                }
+
+                llama_batch_clear(&batch);
+
+                // One generated token per decoding slot keeps latency flat while prompts prefill
+                for (auto &slot_ptr : slots) {
+                    auto &slot = *slot_ptr;
+                    slot.i_batch = -1;
+                    if (!slot.busy || slot.finished) continue;
+                    if (slot.cancelled) {
+                        slot.result.interrupted = true;
+                        finish(slot);
+                        continue;
+                    }
+                    if (!slot.started) {
+                        llama_kv_self_seq_rm(ctx, slot.seq_id, -1, -1);
+                        slot.started = true;
+                        slot.t_start_us = lm_ggml_time_us();
+                        continue;
+                    }
+                    if (slot.n_prompt_done == slot.prompt_tokens.size() &&
+                        slot.last_token != LLAMA_TOKEN_NULL && batch.n_tokens < n_batch) {
+                        slot.i_batch = batch.n_tokens;
+                        llama_batch_add(&batch, slot.last_token, slot.n_past, { slot.seq_id }, true);
+                        slot.n_past++;
+                    }
+                }
+
+                for (auto &slot_ptr : slots) {
+                    auto &slot = *slot_ptr;
+                    if (!slot.busy || slot.finished || !slot.started) continue;
+                    while (slot.n_prompt_done < slot.prompt_tokens.size() && batch.n_tokens < n_batch) {
+                        const bool last = slot.n_prompt_done + 1 == slot.prompt_tokens.size();
+                        if (last) {
+                            slot.i_batch = batch.n_tokens;
+                        }
+                        llama_batch_add(&batch, slot.prompt_tokens[slot.n_prompt_done], slot.n_past, { slot.seq_id }, last);
+                        slot.n_prompt_done++;
+                        slot.n_past++;
+                    }
+                }
+
+                for (auto &slot_ptr : slots) {
+                    if (slot_ptr->i_batch >= 0) {
+                        sampled.push_back(slot_ptr.get());
+                    }
+                }
+                slot_cv.notify_all();
+            }
+
+            if (batch.n_tokens == 0) {
+                continue;
+            }
+
+            const int ret = llama_decode(ctx, batch);
+
+            std::vector<completion_token_output> outputs(sampled.size());
+            if (ret == 0) {
+                for (size_t i = 0; i < sampled.size(); ++i) {
+                    auto &slot = *sampled[i];
+                    auto &output = outputs[i];
+                    output.tok = common_sampler_sample(slot.sampler, ctx, slot.i_batch);
+                    common_sampler_accept(slot.sampler, output.tok, true);
+                    const int32_t n_probs = slot.request->sampling.n_probs;
+                    if (n_probs > 0) {
+                        const llama_token_data_array *cur_p = common_sampler_get_candidates(slot.sampler);
+                        for (size_t k = 0; k < std::min((size_t) cur_p->size, (size_t) n_probs); ++k) {
+                            output.probs.push_back({cur_p->data[k].id, cur_p->data[k].p});
+                        }
+                    }
+                }
+            }
+
+            std::lock_guard<std::mutex> lock(mutex);
+            if (ret != 0) {
+                LOG_ERROR("Parallel decode failed with %d for %d tokens", ret, batch.n_tokens);
+                for (auto &slot_ptr : slots) {
+                    auto &slot = *slot_ptr;
+                    if (slot.busy && !slot.finished && slot.started) {
+                        slot.result.error = "Failed to decode batch";
+                        finish(slot);
+                    }
+                }
+            } else {
+                for (size_t i = 0; i < sampled.size(); ++i) {
+                    auto &slot = *sampled[i];
+                    if (slot.t_first_token_us == 0) {
+                        slot.t_first_token_us = lm_ggml_time_us();
+                    }
+                    if (slot.cancelled) {
+                        slot.result.interrupted = true;
+                        finish(slot);
+                    } else if (!accept(slot, outputs[i])) {
+                        finish(slot);
+                    }
+                }
+            }
+            slot_cv.notify_all();
+        }
+    }
+};
+
+bool cactus_context::initParallel(int n_parallel) {
+    releaseParallel();
+    if (n_parallel <= 1 || ctx == nullptr || model == nullptr) {
+        return false;
+    }
+
+    auto engine = new cactus_parallel_engine();
+    engine->ctx = ctx;
+    engine->ctx_mutex = &ctx_mutex;
+    engine->vocab = llama_model_get_vocab(model);
+    engine->n_batch = std::max(1, (int) llama_n_batch(ctx));
+    engine->n_ctx_slot = std::max(1, (int) llama_n_ctx(ctx) / n_parallel);
+    engine->batch = llama_batch_init(engine->n_batch, 0, 1);
+    for (int i = 0; i < n_parallel; ++i) {
+        auto slot = std::unique_ptr<cactus_parallel_slot>(new cactus_parallel_slot());
+        slot->seq_id = i;
+        engine->slots.push_back(std::move(slot));
+    }
+    engine->worker = std::thread([engine] { engine->run(); });
+    parallel_engine = engine;
+
+    LOG_INFO("Parallel decoding enabled: %d slots, %d ctx per slot", n_parallel, engine->n_ctx_slot);
+    return true;
+}
+
+bool cactus_context::isParallelEnabled() const {
+    return parallel_engine != nullptr;
+}
+
+bool cactus_context::isParallelBusy() {
+    if (parallel_engine == nullptr) {
+        return false;
+    }
+    std::lock_guard<std::mutex> lock(parallel_engine->mutex);
+    for (const auto &slot : parallel_engine->slots) {
+        if (slot->busy) {
+            return true;
+        }
+    }
+    return false;
+}
+
+std::unique_lock<std::mutex> cactus_context::lockIdle() {
+    std::unique_lock<std::mutex> gate(ctx_mutex);
+    if (isParallelBusy()) {
+        gate.unlock();
+    }
+    return gate;
+}
+
+cactus_parallel_result cactus_context::parallelCompletion(
+    const cactus_parallel_request &request,
+    const std::function<void(const completion_token_output &, const std::string &)> &on_token
+) {
+    cactus_parallel_result result;
+    auto engine = parallel_engine;
+    if (engine == nullptr) {
+        result.error = "Parallel decoding is not enabled";
+        return result;
+    }
+
+    std::vector<llama_token> prompt_tokens = common_tokenize(ctx, request.prompt, true, true);
+    if (prompt_tokens.empty()) {
+        result.error = "Empty prompt";
+        return result;
+    }
+    if ((int) prompt_tokens.size() >= engine->n_ctx_slot) {
+        result.error = "Prompt does not fit in a parallel slot (n_ctx / n_parallel)";
+        return result;
+    }
+
+    common_sampler *sampler = createSampler(request.sampling);
+    if (sampler == nullptr) {
+        result.error = "Failed to initialize sampling";
+        return result;
+    }
+    for (const auto &token : prompt_tokens) {
+        common_sampler_accept(sampler, token, false);
+    }
+
+    cactus_parallel_slot *slot = nullptr;
+    {
+        std::unique_lock<std::mutex> lock(engine->mutex);
+        bool cancelled = false;
+        engine->slot_cv.wait(lock, [&] {
+            if (!engine->running) return true;
+            // Checked under the lock: a stop after this finds the slot busy and cancels it
+            if (request.is_cancelled && request.is_cancelled()) {
+                cancelled = true;
+                return true;
+            }
+            for (auto &candidate : engine->slots) {
+                if (!candidate->busy) {
+                    slot = candidate.get();
+                    return true;
+                }
+            }
+            return false;
+        });
+        if (cancelled) {
+            common_sampler_free(sampler);
+            result.n_prompt_tokens = prompt_tokens.size();
+            result.interrupted = true;
+            return result;
+        }
+        if (slot == nullptr) {
+            common_sampler_free(sampler);
+            result.error = "Parallel decoding was released";
+            return result;
+        }
+        slot->busy = true;
+        slot->started = false;
+        slot->finished = false;
+        slot->cancelled = false;
+        slot->request = &request;
+        slot->sampler = sampler;
+        slot->prompt_tokens = std::move(prompt_tokens);
+        slot->n_prompt_done = 0;
+        slot->n_past = 0;
+        slot->i_batch = -1;
+        slot->last_token = LLAMA_TOKEN_NULL;
+        slot->n_remain = request.n_predict;
+        slot->n_sent = 0;
+        slot->t_start_us = 0;
+        slot->t_first_token_us = 0;
+        slot->pending.clear();
+        slot->result = cactus_parallel_result();
+        slot->result.n_prompt_tokens = slot->prompt_tokens.size();
+    }
+    engine->work_cv.notify_one();
+
+    // Stream tokens on the calling thread so callbacks stay on the caller's JNI env
+    bool done = false;
+    while (!done) {
+        std::deque<cactus_parallel_piece> pieces;
+        {
+            std::unique_lock<std::mutex> lock(engine->mutex);
+            engine->slot_cv.wait(lock, [&] { return !slot->pending.empty() || slot->finished; });
+            pieces.swap(slot->pending);
+            done = slot->finished;
+        }
+        for (const auto &piece : pieces) {
+            on_token(piece.token, piece.text);
+        }
+    }
+
+    {
+        std::lock_guard<std::mutex> lock(engine->mutex);
+        result = std::move(slot->result);
+        slot->busy = false;
+        slot->request = nullptr;
+        slot->sampler = nullptr;
+        slot->prompt_tokens.clear();
+    }
+    engine->slot_cv.notify_all();
+    common_sampler_free(sampler);
+    return result;
+}
+
+void cactus_context::stopParallel() {
+    if (parallel_engine == nullptr) {
+        return;
+    }
+    {
+        std::lock_guard<std::mutex> lock(parallel_engine->mutex);
+        for (auto &slot : parallel_engine->slots) {
+            if (slot->busy) {
+                slot->cancelled = true;
+            }
+        }
+    }
+    parallel_engine->work_cv.notify_one();
+    // Requests still waiting for a slot re-check their own cancellation
+    parallel_engine->slot_cv.notify_all();
+}
+
+void cactus_context::releaseParallel() {
+    if (parallel_engine == nullptr) {
+        return;
+    }
+    stopParallel();
+    {
+        std::lock_guard<std::mutex> lock(parallel_engine->mutex);
+        parallel_engine->running = false;
+    }
+    parallel_engine->work_cv.notify_all();
+    if (parallel_engine->worker.joinable()) {
+        parallel_engine->worker.join();
+    }
+    {
+        // Let requesters that are still streaming drain before the slots go away
+        std::unique_lock<std::mutex> lock(parallel_engine->mutex);
+        for (auto &slot : parallel_engine->slots) {
+            if (slot->busy) {
+                slot->result.interrupted = true;
+                slot->finished = true;
+            }
+        }
+        parallel_engine->slot_cv.notify_all();
+        parallel_engine->slot_cv.wait(lock, [this] {
+            for (const auto &slot : parallel_engine->slots) {
+                if (slot->busy) return false;
+            }
+            return true;
+        });
+    }
+    llama_batch_free(parallel_engine->batch);
+    delete parallel_engine;
+    parallel_engine = nullptr;
+}
+
+} // namespace cactus
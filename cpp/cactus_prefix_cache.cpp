@@ -0,0 +1,232 @@
+#include "cactus.h"
+#include "common.h"
+#include <algorithm>
+#include <map>
+#include <memory>
+
+namespace cactus {
+
+// Radix tree over prompt token sequences. A node may hold a snapshot of
+// sequence 0 taken when the KV cache held exactly the tokens on the path from
+// the root to that node. Snapshots are evicted least recently used first once
+// their total size exceeds the budget.
+struct cactus_prefix_cache {
+    struct node {
+        node *parent = nullptr;
+        std::vector<llama_token> edge;
+        std::map<llama_token, std::unique_ptr<node>> children;
+        size_t depth = 0;
+        std::vector<uint8_t> state;
+        uint64_t last_used = 0;
+    };
+
+    explicit cactus_prefix_cache(size_t budget_bytes) : budget(budget_bytes) {}
+
+    // Deepest snapshot whose tokens are a prefix of `tokens`, or nullptr
+    node *lookup(const std::vector<llama_token> &tokens) {
+        node *best = nullptr;
+        node *cur = &root;
+        size_t pos = 0;
+        while (pos < tokens.size()) {
+            auto it = cur->children.find(tokens[pos]);
+            if (it == cur->children.end()) {
+                break;
+            }
+            node *child = it->second.get();
+            const size_t len = child->edge.size();
+            if (pos + len > tokens.size() || !std::equal(child->edge.begin(), child->edge.end(), tokens.begin() + pos)) {
+                break;
+            }
+            pos += len;
+            cur = child;
+            if (!cur->state.empty()) {
+                best = cur;
+            }
+        }
+        if (best != nullptr) {
+            best->last_used = ++clock;
+        }
+        return best;
+    }
+
+    void insert(const std::vector<llama_token> &tokens, size_t n_tokens, std::vector<uint8_t> &&state) {
+        if (n_tokens == 0 || state.empty() || state.size() > budget) {
+            return;
+        }
+        node *cur = &root;
+        size_t pos = 0;
+        while (pos < n_tokens) {
+            auto it = cur->children.find(tokens[pos]);
+            if (it == cur->children.end()) {
+                auto child = std::make_unique<node>();
+                child->parent = cur;
+                child->edge.assign(tokens.begin() + pos, tokens.begin() + n_tokens);
+                child->depth = n_tokens;
+                node *next = child.get();
+                cur->children[tokens[pos]] = std::move(child);
+                cur = next;
+                pos = n_tokens;
+                break;
+            }
+            node *child = it->second.get();
+            size_t common = 0;
+            while (common < child->edge.size() && pos + common < n_tokens && child->edge[common] == tokens[pos + common]) {
+                common++;
+            }
+            if (common < child->edge.size()) {
+                // Split the edge so the shared part gets its own node
+                auto mid = std::make_unique<node>();
+                mid->parent = cur;
+                mid->edge.assign(child->edge.begin(), child->edge.begin() + common);
+                mid->depth = child->depth - child->edge.size() + common;
+                std::unique_ptr<node> tail = std::move(it->second);
+                tail->edge.erase(tail->edge.begin(), tail->edge.begin() + common);
+                tail->parent = mid.get();
+                const llama_token key = tail->edge[0];
+                mid->children[key] = std::move(tail);
+                child = mid.get();
+                it->second = std::move(mid);
+            }
+            pos += common;
+            cur = child;
+        }
+
+        used -= cur->state.size();
+        cur->state = std::move(state);
+        cur->last_used = ++clock;
+        used += cur->state.size();
+        evict();
+    }
+
+    void clear() {
+        root.children.clear();
+        used = 0;
+    }
+
+    size_t budget;
+    size_t used = 0;
+
+private:
+    void collect(node *n, std::vector<node *> &out) {
+        if (!n->state.empty()) {
+            out.push_back(n);
+        }
+        for (auto &child : n->children) {
+            collect(child.second.get(), out);
+        }
+    }
+
+    void evict() {
+        if (used <= budget) {
+            return;
+        }
+        std::vector<node *> snapshots;
+        collect(&root, snapshots);
+        std::sort(snapshots.begin(), snapshots.end(), [](const node *a, const node *b) {
+            return a->last_used < b->last_used;
+        });
+        for (node *n : snapshots) {
+            if (used <= budget) {
+                break;
+            }
+            used -= n->state.size();
+            std::vector<uint8_t>().swap(n->state);
+            prune(n);
+        }
+    }
+
+    // Drops nodes left without a snapshot or children
+    void prune(node *n) {
+        while (n != &root && n->state.empty() && n->children.empty()) {
+            node *parent = n->parent;
+            parent->children.erase(n->edge[0]);
+            n = parent;
+        }
+    }
+
+    node root;
+    uint64_t clock = 0;
+};
+
+void cactus_context::enablePrefixCache(size_t budget_bytes) {
+    releasePrefixCache();
+    if (budget_bytes == 0) {
+        return;
+    }
+    if (params.embedding) {
+        LOG_WARNING("Prefix cache is not supported for embedding contexts");
+        return;
+    }
+    prefix_cache = new cactus_prefix_cache(budget_bytes);
+    LOG_INFO("Prefix cache enabled with a %zu byte budget", budget_bytes);
+}
+
+void cactus_context::releasePrefixCache() {
+    delete prefix_cache;
+    prefix_cache = nullptr;
+    prefix_snapshot_pending = false;
+}
+
+void cactus_context::reuseKvPrefix() {
+    // Non-causal embedding models need the whole input in a single batch
+    if (params.embedding) {
+        kv_tokens.clear();
+        llama_kv_self_seq_rm(ctx, 0, -1, -1);
+        n_past = 0;
+        return;
+    }
+
+    // Always evaluate at least one prompt token so sampling has fresh logits
+    const size_t max_reuse = embd.empty() ? 0 : embd.size() - 1;
+    size_t n_reuse = std::min(common_part(kv_tokens, embd), max_reuse);
+
+    prefix_snapshot_pending = false;
+    if (prefix_cache != nullptr) {
+        cactus_prefix_cache::node *hit = prefix_cache->lookup(embd);
+        if (hit != nullptr && std::min(hit->depth, max_reuse) > n_reuse) {
+            llama_kv_self_seq_rm(ctx, 0, -1, -1);
+            if (llama_state_seq_set_data(ctx, hit->state.data(), hit->state.size(), 0) == 0) {
+                LOG_WARNING("Failed to restore prefix snapshot of %zu tokens", hit->depth);
+                llama_kv_self_seq_rm(ctx, 0, -1, -1);
+                kv_tokens.clear();
+                n_reuse = 0;
+            } else {
+                kv_tokens.assign(embd.begin(), embd.begin() + hit->depth);
+                n_reuse = std::min(hit->depth, max_reuse);
+                LOG_VERBOSE("Restored prefix snapshot of %zu tokens", hit->depth);
+            }
+        }
+        prefix_snapshot_pending = hit == nullptr || hit->depth < embd.size();
+    }
+
+    llama_kv_self_seq_rm(ctx, 0, n_reuse, -1);
+    kv_tokens.resize(n_reuse);
+    n_past = n_reuse;
+}
+
+void cactus_context::invalidateKvPrefix() {
+    kv_tokens.clear();
+    prefix_snapshot_pending = false;
+    if (prefix_cache != nullptr) {
+        prefix_cache->clear();
+    }
+}
+
+void cactus_context::savePrefixSnapshot() {
+    prefix_snapshot_pending = false;
+    if (prefix_cache == nullptr || n_past == 0 || kv_tokens.size() != n_past) {
+        return;
+    }
+    const size_t size = llama_state_seq_get_size(ctx, 0);
+    if (size == 0 || size > prefix_cache->budget) {
+        return;
+    }
+    std::vector<uint8_t> state(size);
+    if (llama_state_seq_get_data(ctx, state.data(), size, 0) != size) {
+        LOG_WARNING("Failed to snapshot %zu prompt tokens", n_past);
+        return;
+    }
+    prefix_cache->insert(kv_tokens, n_past, std::move(state));
+}
+
+} // namespace cactus
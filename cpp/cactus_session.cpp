@@ -0,0 +1,590 @@
+#include "cactus.h"
+#include "common.h"
+#include <algorithm>
+#include <condition_variable>
+#include <cstdio>
+#include <cstring>
+#include <deque>
+#include <limits>
+#include <mutex>
+#include <thread>
+#ifndef _WIN32
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#endif
+
+namespace cactus {
+
+namespace {
+
+// Checkpoint file: header, then records appended in order. A record keeps the
+// first `keep` tokens of the state built so far, appends its tokens and adds
+// the KV cells at positions >= keep. A full record has keep == 0. A torn
+// record at the end (process killed mid-write) is ignored on load.
+const uint32_t SESSION_MAGIC = 0x53455343; // "CSES"
+const uint32_t SESSION_VERSION = 1;
+const uint32_t RECORD_MAGIC = 0x43455243;  // "CREC"
+
+// Read-only view of one sequence state written by
+// llama_kv_cache_unified::state_write: cell positions, then per layer K rows,
+// then V as rows or, when transposed, one run of cells per embedding column.
+struct kv_seq_view {
+    struct layer {
+        int32_t k_type = 0;
+        uint64_t k_row = 0;
+        const uint8_t *k = nullptr;
+        int32_t v_type = 0;
+        uint64_t v_size = 0; // row size, or element size when transposed
+        uint32_t n_embd_v = 0;
+        const uint8_t *v = nullptr;
+    };
+
+    uint32_t n_cells = 0;
+    const uint8_t *meta = nullptr;
+    uint32_t v_trans = 0;
+    std::vector<layer> layers;
+
+    llama_pos pos(uint32_t i) const {
+        llama_pos p;
+        memcpy(&p, meta + (size_t) i * 8, sizeof(p));
+        return p;
+    }
+};
+
+struct byte_reader {
+    const uint8_t *cur;
+    const uint8_t *end;
+
+    template <typename T>
+    bool read(T &out) {
+        if ((size_t) (end - cur) < sizeof(T)) return false;
+        memcpy(&out, cur, sizeof(T));
+        cur += sizeof(T);
+        return true;
+    }
+
+    const uint8_t *take(uint64_t n) {
+        if ((uint64_t) (end - cur) < n) return nullptr;
+        const uint8_t *p = cur;
+        cur += n;
+        return p;
+    }
+};
+
+// Fails on anything but a single unified cache stream (SWA and recurrent caches differ)
+bool parse_seq_state(const uint8_t *data, size_t size, kv_seq_view &view) {
+    byte_reader in{data, data + size};
+    uint32_t n_layer = 0;
+    if (!in.read(view.n_cells) || !(view.meta = in.take((uint64_t) view.n_cells * 8))) return false;
+    for (uint32_t i = 0; i < view.n_cells; i++) {
+        uint32_t n_seq_id;
+        memcpy(&n_seq_id, view.meta + (size_t) i * 8 + 4, sizeof(n_seq_id));
+        if (n_seq_id != 0) return false;
+    }
+    if (!in.read(view.v_trans) || !in.read(n_layer)) return false;
+    view.layers.assign(n_layer, {});
+    for (auto &l : view.layers) {
+        if (!in.read(l.k_type) || !in.read(l.k_row)) return false;
+        if (!(l.k = in.take(l.k_row * view.n_cells))) return false;
+    }
+    for (auto &l : view.layers) {
+        if (!in.read(l.v_type)) return false;
+        if (!view.v_trans) {
+            if (!in.read(l.v_size) || !(l.v = in.take(l.v_size * view.n_cells))) return false;
+        } else {
+            uint32_t v_el = 0;
+            if (!in.read(v_el) || !in.read(l.n_embd_v)) return false;
+            l.v_size = v_el;
+            if (!(l.v = in.take((uint64_t) v_el * l.n_embd_v * view.n_cells))) return false;
+        }
+    }
+    return in.cur == in.end;
+}
+
+bool same_layout(const kv_seq_view &a, const kv_seq_view &b) {
+    if (a.v_trans != b.v_trans || a.layers.size() != b.layers.size()) return false;
+    for (size_t i = 0; i < a.layers.size(); i++) {
+        const auto &x = a.layers[i];
+        const auto &y = b.layers[i];
+        if (x.k_type != y.k_type || x.k_row != y.k_row || x.v_type != y.v_type ||
+            x.v_size != y.v_size || x.n_embd_v != y.n_embd_v) {
+            return false;
+        }
+    }
+    return true;
+}
+
+struct kv_seq_part {
+    const kv_seq_view *view;
+    std::vector<uint32_t> cells;
+};
+
+template <typename T>
+void put(std::vector<uint8_t> &out, const T &value) {
+    const uint8_t *p = (const uint8_t *) &value;
+    out.insert(out.end(), p, p + sizeof(T));
+}
+
+// Serializes the selected cells of each part as one sequence state; all parts share a layout
+std::vector<uint8_t> build_seq_state(const std::vector<kv_seq_part> &parts) {
+    const kv_seq_view &first = *parts.front().view;
+    uint32_t n_cells = 0;
+    for (const auto &part : parts) n_cells += part.cells.size();
+
+    std::vector<uint8_t> out;
+    put(out, n_cells);
+    for (const auto &part : parts) {
+        for (uint32_t c : part.cells) {
+            out.insert(out.end(), part.view->meta + (size_t) c * 8, part.view->meta + (size_t) c * 8 + 8);
+        }
+    }
+    put(out, first.v_trans);
+    put(out, (uint32_t) first.layers.size());
+    for (size_t il = 0; il < first.layers.size(); il++) {
+        put(out, first.layers[il].k_type);
+        put(out, first.layers[il].k_row);
+        for (const auto &part : parts) {
+            const auto &l = part.view->layers[il];
+            for (uint32_t c : part.cells) {
+                out.insert(out.end(), l.k + c * l.k_row, l.k + (c + 1) * l.k_row);
+            }
+        }
+    }
+    for (size_t il = 0; il < first.layers.size(); il++) {
+        const auto &l0 = first.layers[il];
+        put(out, l0.v_type);
+        if (!first.v_trans) {
+            put(out, l0.v_size);
+            for (const auto &part : parts) {
+                const auto &l = part.view->layers[il];
+                for (uint32_t c : part.cells) {
+                    out.insert(out.end(), l.v + c * l.v_size, l.v + (c + 1) * l.v_size);
+                }
+            }
+        } else {
+            put(out, (uint32_t) l0.v_size);
+            put(out, l0.n_embd_v);
+            for (uint32_t j = 0; j < l0.n_embd_v; j++) {
+                for (const auto &part : parts) {
+                    const auto &l = part.view->layers[il];
+                    const uint8_t *column = l.v + (uint64_t) j * part.view->n_cells * l.v_size;
+                    for (uint32_t c : part.cells) {
+                        out.insert(out.end(), column + c * l.v_size, column + (c + 1) * l.v_size);
+                    }
+                }
+            }
+        }
+    }
+    return out;
+}
+
+// Read-only view of a whole file. Mapped where possible so restores copy
+// straight from the page cache into the KV cache instead of staging a read.
+struct mapped_file {
+    const uint8_t *data = nullptr;
+    size_t size = 0;
+
+    bool open(const std::string &path) {
+#ifndef _WIN32
+        int fd = ::open(path.c_str(), O_RDONLY);
+        if (fd < 0) return false;
+        struct stat st;
+        if (fstat(fd, &st) != 0 || st.st_size <= 0) {
+            ::close(fd);
+            return false;
+        }
+        void *addr = mmap(nullptr, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+        ::close(fd);
+        if (addr == MAP_FAILED) return false;
+        madvise(addr, st.st_size, MADV_WILLNEED);
+        data = (const uint8_t *) addr;
+        size = st.st_size;
+        return true;
+#else
+        FILE *f = fopen(path.c_str(), "rb");
+        if (!f) return false;
+        uint8_t buf[1 << 16];
+        size_t n;
+        while ((n = fread(buf, 1, sizeof(buf), f)) > 0) {
+            owned.insert(owned.end(), buf, buf + n);
+        }
+        fclose(f);
+        data = owned.data();
+        size = owned.size();
+        return size > 0;
+#endif
+    }
+
+    ~mapped_file() {
+#ifndef _WIN32
+        if (data != nullptr) munmap((void *) data, size);
+#endif
+    }
+
+#ifdef _WIN32
+    std::vector<uint8_t> owned;
+#endif
+};
+
+std::vector<uint8_t> encode_record(uint32_t keep, const std::vector<llama_token> &tokens, const std::vector<uint8_t> &state) {
+    std::vector<uint8_t> out;
+    out.reserve(20 + tokens.size() * sizeof(llama_token) + state.size());
+    put(out, RECORD_MAGIC);
+    put(out, keep);
+    put(out, (uint32_t) tokens.size());
+    const uint8_t *t = (const uint8_t *) tokens.data();
+    out.insert(out.end(), t, t + tokens.size() * sizeof(llama_token));
+    put(out, (uint64_t) state.size());
+    out.insert(out.end(), state.begin(), state.end());
+    return out;
+}
+
+} // namespace
+
+struct cactus_session_writer {
+    struct job {
+        bool rewrite;
+        std::vector<uint8_t> bytes;
+    };
+
+    std::string path;
+
+    // Lane side: what the file will hold once every queued job has landed
+    std::vector<llama_token> tokens;
+    size_t file_bytes = 0;
+
+    std::mutex mutex;
+    std::condition_variable cv;
+    std::deque<job> queue;
+    bool writing = false;
+    bool failed = false;
+    bool stop = false;
+    std::thread thread;
+
+    explicit cactus_session_writer(const std::string &path_) : path(path_) {
+        thread = std::thread([this]() { run(); });
+    }
+
+    ~cactus_session_writer() {
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            stop = true;
+        }
+        cv.notify_all();
+        thread.join();
+    }
+
+    void enqueue(job &&j) {
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            queue.push_back(std::move(j));
+        }
+        cv.notify_all();
+    }
+
+    void flush() {
+        std::unique_lock<std::mutex> lock(mutex);
+        cv.wait(lock, [this]() { return queue.empty() && !writing; });
+    }
+
+    // A failed append may leave a torn record, so the next checkpoint rewrites the file
+    bool take_failure() {
+        std::lock_guard<std::mutex> lock(mutex);
+        bool was_failed = failed;
+        failed = false;
+        return was_failed;
+    }
+
+private:
+    void run() {
+        std::unique_lock<std::mutex> lock(mutex);
+        while (true) {
+            cv.wait(lock, [this]() { return stop || !queue.empty(); });
+            if (queue.empty()) {
+                return;
+            }
+            job j = std::move(queue.front());
+            queue.pop_front();
+            writing = true;
+            lock.unlock();
+            bool ok = j.rewrite ? rewrite(j.bytes) : append(j.bytes);
+            lock.lock();
+            writing = false;
+            if (!ok) {
+                failed = true;
+                LOG_ERROR("Failed to write session checkpoint %s", path.c_str());
+            }
+            cv.notify_all();
+        }
+    }
+
+    bool append(const std::vector<uint8_t> &bytes) {
+        FILE *f = fopen(path.c_str(), "ab");
+        if (!f) return false;
+        bool ok = fwrite(bytes.data(), 1, bytes.size(), f) == bytes.size();
+        ok = fflush(f) == 0 && ok;
+        return fclose(f) == 0 && ok;
+    }
+
+    bool rewrite(const std::vector<uint8_t> &bytes) {
+        const std::string tmp = path + ".tmp";
+        FILE *f = fopen(tmp.c_str(), "wb");
+        if (!f) return false;
+        const uint32_t header[2] = { SESSION_MAGIC, SESSION_VERSION };
+        bool ok = fwrite(header, sizeof(header), 1, f) == 1;
+        ok = ok && fwrite(bytes.data(), 1, bytes.size(), f) == bytes.size();
+        ok = fflush(f) == 0 && ok;
+        ok = fclose(f) == 0 && ok;
+        if (!ok || rename(tmp.c_str(), path.c_str()) != 0) {
+            remove(tmp.c_str());
+            return false;
+        }
+        return true;
+    }
+};
+
+cactus_session_writer *cactus_context::sessionWriterFor(const std::string &path) {
+    if (session_writer != nullptr && session_writer->path != path) {
+        releaseSessionWriter();
+    }
+    if (session_writer == nullptr) {
+        session_writer = new cactus_session_writer(path);
+    }
+    return session_writer;
+}
+
+int cactus_context::checkpointSession(const std::string &path) {
+    if (is_predicting || isParallelEnabled()) {
+        LOG_ERROR("Cannot checkpoint while predicting or with parallel sequences");
+        return -1;
+    }
+    if (kv_tokens.size() != n_past) {
+        LOG_ERROR("Cannot checkpoint a KV cache built from media prompts");
+        return -1;
+    }
+
+    cactus_session_writer *writer = sessionWriterFor(path);
+    bool rewrite = writer->take_failure() || writer->file_bytes == 0;
+    size_t keep = rewrite ? 0 : common_part(writer->tokens, kv_tokens);
+    if (!rewrite && keep == kv_tokens.size() && keep == writer->tokens.size()) {
+        return (int) kv_tokens.size();
+    }
+
+    const size_t size = llama_state_seq_get_size(ctx, 0);
+    std::vector<uint8_t> state(size);
+    if (llama_state_seq_get_data(ctx, state.data(), size, 0) != size) {
+        LOG_ERROR("Failed to copy sequence state");
+        return -1;
+    }
+
+    std::vector<uint8_t> record;
+    kv_seq_view view;
+    if (!rewrite && keep > 0 && parse_seq_state(state.data(), state.size(), view)) {
+        kv_seq_part delta{&view, {}};
+        for (uint32_t i = 0; i < view.n_cells; i++) {
+            if (view.pos(i) >= (llama_pos) keep) delta.cells.push_back(i);
+        }
+        std::vector<llama_token> added(kv_tokens.begin() + keep, kv_tokens.end());
+        record = encode_record(keep, added, build_seq_state({delta}));
+        // Compact once replaying the log would cost more than twice the live state
+        rewrite = writer->file_bytes + record.size() > 2 * (state.size() + 8 + kv_tokens.size() * sizeof(llama_token));
+    } else {
+        rewrite = true;
+    }
+    if (rewrite) {
+        record = encode_record(0, kv_tokens, state);
+        writer->file_bytes = 8;
+    }
+
+    writer->file_bytes += record.size();
+    writer->tokens = kv_tokens;
+    writer->enqueue({rewrite, std::move(record)});
+    return (int) kv_tokens.size();
+}
+
+int cactus_context::restoreSession(const std::string &path) {
+    if (is_predicting || isParallelEnabled()) {
+        LOG_ERROR("Cannot restore while predicting or with parallel sequences");
+        return -1;
+    }
+    if (session_writer != nullptr && session_writer->path == path) {
+        session_writer->flush();
+    }
+
+    mapped_file file;
+    if (!file.open(path)) {
+        LOG_ERROR("Failed to open session checkpoint %s", path.c_str());
+        return -1;
+    }
+
+    byte_reader in{file.data, file.data + file.size};
+    uint32_t magic = 0, version = 0;
+    if (!in.read(magic) || !in.read(version) || magic != SESSION_MAGIC || version != SESSION_VERSION) {
+        LOG_ERROR("Not a session checkpoint: %s", path.c_str());
+        return -1;
+    }
+
+    std::vector<llama_token> tokens;
+    std::vector<kv_seq_view> views;
+    std::vector<uint32_t> keeps;
+    const uint8_t *first_state = nullptr;
+    uint64_t first_state_size = 0;
+    // Full records of caches whose layout is not parsed are restored as is
+    const uint8_t *raw = nullptr;
+    uint64_t raw_size = 0;
+    size_t valid_bytes = 8;
+    while (in.cur < in.end) {
+        uint32_t rec_magic = 0, keep = 0, n_tokens = 0;
+        uint64_t state_size = 0;
+        const uint8_t *tok = nullptr;
+        const uint8_t *state = nullptr;
+        if (!in.read(rec_magic) || rec_magic != RECORD_MAGIC || !in.read(keep) || !in.read(n_tokens) ||
+            !(tok = in.take((uint64_t) n_tokens * sizeof(llama_token))) || !in.read(state_size) ||
+            !(state = in.take(state_size)) || keep > tokens.size()) {
+            LOG_WARNING("Ignoring incomplete session checkpoint record at byte %zu", valid_bytes);
+            break;
+        }
+        kv_seq_view view;
+        if (keep == 0) {
+            views.clear();
+            keeps.clear();
+            raw = nullptr;
+        }
+        if (!parse_seq_state(state, state_size, view)) {
+            if (keep != 0) {
+                LOG_WARNING("Ignoring unreadable session checkpoint record at byte %zu", valid_bytes);
+                break;
+            }
+            raw = state;
+            raw_size = state_size;
+        } else if (raw != nullptr || (!views.empty() && !same_layout(views.front(), view))) {
+            LOG_WARNING("Ignoring mismatched session checkpoint record at byte %zu", valid_bytes);
+            break;
+        } else {
+            if (views.empty()) {
+                first_state = state;
+                first_state_size = state_size;
+            }
+            views.push_back(std::move(view));
+            keeps.push_back(keep);
+        }
+        tokens.resize(keep);
+        const llama_token *t = (const llama_token *) tok;
+        tokens.insert(tokens.end(), t, t + n_tokens);
+        valid_bytes = in.cur - file.data;
+    }
+    if (views.empty() && raw == nullptr) {
+        LOG_ERROR("Session checkpoint has no complete records: %s", path.c_str());
+        return -1;
+    }
+
+    // A lone full record is restored straight from the mapping
+    const uint8_t *state = raw != nullptr ? raw : first_state;
+    size_t state_size = raw != nullptr ? raw_size : first_state_size;
+    std::vector<uint8_t> merged;
+    if (raw == nullptr && views.size() > 1) {
+        // Each record's cells survive up to the smallest keep of the records after it
+        std::vector<kv_seq_part> parts(views.size());
+        llama_pos bound = std::numeric_limits<llama_pos>::max();
+        for (size_t r = views.size(); r-- > 0;) {
+            parts[r].view = &views[r];
+            for (uint32_t i = 0; i < views[r].n_cells; i++) {
+                if (views[r].pos(i) < bound) parts[r].cells.push_back(i);
+            }
+            bound = std::min(bound, (llama_pos) keeps[r]);
+        }
+        merged = build_seq_state(parts);
+        state = merged.data();
+        state_size = merged.size();
+    }
+
+    llama_kv_self_seq_rm(ctx, 0, -1, -1);
+    kv_tokens.clear();
+    prefix_snapshot_pending = false;
+    if (llama_state_seq_set_data(ctx, state, state_size, 0) == 0) {
+        LOG_ERROR("Failed to restore session checkpoint %s", path.c_str());
+        embd.clear();
+        n_past = 0;
+        return -1;
+    }
+    embd = tokens;
+    n_past = tokens.size();
+    kv_tokens = tokens;
+
+    // Later checkpoints to the same file append to what was loaded
+    cactus_session_writer *writer = sessionWriterFor(path);
+    writer->tokens = tokens;
+    writer->file_bytes = valid_bytes == file.size ? file.size : 0;
+    return (int) tokens.size();
+}
+
+int cactus_context::loadSession(const std::string &path) {
+    if (is_predicting || isParallelEnabled()) {
+        LOG_ERROR("Cannot load a session while predicting or with parallel sequences");
+        return -1;
+    }
+    mapped_file file;
+    if (!file.open(path)) {
+        LOG_ERROR("Failed to open session file %s", path.c_str());
+        return -1;
+    }
+
+    // Layout of llama_state_save_file: magic, version, token count, tokens, context state
+    byte_reader in{file.data, file.data + file.size};
+    uint32_t magic = 0, version = 0, n_tokens = 0;
+    const uint8_t *tok = nullptr;
+    if (!in.read(magic) || !in.read(version) || magic != LLAMA_SESSION_MAGIC || version != LLAMA_SESSION_VERSION) {
+        LOG_ERROR("Unknown session file format: %s", path.c_str());
+        return -1;
+    }
+    if (!in.read(n_tokens) || n_tokens > (uint32_t) params.n_ctx ||
+        !(tok = in.take((uint64_t) n_tokens * sizeof(llama_token)))) {
+        LOG_ERROR("Invalid token count in session file: %s", path.c_str());
+        return -1;
+    }
+
+    kv_tokens.clear();
+    prefix_snapshot_pending = false;
+    const size_t state_size = in.end - in.cur;
+    if (llama_state_set_data(ctx, in.cur, state_size) != state_size) {
+        LOG_ERROR("Failed to restore session file %s", path.c_str());
+        embd.clear();
+        return -1;
+    }
+    const llama_token *t = (const llama_token *) tok;
+    embd.assign(t, t + n_tokens);
+    // Saved sessions may end with a sampled token that was never decoded
+    const size_t n_kv = (size_t) std::max(0, (int) llama_kv_self_seq_pos_max(ctx, 0) + 1);
+    kv_tokens.assign(embd.begin(), embd.begin() + std::min(embd.size(), n_kv));
+    return (int) n_tokens;
+}
+
+int cactus_context::saveSession(const std::string &path, int size) {
+    if (is_predicting || isParallelEnabled()) {
+        LOG_ERROR("Cannot save a session while predicting or with parallel sequences");
+        return -1;
+    }
+    const int n_tokens = embd.size();
+    const int save_size = size > 0 && size <= n_tokens ? size : n_tokens;
+    if (!llama_state_save_file(ctx, path.c_str(), embd.data(), save_size)) {
+        LOG_ERROR("Failed to save session file %s", path.c_str());
+        return -1;
+    }
+    return n_tokens;
+}
+
+void cactus_context::flushSession() {
+    if (session_writer != nullptr) {
+        session_writer->flush();
+    }
+}
+
+void cactus_context::releaseSessionWriter() {
+    // Joins the writer thread after the queued checkpoints are written
+    delete session_writer;
+    session_writer = nullptr;
+}
+
+} // namespace cactus
@@ -4,8 +4,9 @@
 
 namespace cactus {
 
-cactus_tokenize_result cactus_context::tokenize(const std::string &text, const std::vector<std::string> &media_paths) {
-    if (media_paths.size() > 0) {
+cactus_tokenize_result cactus_context::tokenize(const std::string &text, const std::vector<std::string> &media_paths, const std::vector<media_buffer> &media_buffers) {
+    const size_t n_media = media_paths.size() + media_buffers.size();
+    if (n_media > 0) {
         if (!isMultimodalEnabled()) {
             throw std::runtime_error("Multimodal is not enabled but media paths are provided");
         }
@@ -25,7 +26,7 @@ cactus_tokenize_result cactus_context::tokenize(const std::string &text, const s
         
         size_t total_token_count = text_tokens.size();
         
-        for (size_t i = 0; i < media_paths.size(); ++i) {
+        for (size_t i = 0; i < n_media; ++i) {
             chunk_pos_media.push_back(total_token_count);
             
             for (int j = 0; j < 256; ++j) {
@@ -414,25 +414,35 @@ std::vector<llama_token> cactus_context::getAudioCompletionGuideTokens(const std
     return result;
 }
 
+std::vector<llama_token> cactus_context::filterAudioTokens(const std::vector<llama_token> &tokens) const {
+    std::vector<llama_token> tokens_audio;
+    tts_type type = getTTSType();
+    if (type != TTS_OUTETTS_V0_3 && type != TTS_OUTETTS_V0_2) {
+        return tokens_audio;
+    }
+    for (llama_token t : tokens) {
+        if (t >= 151672 && t <= 155772) {
+            tokens_audio.push_back(t);
+        }
+    }
+    return tokens_audio;
+}
+
 std::vector<float> cactus_context::decodeAudioTokens(const std::vector<llama_token> &tokens) {
     if (!isVocoderEnabled()) {
         throw std::runtime_error("Vocoder is not enabled but audio decoding is requested");
     }
     
-    std::vector<llama_token> tokens_audio = tokens;
     tts_type type = getTTSType();
-    
-    if (type == TTS_OUTETTS_V0_3 || type == TTS_OUTETTS_V0_2) {
-        tokens_audio.erase(std::remove_if(tokens_audio.begin(), tokens_audio.end(), 
-            [](llama_token t) { return t < 151672 || t > 155772; }), tokens_audio.end());
-        
-        for (auto & token : tokens_audio) {
-            token -= 151672;
-        }
-    } else {
+    if (type != TTS_OUTETTS_V0_3 && type != TTS_OUTETTS_V0_2) {
         LOG_ERROR("Unsupported audio token type");
         return std::vector<float>();
     }
+
+    std::vector<llama_token> tokens_audio = filterAudioTokens(tokens);
+    for (auto & token : tokens_audio) {
+        token -= 151672;
+    }
     
     const int n_codes = tokens_audio.size();
     if (n_codes == 0) {
@@ -316,6 +316,28 @@ bool lm_gguf_read_emplace_helper(const struct lm_gguf_reader & gr, std::vector<s
     return true;
 }
 
+// long is 32 bits on 32-bit ABIs, so fseek/ftell cannot reach regions that start
+// past 2 GB; there the 64-bit variants need API 24
+static int lm_gguf_fseek(FILE * file, uint64_t offset) {
+#if defined(_WIN32)
+    return _fseeki64(file, (__int64) offset, SEEK_SET);
+#elif defined(__ANDROID__) && !defined(__LP64__) && __ANDROID_API__ >= 24
+    return fseeko64(file, (off64_t) offset, SEEK_SET);
+#else
+    return fseeko(file, (off_t) offset, SEEK_SET);
+#endif
+}
+
+static int64_t lm_gguf_ftell(FILE * file) {
+#if defined(_WIN32)
+    return _ftelli64(file);
+#elif defined(__ANDROID__) && !defined(__LP64__) && __ANDROID_API__ >= 24
+    return ftello64(file);
+#else
+    return ftello(file);
+#endif
+}
+
 struct lm_gguf_context * lm_gguf_init_from_file_impl(FILE * file, struct lm_gguf_init_params params) {
     const struct lm_gguf_reader gr(file);
     struct lm_gguf_context * ctx = new lm_gguf_context;
@@ -589,14 +611,15 @@ struct lm_gguf_context * lm_gguf_init_from_file_impl(FILE * file, struct lm_gguf
     LM_GGML_ASSERT(int64_t(ctx->info.size()) == n_tensors);
 
     // we require the data section to be aligned, so take into account any padding
-    if (fseek(file, LM_GGML_PAD(ftell(file), ctx->alignment), SEEK_SET) != 0) {
+    const int64_t header_end = lm_gguf_ftell(file);
+    if (header_end < 0 || lm_gguf_fseek(file, LM_GGML_PAD((uint64_t) header_end, ctx->alignment)) != 0) {
         LM_GGML_LOG_ERROR("%s: failed to seek to beginning of data section\n", __func__);
         lm_gguf_free(ctx);
         return nullptr;
     }
 
     // store the current file offset - this is where the data section starts
-    ctx->offset = ftell(file);
+    ctx->offset = lm_gguf_ftell(file);
 
     // compute the total size of the data section, taking into account the alignment
     {
@@ -715,6 +738,37 @@ struct lm_gguf_context * lm_gguf_init_from_file(const char * fname, struct lm_gg
     return result;
 }
 
+struct lm_gguf_context * lm_gguf_init_from_file_region(const char * fname, size_t offset, struct lm_gguf_init_params params) {
+    FILE * file = lm_ggml_fopen(fname, "rb");
+
+    if (!file) {
+        LM_GGML_LOG_ERROR("%s: failed to open GGUF file '%s'\n", __func__, fname);
+        return nullptr;
+    }
+
+    if (lm_gguf_fseek(file, offset) != 0) {
+        LM_GGML_LOG_ERROR("%s: failed to seek to %zu in '%s'\n", __func__, offset, fname);
+        fclose(file);
+        return nullptr;
+    }
+
+    struct lm_gguf_context * result = lm_gguf_init_from_file_impl(file, params);
+    fclose(file);
+    if (result == nullptr) {
+        return nullptr;
+    }
+
+    // the data section is padded relative to the start of the file, which only
+    // matches the padding relative to the region when the region is aligned
+    if (offset % result->alignment != 0) {
+        LM_GGML_LOG_ERROR("%s: offset %zu in '%s' is not aligned to %zu bytes\n", __func__, offset, fname, result->alignment);
+        lm_gguf_free(result);
+        return nullptr;
+    }
+    result->offset -= offset;
+    return result;
+}
+
 void lm_gguf_free(struct lm_gguf_context * ctx) {
     if (ctx == nullptr) {
         return;
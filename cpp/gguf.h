@@ -78,6 +78,8 @@ extern "C" {
 
     LM_GGML_API struct lm_gguf_context * lm_gguf_init_empty(void);
     LM_GGML_API struct lm_gguf_context * lm_gguf_init_from_file(const char * fname, struct lm_gguf_init_params params);
+    // GGUF stored at `offset` inside a larger file; data offsets are relative to `offset`
+    LM_GGML_API struct lm_gguf_context * lm_gguf_init_from_file_region(const char * fname, size_t offset, struct lm_gguf_init_params params);
     //LM_GGML_API struct lm_gguf_context * lm_gguf_init_from_buffer(..);
 
     LM_GGML_API void lm_gguf_free(struct lm_gguf_context * ctx);
@@ -169,12 +169,16 @@ struct llama_file::impl {
         seek(0, SEEK_SET);
     }
 
+    // long is 32 bits on 32-bit ABIs, so fseek/ftell cannot reach past 2 GB;
+    // there the 64-bit variants need API 24
     size_t tell() const {
 // TODO: this ifdef is never true?
 #ifdef _WIN32
         __int64 ret = _ftelli64(fp);
+#elif defined(__ANDROID__) && !defined(__LP64__) && __ANDROID_API__ >= 24
+        off64_t ret = ftello64(fp);
 #else
-        long ret = std::ftell(fp);
+        off_t ret = ftello(fp);
 #endif
         if (ret == -1) {
             throw std::runtime_error(format("ftell error: %s", strerror(errno)));
@@ -187,8 +191,10 @@ struct llama_file::impl {
 // TODO: this ifdef is never true?
 #ifdef _WIN32
         int ret = _fseeki64(fp, (__int64) offset, whence);
+#elif defined(__ANDROID__) && !defined(__LP64__) && __ANDROID_API__ >= 24
+        int ret = fseeko64(fp, (off64_t) offset, whence);
 #else
-        int ret = std::fseek(fp, (long) offset, whence);
+        int ret = fseeko(fp, (off_t) offset, whence);
 #endif
         if (ret != 0) {
             throw std::runtime_error(format("seek error: %s", strerror(errno)));
@@ -241,11 +247,24 @@ struct llama_file::impl {
     size_t size;
 };
 
-llama_file::llama_file(const char * fname, const char * mode) : pimpl(std::make_unique<impl>(fname, mode)) {}
+llama_file::llama_file(const char * fname, const char * mode) : pimpl(std::make_unique<impl>(fname, mode)) {
+    length = pimpl->size;
+}
+
+llama_file::llama_file(const char * fname, const char * mode, size_t offset, size_t size) : pimpl(std::make_unique<impl>(fname, mode)) {
+    if (offset > pimpl->size || size > pimpl->size - offset) {
+        throw std::runtime_error(format("region %zu+%zu is outside of %s (%zu bytes)", offset, size, fname, pimpl->size));
+    }
+    base = offset;
+    length = size;
+    pimpl->seek(base, SEEK_SET);
+}
+
 llama_file::~llama_file() = default;
 
-size_t llama_file::tell() const { return pimpl->tell(); }
-size_t llama_file::size() const { return pimpl->size; }
+size_t llama_file::tell() const { return pimpl->tell() - base; }
+size_t llama_file::size() const { return length; }
+size_t llama_file::offset() const { return base; }
 
 int llama_file::file_id() const {
 #ifdef _WIN32
@@ -259,7 +278,15 @@ int llama_file::file_id() const {
 #endif
 }
 
-void llama_file::seek(size_t offset, int whence) const { pimpl->seek(offset, whence); }
+void llama_file::seek(size_t offset, int whence) const {
+    if (whence == SEEK_SET) {
+        pimpl->seek(base + offset, SEEK_SET);
+    } else if (whence == SEEK_END) {
+        pimpl->seek(base + length + offset, SEEK_SET);
+    } else {
+        pimpl->seek(offset, whence);
+    }
+}
 void llama_file::read_raw(void * ptr, size_t len) const { pimpl->read_raw(ptr, len); }
 
 uint32_t llama_file::read_u32() const { return pimpl->read_u32(); }
@@ -273,37 +300,47 @@ struct llama_mmap::impl {
 #ifdef _POSIX_MAPPED_FILES
     std::vector<std::pair<size_t, size_t>> mapped_fragments;
 
+    // a view that does not start on a page boundary is mapped from the page before it
+    size_t page_delta = 0;
+
     impl(struct llama_file * file, size_t prefetch, bool numa) {
         size = file->size();
         int fd = file->file_id();
         int flags = MAP_SHARED;
         if (numa) { prefetch = 0; }
 #ifdef __linux__
-        if (posix_fadvise(fd, 0, 0, POSIX_FADV_SEQUENTIAL)) {
+        if (posix_fadvise(fd, file->offset(), file->size(), POSIX_FADV_SEQUENTIAL)) {
             LLAMA_LOG_WARN("warning: posix_fadvise(.., POSIX_FADV_SEQUENTIAL) failed: %s\n",
                     strerror(errno));
         }
         if (prefetch) { flags |= MAP_POPULATE; }
 #endif
-        addr = mmap(NULL, file->size(), PROT_READ, flags, fd, 0);
-        if (addr == MAP_FAILED) {
+        page_delta = file->offset() % sysconf(_SC_PAGESIZE);
+#if defined(__ANDROID__) && !defined(__LP64__)
+        // off_t is 32 bits here, which cannot address regions past 2 GB
+        void * base = mmap64(NULL, page_delta + file->size(), PROT_READ, flags, fd, (off64_t) (file->offset() - page_delta));
+#else
+        void * base = mmap(NULL, page_delta + file->size(), PROT_READ, flags, fd, file->offset() - page_delta);
+#endif
+        if (base == MAP_FAILED) {
             throw std::runtime_error(format("mmap failed: %s", strerror(errno)));
         }
+        addr = (uint8_t *) base + page_delta;
 
         if (prefetch > 0) {
-            if (madvise(addr, std::min(file->size(), prefetch), MADV_WILLNEED)) {
+            if (madvise(base, page_delta + std::min(file->size(), prefetch), MADV_WILLNEED)) {
                 fprintf(stderr, "warning: madvise(.., MADV_WILLNEED) failed: %s\n",
                         strerror(errno));
             }
         }
         if (numa) {
-            if (madvise(addr, file->size(), MADV_RANDOM)) {
+            if (madvise(base, page_delta + file->size(), MADV_RANDOM)) {
                 fprintf(stderr, "warning: madvise(.., MADV_RANDOM) failed: %s\n",
                         strerror(errno));
             }
         }
 
-        mapped_fragments.emplace_back(0, file->size());
+        mapped_fragments.emplace_back(0, page_delta + file->size());
     }
 
     static void align_range(size_t * first, size_t * last, size_t page_size) {
@@ -319,6 +356,9 @@ struct llama_mmap::impl {
     }
 
     void unmap_fragment(size_t first, size_t last) {
+        // fragments are tracked relative to the start of the mapping, not of the view
+        first += page_delta;
+        last += page_delta;
         int page_size = sysconf(_SC_PAGESIZE);
         align_range(&first, &last, page_size);
         size_t len = last - first;
@@ -331,7 +371,7 @@ struct llama_mmap::impl {
         LM_GGML_ASSERT(last % page_size == 0);
         LM_GGML_ASSERT(last > first);
 
-        void * next_page_start = (uint8_t *) addr + first;
+        void * next_page_start = (uint8_t *) addr - page_delta + first;
 
         if (munmap(next_page_start, len)) {
             LLAMA_LOG_WARN("warning: munmap failed: %s\n", strerror(errno));
@@ -356,7 +396,7 @@ struct llama_mmap::impl {
 
     ~impl() {
         for (const auto & frag : mapped_fragments) {
-            if (munmap((char *) addr + frag.first, frag.second - frag.first)) {
+            if (munmap((char *) addr - page_delta + frag.first, frag.second - frag.first)) {
                 LLAMA_LOG_WARN("warning: munmap failed: %s\n", strerror(errno));
             }
         }
@@ -366,6 +406,9 @@ struct llama_mmap::impl {
         LM_GGML_UNUSED(numa);
 
         size = file->size();
+        if (file->offset() != 0) {
+            throw std::runtime_error("mapping part of a file is not supported on Windows");
+        }
 
         HANDLE hFile = (HANDLE) _get_osfhandle(file->file_id());
 
@@ -14,10 +14,13 @@ using llama_mlocks = std::vector<std::unique_ptr<llama_mlock>>;
 
 struct llama_file {
     llama_file(const char * fname, const char * mode);
+    // read-only view of `size` bytes starting at `offset`, e.g. an uncompressed asset inside an APK
+    llama_file(const char * fname, const char * mode, size_t offset, size_t size);
     ~llama_file();
 
     size_t tell() const;
     size_t size() const;
+    size_t offset() const; // start of the view within the underlying file
 
     int file_id() const; // fileno overload
 
@@ -32,6 +35,8 @@ struct llama_file {
 private:
     struct impl;
     std::unique_ptr<impl> pimpl;
+    size_t base = 0;
+    size_t length;
 };
 
 struct llama_mmap {
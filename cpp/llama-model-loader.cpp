@@ -440,6 +440,26 @@ namespace GGUFMeta {
     template bool llama_model_loader::get_key_or_arr<std::array<int, 4>>(enum llm_kv kid, std::array<int, 4> & result, uint32_t n, bool required);
     template bool llama_model_loader::get_key_or_arr<std::array<uint32_t, 512>>(enum llm_kv kid, std::array<uint32_t, 512> & result, uint32_t n, bool required);
 
+// "<path>@<offset>+<size>" names a GGUF stored inside a larger file, such as
+// an uncompressed asset in an APK
+static bool llama_parse_file_region(const std::string & fname, std::string & path, size_t & offset, size_t & size) {
+    const size_t at = fname.rfind('@');
+    const size_t plus = fname.rfind('+');
+    if (at == std::string::npos || plus == std::string::npos || plus < at + 2 || plus + 1 == fname.size()) {
+        return false;
+    }
+    const std::string offset_str = fname.substr(at + 1, plus - at - 1);
+    const std::string size_str = fname.substr(plus + 1);
+    if (offset_str.find_first_not_of("0123456789") != std::string::npos ||
+        size_str.find_first_not_of("0123456789") != std::string::npos) {
+        return false;
+    }
+    path = fname.substr(0, at);
+    offset = std::stoull(offset_str);
+    size = std::stoull(size_str);
+    return true;
+}
+
 llama_model_loader::llama_model_loader(
         const std::string & fname,
         std::vector<std::string> & splits,
@@ -467,7 +487,16 @@ llama_model_loader::llama_model_loader(
         /*.ctx      = */ &ctx,
     };
 
-    meta.reset(lm_gguf_init_from_file(fname.c_str(), params));
+    std::string region_path;
+    size_t region_offset = 0;
+    size_t region_size = 0;
+    const bool is_region = llama_parse_file_region(fname, region_path, region_offset, region_size);
+
+    if (is_region) {
+        meta.reset(lm_gguf_init_from_file_region(region_path.c_str(), region_offset, params));
+    } else {
+        meta.reset(lm_gguf_init_from_file(fname.c_str(), params));
+    }
     if (!meta) {
         throw std::runtime_error(format("%s: failed to load model from %s", __func__, fname.c_str()));
     }
@@ -475,7 +504,11 @@ llama_model_loader::llama_model_loader(
     get_key(llm_kv(LLM_KV_GENERAL_ARCHITECTURE), arch_name, false);
     llm_kv = LLM_KV(llm_arch_from_string(arch_name));
 
-    files.emplace_back(new llama_file(fname.c_str(), "rb"));
+    if (is_region) {
+        files.emplace_back(new llama_file(region_path.c_str(), "rb", region_offset, region_size));
+    } else {
+        files.emplace_back(new llama_file(fname.c_str(), "rb"));
+    }
     contexts.emplace_back(ctx);
 
     // Save tensors data offset of the main file.
@@ -495,6 +528,9 @@ llama_model_loader::llama_model_loader(
     get_key(llm_kv(LLM_KV_SPLIT_COUNT), n_split, false);
 
     // Load additional GGML contexts
+    if (n_split > 1 && is_region) {
+        throw std::runtime_error(format("split models cannot be loaded from a file region: %s", fname.c_str()));
+    }
     if (n_split > 1) {
         // make sure the main file is loaded first
         uint16_t idx = 0;
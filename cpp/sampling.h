@@ -38,6 +38,11 @@ struct common_sampler;
 
 struct common_sampler * common_sampler_init(const struct llama_model * model, const struct common_params_sampling & params);
 
+// split form of common_sampler_init, so a parsed grammar can be cloned instead of parsed again
+// the returned grammar sampler is nullptr on a parse error; common_sampler_init takes ownership of grmr
+struct llama_sampler  * common_sampler_init_grammar(const struct llama_model * model, const struct common_params_sampling & params);
+struct common_sampler * common_sampler_init(const struct llama_model * model, const struct common_params_sampling & params, struct llama_sampler * grmr);
+
 void common_sampler_free(struct common_sampler * gsmpl);
 
 // if accept_grammar is true, the token is accepted both by the sampling chain and the grammar
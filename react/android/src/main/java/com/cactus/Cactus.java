@@ -5,7 +5,6 @@ import android.util.Log;
 import android.provider.Settings;
 import android.os.Build;
 import android.os.Handler;
-import android.os.AsyncTask;
 
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
@@ -17,53 +16,67 @@ import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.Arguments;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.PushbackInputStream;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Cactus implements LifecycleEventListener {
   public static final String NAME = "Cactus";
 
   private ReactApplicationContext reactContext;
-  private final ExecutorService singleThreadExecutor = Executors.newSingleThreadExecutor();
+  private final ContextScheduler scheduler = new ContextScheduler();
+  private final ModelInfoCache modelInfoCache;
+  private final PromptSessionCache promptSessionCache;
 
   public Cactus(ReactApplicationContext reactContext) {
     reactContext.addLifecycleEventListener(this);
     this.reactContext = reactContext;
+    this.modelInfoCache = new ModelInfoCache(new File(reactContext.getCacheDir(), "cactus-model-info.bin"), 64);
+    this.promptSessionCache = new PromptSessionCache(new File(reactContext.getCacheDir(), "cactus-prompt-sessions"), 256L << 20);
   }
 
-  private HashMap<AsyncTask, String> tasks = new HashMap<>();
+  private final TaskRegistry tasks = new TaskRegistry();
 
-  private HashMap<Integer, LlamaContext> contexts = new HashMap<>();
+  private final ConcurrentHashMap<Integer, LlamaContext> contexts = new ConcurrentHashMap<>();
 
-  public void toggleNativeLog(boolean enabled, Promise promise) {
-    new AsyncTask<Void, Void, Boolean>() {
-      private Exception exception;
+  private <T> void run(int contextId, String operation, Executor executor, Promise promise, CactusTask.Body<T> body) {
+    CactusTask<T> task = new CactusTask<T>(tasks, contextId, operation, promise, body);
+    tasks.add(task);
+    executor.execute(task);
+  }
 
-      @Override
-      protected Boolean doInBackground(Void... voids) {
-        try {
-          LlamaContext.toggleNativeLog(reactContext, enabled);
-          return true;
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
+  private <T> void run(int contextId, String operation, Promise promise, CactusTask.Body<T> body) {
+    run(contextId, operation, scheduler.lane(contextId), promise, body);
+  }
 
-      @Override
-      protected void onPostExecute(Boolean result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-      }
-    }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+  private LlamaContext requireContext(int contextId) throws Exception {
+    LlamaContext context = contexts.get(contextId);
+    if (context == null) {
+      throw new Exception("Context not found");
+    }
+    return context;
+  }
+
+  private LlamaContext requireIdleContext(int contextId) throws Exception {
+    LlamaContext context = requireContext(contextId);
+    if (context.isPredicting()) {
+      throw new Exception("Context is busy");
+    }
+    return context;
+  }
+
+  public void toggleNativeLog(boolean enabled, Promise promise) {
+    run(TaskRegistry.NO_CONTEXT, "toggleNativeLog", scheduler.shared(), promise, token -> {
+      LlamaContext.toggleNativeLog(reactContext, enabled);
+      return true;
+    });
   }
 
   private int llamaContextLimit = -1;
@@ -74,597 +87,265 @@ public class Cactus implements LifecycleEventListener {
   }
 
   public void modelInfo(final String model, final ReadableArray skip, final Promise promise) {
-    new AsyncTask<Void, Void, WritableMap>() {
-      private Exception exception;
-
-      @Override
-      protected WritableMap doInBackground(Void... voids) {
-        try {
-          String[] skipArray = new String[skip.size()];
-          for (int i = 0; i < skip.size(); i++) {
-            skipArray[i] = skip.getString(i);
-          }
-          return LlamaContext.modelInfo(model, skipArray);
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
+    run(TaskRegistry.NO_CONTEXT, "modelInfo", scheduler.shared(), promise, token -> {
+      String[] skipArray = new String[skip.size()];
+      for (int i = 0; i < skip.size(); i++) {
+        skipArray[i] = skip.getString(i);
       }
-
-      @Override
-      protected void onPostExecute(WritableMap result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
+      try {
+        return modelInfoCache.get(model, skipArray).toWritableMap();
+      } catch (IOException e) {
+        Log.w(NAME, "Failed to read model info: " + model, e);
+        return null;
       }
-    }.executeOnExecutor(singleThreadExecutor);
+    });
   }
 
   public void initContext(double id, final ReadableMap params, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, WritableMap>() {
-      private Exception exception;
-
-      @Override
-      protected WritableMap doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context != null) {
-            throw new Exception("Context already exists");
-          }
-          if (llamaContextLimit > -1 && contexts.size() >= llamaContextLimit) {
-            throw new Exception("Context limit reached");
-          }
-          LlamaContext llamaContext = new LlamaContext(contextId, reactContext, params);
-          if (llamaContext.getContext() == 0) {
-            throw new Exception("Failed to initialize context");
-          }
-          contexts.put(contextId, llamaContext);
-          WritableMap result = Arguments.createMap();
-          result.putBoolean("gpu", false);
-          result.putString("reasonNoGPU", "Currently not supported");
-          result.putMap("model", llamaContext.getModelDetails());
-          result.putString("androidLib", llamaContext.getLoadedLibrary());
-          return result;
-        } catch (Exception e) {
-          exception = e;
-          return null;
-        }
-      }
-
-      @Override
-      protected void onPostExecute(WritableMap result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
+    run(contextId, "initContext", promise, token -> {
+      LlamaContext context = contexts.get(contextId);
+      if (context != null) {
+        throw new Exception("Context already exists");
+      }
+      if (llamaContextLimit > -1 && contexts.size() >= llamaContextLimit) {
+        throw new Exception("Context limit reached");
+      }
+      LlamaContext llamaContext = new LlamaContext(contextId, reactContext, params);
+      if (llamaContext.getContext() == 0) {
+        throw new Exception("Failed to initialize context");
+      }
+      contexts.put(contextId, llamaContext);
+      if (params.hasKey("background_warmup") && params.getBoolean("background_warmup")) {
+        final boolean reportProgress = params.hasKey("use_progress_callback") && params.getBoolean("use_progress_callback");
+        // The page-in only reads the mapping, so it runs off the lane and never delays lane calls.
+        // The dummy decode does touch the context and is queued on the lane once the weights are in.
+        run(contextId, "warmup", scheduler.shared(), null, warmupToken -> {
+          if (!llamaContext.warmup(reportProgress) || contexts.get(contextId) != llamaContext) {
+            return false;
+          }
+          run(contextId, "warmup", null, decodeToken -> contexts.get(contextId) == llamaContext && llamaContext.warmupDecode(reportProgress));
+          return true;
+        });
       }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "initContext");
+      WritableMap result = Arguments.createMap();
+      result.putBoolean("gpu", false);
+      result.putString("reasonNoGPU", "Currently not supported");
+      result.putMap("model", llamaContext.getModelDetails());
+      result.putString("androidLib", llamaContext.getLoadedLibrary());
+      return result;
+    });
   }
 
   public void getFormattedChat(double id, final String messages, final String chatTemplate, final ReadableMap params, Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, Object>() {
-      private Exception exception;
-
-      @Override
-      protected Object doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          if (params.hasKey("jinja") && params.getBoolean("jinja")) {
-            ReadableMap result = context.getFormattedChatWithJinja(messages, chatTemplate, params);
-            if (result.hasKey("_error")) {
-              throw new Exception(result.getString("_error"));
-            }
-            return result;
-          }
-          return context.getFormattedChat(messages, chatTemplate);
-        } catch (Exception e) {
-          exception = e;
-          return null;
+    run(contextId, "getFormattedChat", promise, token -> {
+      LlamaContext context = requireContext(contextId);
+      if (params.hasKey("jinja") && params.getBoolean("jinja")) {
+        ReadableMap result = context.getFormattedChatWithJinja(messages, chatTemplate, params);
+        if (result.hasKey("_error")) {
+          throw new Exception(result.getString("_error"));
         }
+        return result;
       }
-
-      @Override
-      protected void onPostExecute(Object result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "getFormattedChat-" + contextId);
+      return context.getFormattedChat(messages, chatTemplate);
+    });
   }
 
   public void loadSession(double id, final String path, Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, WritableMap>() {
-      private Exception exception;
-
-      @Override
-      protected WritableMap doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          WritableMap result = context.loadSession(path);
-          return result;
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(WritableMap result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "loadSession-" + contextId);
+    run(contextId, "loadSession", promise, token -> requireIdleContext(contextId).loadSession(path));
   }
 
   public void saveSession(double id, final String path, double size, Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, Integer>() {
-      private Exception exception;
+    run(contextId, "saveSession", promise, token -> requireIdleContext(contextId).saveSession(path, (int) size));
+  }
 
-      @Override
-      protected Integer doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          Integer count = context.saveSession(path, (int) size);
-          return count;
-        } catch (Exception e) {
-          exception = e;
-        }
-        return -1;
-      }
+  public void prefillPrompt(double id, final String prompt, Promise promise) {
+    final int contextId = (int) id;
+    run(contextId, "prefillPrompt", promise, token -> requireIdleContext(contextId).prefillPrompt(prompt, promptSessionCache));
+  }
 
-      @Override
-      protected void onPostExecute(Integer result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "saveSession-" + contextId);
+  public void checkpointSession(double id, final String path, Promise promise) {
+    final int contextId = (int) id;
+    run(contextId, "checkpointSession", promise, token -> requireIdleContext(contextId).checkpointSession(path));
   }
 
-  public void completion(double id, final ReadableMap params, final Promise promise) {
-    Log.d(NAME, "BRIDGE: completion() method called with contextId=" + (int)id);
+  public void loadCheckpoint(double id, final String path, Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, WritableMap>() {
-      private Exception exception;
+    run(contextId, "loadCheckpoint", promise, token -> requireIdleContext(contextId).loadCheckpoint(path));
+  }
 
-      @Override
-      protected WritableMap doInBackground(Void... voids) {
-        Log.d(NAME, "⚡ BRIDGE: AsyncTask doInBackground starting...");
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            Log.e(NAME, "BRIDGE: Context not found for id=" + contextId);
-            throw new Exception("Context not found");
-          }
-          Log.d(NAME, "BRIDGE: Context found, checking if predicting...");
-          if (context.isPredicting()) {
-            Log.e(NAME, "BRIDGE: Context is busy (predicting)");
-            throw new Exception("Context is busy");
-          }
-          Log.d(NAME, "BRIDGE: About to call context.completion()...");
-          WritableMap result = context.completion(params);
-          Log.d(NAME, "BRIDGE: context.completion() returned successfully");
-          return result;
-        } catch (Exception e) {
-          Log.e(NAME, "BRIDGE: Exception in doInBackground: " + e.getMessage());
-          exception = e;
-        }
-        return null;
-      }
+  public void snapshotState(double id, Promise promise) {
+    final int contextId = (int) id;
+    run(contextId, "snapshotState", promise, token -> {
+      StateSnapshot snapshot = requireIdleContext(contextId).snapshotState();
+      WritableMap result = Arguments.createMap();
+      result.putInt("id", snapshot.id);
+      result.putInt("tokens", snapshot.tokenCount);
+      result.putDouble("size", snapshot.sizeBytes);
+      return result;
+    });
+  }
 
-      @Override
-      protected void onPostExecute(WritableMap result) {
-        Log.d(NAME, "BRIDGE: onPostExecute called");
-        if (exception != null) {
-          Log.e(NAME, "BRIDGE: Rejecting promise with exception: " + exception.getMessage());
-          promise.reject(exception);
-          return;
-        }
-        Log.d(NAME, "BRIDGE: Resolving promise with result");
-        promise.resolve(result);
-        tasks.remove(this);
-        Log.d(NAME, "BRIDGE: completion() finished successfully");
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    Log.d(NAME, "BRIDGE: AsyncTask queued for execution");
-    tasks.put(task, "completion-" + contextId);
+  public void restoreState(double id, double snapshotId, Promise promise) {
+    final int contextId = (int) id;
+    run(contextId, "restoreState", promise, token -> {
+      LlamaContext context = requireIdleContext(contextId);
+      return context.restoreState(context.getSnapshot((int) snapshotId));
+    });
   }
 
-  public void stopCompletion(double id, final Promise promise) {
+  public void releaseState(double id, double snapshotId, Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, Void>() {
-      private Exception exception;
+    run(contextId, "releaseState", promise, token -> {
+      LlamaContext context = requireContext(contextId);
+      context.releaseSnapshot(context.getSnapshot((int) snapshotId));
+      return null;
+    });
+  }
 
-      @Override
-      protected Void doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          context.stopCompletion();
-          AsyncTask completionTask = null;
-          for (AsyncTask task : tasks.keySet()) {
-            if (tasks.get(task).equals("completion-" + contextId)) {
-              task.get();
-              break;
-            }
-          }
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
+  public void completion(double id, final ReadableMap params, final Promise promise) {
+    Log.d(NAME, "BRIDGE: completion() method called with contextId=" + (int)id);
+    final int contextId = (int) id;
+    // Parallel contexts batch concurrent completions natively, so they skip the serial lane
+    LlamaContext target = contexts.get(contextId);
+    Executor executor = target != null && target.isParallel() ? scheduler.shared() : scheduler.lane(contextId);
+    run(contextId, "completion", executor, promise, token -> {
+      LlamaContext context = contexts.get(contextId);
+      if (context == null) {
+        Log.e(NAME, "BRIDGE: Context not found for id=" + contextId);
+        throw new Exception("Context not found");
+      }
+      if (!context.isParallel() && context.isPredicting()) {
+        Log.e(NAME, "BRIDGE: Context is busy (predicting)");
+        throw new Exception("Context is busy");
+      }
+      token.onCancel(context::stopCompletion);
+      Log.d(NAME, "BRIDGE: About to call context.completion()...");
+      WritableMap result = context.completion(params, token);
+      Log.d(NAME, "BRIDGE: context.completion() returned successfully");
+      return result;
+    });
+  }
 
-      @Override
-      protected void onPostExecute(Void result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
+  public void stopCompletion(double id, final Promise promise) {
+    final int contextId = (int) id;
+    LlamaContext context = contexts.get(contextId);
+    if (context == null) {
+      promise.reject(new Exception("Context not found"));
+      return;
+    }
+    // Flip the native flag from this thread; the decode loop exits within one step
+    context.stopCompletion();
+    List<CactusTask<?>> pending = new ArrayList<>(tasks.get(contextId, "completion"));
+    pending.addAll(tasks.get(contextId, "multimodalCompletion"));
+    final AtomicInteger remaining = new AtomicInteger(pending.size() + 1);
+    Runnable settle = () -> {
+      if (remaining.decrementAndGet() == 0) {
+        promise.resolve(null);
       }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "stopCompletion-" + contextId);
+    };
+    for (CactusTask<?> task : pending) {
+      task.cancel(false);
+      task.whenDone(settle);
+    }
+    settle.run();
   }
 
   public void tokenize(double id, final String text, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, WritableMap>() {
-      private Exception exception;
-
-      @Override
-      protected WritableMap doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.tokenize(text);
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(WritableMap result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "tokenize-" + contextId);
+    run(contextId, "tokenize", promise, token -> requireContext(contextId).tokenize(text));
   }
 
   public void tokenize(double id, final String text, final ReadableArray mediaPaths, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, WritableMap>() {
-      private Exception exception;
-
-      @Override
-      protected WritableMap doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.tokenize(text, mediaPaths);
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(WritableMap result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "tokenize-" + contextId);
+    run(contextId, "tokenize", promise, token -> requireContext(contextId).tokenize(text, mediaPaths));
   }
 
   public void detokenize(double id, final ReadableArray tokens, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, String>() {
-      private Exception exception;
-
-      @Override
-      protected String doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.detokenize(tokens);
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(String result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "detokenize-" + contextId);
+    run(contextId, "detokenize", promise, token -> requireContext(contextId).detokenize(tokens));
   }
 
   public void embedding(double id, final String text, final ReadableMap params, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, WritableMap>() {
-      private Exception exception;
+    run(contextId, "embedding", promise, token -> requireIdleContext(contextId).getEmbedding(text, params));
+  }
 
-      @Override
-      protected WritableMap doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.getEmbedding(text, params);
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
+  public void embeddingBatch(double id, final ReadableArray texts, final ReadableMap params, final Promise promise) {
+    final int contextId = (int) id;
+    run(contextId, "embeddingBatch", promise, token -> requireIdleContext(contextId).getEmbeddingBatch(texts, params));
+  }
 
-      @Override
-      protected void onPostExecute(WritableMap result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "embedding-" + contextId);
+  public void getEmbeddingCacheStats(double id, final Promise promise) {
+    final int contextId = (int) id;
+    run(contextId, "getEmbeddingCacheStats", scheduler.shared(), promise, token -> requireContext(contextId).getEmbeddingCacheStats());
   }
 
   public void bench(double id, final double pp, final double tg, final double pl, final double nr, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, String>() {
-      private Exception exception;
-
-      @Override
-      protected String doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.bench((int) pp, (int) tg, (int) pl, (int) nr);
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(String result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "bench-" + contextId);
+    run(contextId, "bench", promise, token -> requireIdleContext(contextId).bench((int) pp, (int) tg, (int) pl, (int) nr));
   }
 
   public void applyLoraAdapters(double id, final ReadableArray loraAdapters, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, Void>() {
-      private Exception exception;
-
-      @Override
-      protected Void doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          if (context.isPredicting()) {
-            throw new Exception("Context is busy");
-          }
-          context.applyLoraAdapters(loraAdapters);
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
+    run(contextId, "applyLoraAdapters", promise, token -> {
+      LlamaContext context = requireContext(contextId);
+      if (context.isPredicting()) {
+        throw new Exception("Context is busy");
       }
-
-      @Override
-      protected void onPostExecute(Void result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "applyLoraAdapters-" + contextId);
+      context.applyLoraAdapters(loraAdapters);
+      return null;
+    });
   }
 
   public void removeLoraAdapters(double id, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, Void>() {
-      private Exception exception;
-
-      @Override
-      protected Void doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          if (context.isPredicting()) {
-            throw new Exception("Context is busy");
-          }
-          context.removeLoraAdapters();
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(Void result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(null);
+    run(contextId, "removeLoraAdapters", promise, token -> {
+      LlamaContext context = requireContext(contextId);
+      if (context.isPredicting()) {
+        throw new Exception("Context is busy");
       }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "removeLoraAdapters-" + contextId);
+      context.removeLoraAdapters();
+      return null;
+    });
   }
 
   public void getLoadedLoraAdapters(double id, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, ReadableArray>() {
-      private Exception exception;
-
-      @Override
-      protected ReadableArray doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.getLoadedLoraAdapters();
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(ReadableArray result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "getLoadedLoraAdapters-" + contextId);
+    run(contextId, "getLoadedLoraAdapters", promise, token -> requireContext(contextId).getLoadedLoraAdapters());
   }
 
   public void releaseContext(double id, Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, Void>() {
-      private Exception exception;
-
-      @Override
-      protected Void doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context " + id + " not found");
-          }
-          context.interruptLoad();
-          context.stopCompletion();
-          AsyncTask completionTask = null;
-          for (AsyncTask task : tasks.keySet()) {
-            if (tasks.get(task).equals("completion-" + contextId)) {
-              task.get();
-              break;
-            }
-          }
-          context.release();
-          contexts.remove(contextId);
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(Void result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(null);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "releaseContext-" + contextId);
+    LlamaContext pending = contexts.get(contextId);
+    if (pending != null) {
+      pending.interruptLoad();
+      pending.stopCompletion();
+    }
+    // Work queued earlier on this context's lane has finished by the time this runs,
+    // parallel completions run off the lane and are drained explicitly
+    run(contextId, "releaseContext", promise, token -> {
+      LlamaContext context = contexts.get(contextId);
+      if (context == null) {
+        throw new Exception("Context " + id + " not found");
+      }
+      tasks.awaitAll(contextId, "completion");
+      tasks.awaitAll(contextId, "warmup");
+      context.release();
+      contexts.remove(contextId);
+      scheduler.remove(contextId);
+      return null;
+    });
   }
 
   public void releaseAllContexts(Promise promise) {
-    AsyncTask task = new AsyncTask<Void, Void, Void>() {
-      private Exception exception;
-
-      @Override
-      protected Void doInBackground(Void... voids) {
-        try {
-          onHostDestroy();
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(Void result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(null);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "releaseAllContexts");
+    run(TaskRegistry.NO_CONTEXT, "releaseAllContexts", scheduler.shared(), promise, token -> {
+      onHostDestroy();
+      return null;
+    });
   }
 
   @Override
@@ -678,478 +359,113 @@ public class Cactus implements LifecycleEventListener {
   @Override
   public void onHostDestroy() {
     for (LlamaContext context : contexts.values()) {
+      context.interruptLoad();
       context.stopCompletion();
     }
-    for (AsyncTask task : tasks.keySet()) {
-      try {
-        task.get();
-      } catch (Exception e) {
-        Log.e(NAME, "Failed to wait for task", e);
-      }
-    }
-    tasks.clear();
-    for (LlamaContext context : contexts.values()) {
-      context.release();
+    tasks.awaitAll();
+    for (Integer contextId : contexts.keySet()) {
+      contexts.get(contextId).release();
+      scheduler.remove(contextId);
     }
     contexts.clear();
   }
 
-  public void initMultimodal(double id, final String mmprojPath, final boolean useGpu, final Promise promise) {
+  public void initMultimodal(double id, final String mmprojPath, final boolean useGpu, final int mediaCacheMb, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, Boolean>() {
-      private Exception exception;
-
-      @Override
-      protected Boolean doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.initMultimodal(mmprojPath, useGpu);
-        } catch (Exception e) {
-          exception = e;
-        }
-        return false;
-      }
-
-      @Override
-      protected void onPostExecute(Boolean result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "initMultimodal-" + contextId);
+    run(contextId, "initMultimodal", promise, token -> requireContext(contextId).initMultimodal(mmprojPath, useGpu, mediaCacheMb));
   }
 
   public void isMultimodalEnabled(double id, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, Boolean>() {
-      private Exception exception;
-
-      @Override
-      protected Boolean doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.isMultimodalEnabled();
-        } catch (Exception e) {
-          exception = e;
-        }
-        return false;
-      }
-
-      @Override
-      protected void onPostExecute(Boolean result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "isMultimodalEnabled-" + contextId);
+    run(contextId, "isMultimodalEnabled", promise, token -> requireContext(contextId).isMultimodalEnabled());
   }
 
   public void isMultimodalSupportVision(double id, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, Boolean>() {
-      private Exception exception;
-
-      @Override
-      protected Boolean doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.isMultimodalSupportVision();
-        } catch (Exception e) {
-          exception = e;
-        }
-        return false;
-      }
-
-      @Override
-      protected void onPostExecute(Boolean result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "isMultimodalSupportVision-" + contextId);
+    run(contextId, "isMultimodalSupportVision", promise, token -> requireContext(contextId).isMultimodalSupportVision());
   }
 
   public void isMultimodalSupportAudio(double id, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, Boolean>() {
-      private Exception exception;
-
-      @Override
-      protected Boolean doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.isMultimodalSupportAudio();
-        } catch (Exception e) {
-          exception = e;
-        }
-        return false;
-      }
-
-      @Override
-      protected void onPostExecute(Boolean result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "isMultimodalSupportAudio-" + contextId);
+    run(contextId, "isMultimodalSupportAudio", promise, token -> requireContext(contextId).isMultimodalSupportAudio());
   }
 
   public void releaseMultimodal(double id, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, Void>() {
-      private Exception exception;
-
-      @Override
-      protected Void doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          context.releaseMultimodal();
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(Void result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(null);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "releaseMultimodal-" + contextId);
+    run(contextId, "releaseMultimodal", promise, token -> {
+      requireContext(contextId).releaseMultimodal();
+      return null;
+    });
   }
 
   public void multimodalCompletion(double id, final String prompt, final ReadableArray mediaPaths, final ReadableMap params, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, WritableMap>() {
-      private Exception exception;
-
-      @Override
-      protected WritableMap doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          if (context.isPredicting()) {
-            throw new Exception("Context is busy");
-          }
-          return context.multimodalCompletion(prompt, mediaPaths, params);
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(WritableMap result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
+    run(contextId, "multimodalCompletion", promise, token -> {
+      LlamaContext context = requireContext(contextId);
+      if (context.isPredicting()) {
+        throw new Exception("Context is busy");
       }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "multimodalCompletion-" + contextId);
+      token.onCancel(context::stopCompletion);
+      return context.multimodalCompletion(prompt, mediaPaths, params, token);
+    });
   }
 
   public void initVocoder(double id, final String vocoderModelPath, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, Boolean>() {
-      private Exception exception;
-
-      @Override
-      protected Boolean doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.initVocoder(vocoderModelPath);
-        } catch (Exception e) {
-          exception = e;
-        }
-        return false;
-      }
-
-      @Override
-      protected void onPostExecute(Boolean result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "initVocoder-" + contextId);
+    run(contextId, "initVocoder", promise, token -> requireContext(contextId).initVocoder(vocoderModelPath));
   }
 
   public void isVocoderEnabled(double id, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, Boolean>() {
-      private Exception exception;
-
-      @Override
-      protected Boolean doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.isVocoderEnabled();
-        } catch (Exception e) {
-          exception = e;
-        }
-        return false;
-      }
-
-      @Override
-      protected void onPostExecute(Boolean result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "isVocoderEnabled-" + contextId);
+    run(contextId, "isVocoderEnabled", promise, token -> requireContext(contextId).isVocoderEnabled());
   }
 
   public void getTTSType(double id, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, Integer>() {
-      private Exception exception;
-
-      @Override
-      protected Integer doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.getTTSType();
-        } catch (Exception e) {
-          exception = e;
-        }
-        return -1;
-      }
-
-      @Override
-      protected void onPostExecute(Integer result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "getTTSType-" + contextId);
+    run(contextId, "getTTSType", promise, token -> requireContext(contextId).getTTSType());
   }
 
   public void getFormattedAudioCompletion(double id, final String speakerJsonStr, final String textToSpeak, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, String>() {
-      private Exception exception;
-
-      @Override
-      protected String doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.getFormattedAudioCompletion(speakerJsonStr, textToSpeak);
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(String result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "getFormattedAudioCompletion-" + contextId);
+    run(contextId, "getFormattedAudioCompletion", promise, token -> requireContext(contextId).getFormattedAudioCompletion(speakerJsonStr, textToSpeak));
   }
 
   public void getAudioCompletionGuideTokens(double id, final String textToSpeak, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, WritableArray>() {
-      private Exception exception;
-
-      @Override
-      protected WritableArray doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.getAudioCompletionGuideTokens(textToSpeak);
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(WritableArray result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "getAudioCompletionGuideTokens-" + contextId);
+    run(contextId, "getAudioCompletionGuideTokens", promise, token -> requireContext(contextId).getAudioCompletionGuideTokens(textToSpeak));
   }
 
   public void decodeAudioTokens(double id, final ReadableArray tokens, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, WritableArray>() {
-      private Exception exception;
-
-      @Override
-      protected WritableArray doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          return context.decodeAudioTokens(tokens);
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(WritableArray result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "decodeAudioTokens-" + contextId);
+    run(contextId, "decodeAudioTokens", promise, token -> requireContext(contextId).decodeAudioTokens(tokens));
   }
 
   @ReactMethod
   public void getDeviceInfo(double id, final Promise promise) {
-    AsyncTask task = new AsyncTask<Void, Void, WritableMap>() {
-      private Exception exception;
-
-      @Override
-      protected WritableMap doInBackground(Void... voids) {
-        try {
-          WritableMap deviceInfo = Arguments.createMap();
+    run(TaskRegistry.NO_CONTEXT, "getDeviceInfo", scheduler.shared(), promise, token -> {
+      WritableMap deviceInfo = Arguments.createMap();
 
-          String deviceId = Settings.Secure.getString(reactContext.getContentResolver(), Settings.Secure.ANDROID_ID);
+      String deviceId = Settings.Secure.getString(reactContext.getContentResolver(), Settings.Secure.ANDROID_ID);
 
-          String make = Build.MANUFACTURER;
-          String model = Build.MODEL;
-          String osVersion = Build.VERSION.RELEASE;
+      String make = Build.MANUFACTURER;
+      String model = Build.MODEL;
+      String osVersion = Build.VERSION.RELEASE;
 
-          deviceInfo.putString("deviceId", deviceId);
-          deviceInfo.putString("make", make);
-          deviceInfo.putString("model", model);
-          deviceInfo.putString("os", "Android");
-          deviceInfo.putString("osVersion", osVersion);
+      deviceInfo.putString("deviceId", deviceId);
+      deviceInfo.putString("make", make);
+      deviceInfo.putString("model", model);
+      deviceInfo.putString("os", "Android");
+      deviceInfo.putString("osVersion", osVersion);
 
-          return deviceInfo;
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(WritableMap result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(result);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
+      return deviceInfo;
+    });
   }
 
   public void releaseVocoder(double id, final Promise promise) {
     final int contextId = (int) id;
-    AsyncTask task = new AsyncTask<Void, Void, Void>() {
-      private Exception exception;
-
-      @Override
-      protected Void doInBackground(Void... voids) {
-        try {
-          LlamaContext context = contexts.get(contextId);
-          if (context == null) {
-            throw new Exception("Context not found");
-          }
-          context.releaseVocoder();
-        } catch (Exception e) {
-          exception = e;
-        }
-        return null;
-      }
-
-      @Override
-      protected void onPostExecute(Void result) {
-        if (exception != null) {
-          promise.reject(exception);
-          return;
-        }
-        promise.resolve(null);
-        tasks.remove(this);
-      }
-    }.executeOnExecutor(singleThreadExecutor);
-    tasks.put(task, "releaseVocoder-" + contextId);
+    run(contextId, "releaseVocoder", promise, token -> {
+      requireContext(contextId).releaseVocoder();
+      return null;
+    });
   }
 }
@@ -0,0 +1,128 @@
+package com.cactus;
+
+import com.facebook.react.bridge.Promise;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Future handle for one bridge call. Settles its promise and leaves the
+ * {@link TaskRegistry} when it completes, fails or is cancelled.
+ */
+class CactusTask<T> extends FutureTask<T> {
+  interface Body<T> {
+    T run(CancellationToken token) throws Exception;
+  }
+
+  private final TaskRegistry registry;
+  private final TaskRegistry.Key key;
+  private final CancellationToken token;
+  private final Promise promise;
+  private final AtomicBoolean started = new AtomicBoolean(false);
+  private volatile Thread runner;
+  private final CopyOnWriteArrayList<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+  private CactusTask(TaskRegistry registry, TaskRegistry.Key key, Promise promise, final CancellationToken token, final Body<T> body) {
+    super(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        return body.run(token);
+      }
+    });
+    this.registry = registry;
+    this.key = key;
+    this.token = token;
+    this.promise = promise;
+  }
+
+  CactusTask(TaskRegistry registry, int contextId, String operation, Promise promise, Body<T> body) {
+    this(registry, new TaskRegistry.Key(contextId, operation), promise, new CancellationToken(), body);
+  }
+
+  TaskRegistry.Key key() {
+    return key;
+  }
+
+  CancellationToken token() {
+    return token;
+  }
+
+  boolean isRunningOn(Thread thread) {
+    return runner == thread;
+  }
+
+  /** Runs the listener once the task has settled its promise, or right away if it already has. */
+  void whenDone(Runnable listener) {
+    listeners.add(listener);
+    if (isDone() && listeners.remove(listener)) {
+      listener.run();
+    }
+  }
+
+  /** Cancels the task only if no thread has picked it up yet. */
+  boolean cancelIfNotStarted() {
+    if (!started.compareAndSet(false, true)) {
+      return false;
+    }
+    token.cancel();
+    return super.cancel(false);
+  }
+
+  @Override
+  public void run() {
+    if (!started.compareAndSet(false, true)) {
+      return;
+    }
+    runner = Thread.currentThread();
+    try {
+      super.run();
+    } finally {
+      runner = null;
+    }
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    token.cancel();
+    if (started.compareAndSet(false, true)) {
+      return super.cancel(false);
+    }
+    // Already running: the token hooks stop the native side, the result still settles the promise
+    return false;
+  }
+
+  @Override
+  protected void done() {
+    registry.remove(this);
+    try {
+      settle();
+    } finally {
+      for (Runnable listener : listeners) {
+        if (listeners.remove(listener)) {
+          listener.run();
+        }
+      }
+    }
+  }
+
+  private void settle() {
+    if (promise == null) {
+      return;
+    }
+    try {
+      promise.resolve(get());
+    } catch (CancellationException e) {
+      promise.reject(new Exception("Task cancelled"));
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause() != null ? e.getCause() : e;
+      promise.reject(cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      promise.reject(e);
+    }
+  }
+}
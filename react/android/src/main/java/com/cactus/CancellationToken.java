@@ -0,0 +1,34 @@
+package com.cactus;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Cooperative cancellation signal handed to every bridge task. Native work
+ * cannot be interrupted from Java, so tasks register hooks (for example
+ * {@link LlamaContext#stopCompletion()}) that run when the token is cancelled.
+ */
+class CancellationToken {
+  private volatile boolean cancelled = false;
+  private final CopyOnWriteArrayList<Runnable> hooks = new CopyOnWriteArrayList<>();
+
+  boolean isCancelled() {
+    return cancelled;
+  }
+
+  /** Registers a hook; runs it right away if the token is already cancelled. */
+  void onCancel(Runnable hook) {
+    hooks.add(hook);
+    if (cancelled && hooks.remove(hook)) {
+      hook.run();
+    }
+  }
+
+  void cancel() {
+    cancelled = true;
+    for (Runnable hook : hooks) {
+      if (hooks.remove(hook)) {
+        hook.run();
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package com.cactus;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs bridge work on per-context serial lanes backed by a shared pool.
+ * Calls on the same context id keep their submission order, calls on
+ * different ids run in parallel up to the number of pool threads.
+ */
+class ContextScheduler {
+  private static final String THREAD_NAME = "cactus-lane-";
+
+  private final ThreadPoolExecutor pool;
+  private final ConcurrentHashMap<Integer, Lane> lanes = new ConcurrentHashMap<>();
+
+  ContextScheduler() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  ContextScheduler(int maxThreads) {
+    final int threads = Math.max(1, maxThreads);
+    final AtomicInteger threadCount = new AtomicInteger();
+    pool = new ThreadPoolExecutor(
+      threads,
+      threads,
+      30L,
+      TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(),
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, THREAD_NAME + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      }
+    );
+    pool.allowCoreThreadTimeOut(true);
+  }
+
+  /** Serial executor for the given context id. */
+  Executor lane(int contextId) {
+    Lane lane = lanes.get(contextId);
+    if (lane == null) {
+      Lane created = new Lane();
+      lane = lanes.putIfAbsent(contextId, created);
+      if (lane == null) {
+        lane = created;
+      }
+    }
+    return lane;
+  }
+
+  /** Executor for work that is not bound to a context. */
+  Executor shared() {
+    return pool;
+  }
+
+  /** Forget the lane of a released context; already queued work still drains in order. */
+  void remove(int contextId) {
+    lanes.remove(contextId);
+  }
+
+  void shutdown() {
+    lanes.clear();
+    pool.shutdown();
+  }
+
+  private class Lane implements Executor {
+    private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+    private Runnable active;
+
+    @Override
+    public synchronized void execute(final Runnable command) {
+      queue.offer(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            command.run();
+          } finally {
+            scheduleNext();
+          }
+        }
+      });
+      if (active == null) {
+        scheduleNext();
+      }
+    }
+
+    private synchronized void scheduleNext() {
+      active = queue.poll();
+      if (active != null) {
+        pool.execute(active);
+      }
+    }
+  }
+}
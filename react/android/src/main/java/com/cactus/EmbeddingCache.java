@@ -0,0 +1,148 @@
+package com.cactus;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of embedding vectors for one context. Vectors live in a single
+ * direct memory slab cut into fixed-size slots, so cached embeddings add no
+ * heap pressure. Keys are hashes of the model, normalization mode and text,
+ * computed by the caller.
+ */
+class EmbeddingCache {
+  private static final class Entry {
+    final int slot;
+    String[] promptTokens;
+
+    Entry(int slot) {
+      this.slot = slot;
+    }
+  }
+
+  private final int dim;
+  private final int capacity;
+  private final FloatBuffer slab;
+  private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long hits;
+  private long misses;
+
+  EmbeddingCache(long budgetBytes, int dim) {
+    long slotBytes = 4L * dim;
+    this.dim = dim;
+    this.capacity = (int) Math.min(budgetBytes, Integer.MAX_VALUE) / (int) slotBytes;
+    this.slab = ByteBuffer.allocateDirect((int) (capacity * slotBytes)).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    for (int i = 0; i < capacity; i++) {
+      freeSlots.add(i);
+    }
+  }
+
+  /** Copies the cached vector for key into out, returning false on a miss. */
+  synchronized boolean get(String key, float[] out, int offset) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      misses++;
+      return false;
+    }
+    hits++;
+    slab.position(entry.slot * dim);
+    slab.get(out, offset, dim);
+    return true;
+  }
+
+  synchronized boolean get(String key, FloatBuffer out) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      misses++;
+      return false;
+    }
+    hits++;
+    FloatBuffer vector = slab.duplicate();
+    vector.position(entry.slot * dim).limit(entry.slot * dim + dim);
+    out.put(vector);
+    return true;
+  }
+
+  /** Prompt tokens recorded with the vector, or null when they were not kept. */
+  synchronized String[] promptTokens(String key) {
+    Entry entry = entries.get(key);
+    return entry == null ? null : entry.promptTokens;
+  }
+
+  synchronized void put(String key, float[] vector, int offset, String[] promptTokens) {
+    Entry entry = slotFor(key);
+    if (entry == null) {
+      return;
+    }
+    slab.position(entry.slot * dim);
+    slab.put(vector, offset, dim);
+    entry.promptTokens = promptTokens;
+  }
+
+  /** Records prompt tokens for an entry stored without them; no-op once it was evicted. */
+  synchronized void putPromptTokens(String key, String[] promptTokens) {
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      entry.promptTokens = promptTokens;
+    }
+  }
+
+  synchronized void put(String key, FloatBuffer vector) {
+    Entry entry = slotFor(key);
+    if (entry == null) {
+      return;
+    }
+    slab.position(entry.slot * dim);
+    slab.put(vector);
+  }
+
+  synchronized void clear() {
+    for (Entry entry : entries.values()) {
+      freeSlots.add(entry.slot);
+    }
+    entries.clear();
+  }
+
+  synchronized long hits() {
+    return hits;
+  }
+
+  synchronized long misses() {
+    return misses;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  long sizeBytes() {
+    return 4L * dim * capacity;
+  }
+
+  private Entry slotFor(String key) {
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      return entry;
+    }
+    if (freeSlots.isEmpty()) {
+      Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+      if (!eldest.hasNext()) {
+        return null;
+      }
+      freeSlots.add(eldest.next().getValue().slot);
+      eldest.remove();
+    }
+    entry = new Entry(freeSlots.poll());
+    entries.put(key, entry);
+    return entry;
+  }
+}
@@ -0,0 +1,286 @@
+package com.cactus;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads GGUF metadata from the header of a model file. Only the KV section and
+ * the tensor descriptors are mapped, the tensor data is never touched. Values
+ * are formatted the same way as lm_gguf_kv_to_str.
+ */
+class GgufReader {
+  static final class Info {
+    final int version;
+    final int alignment;
+    final long dataOffset;
+    final Map<String, String> metadata;
+
+    Info(int version, int alignment, long dataOffset, Map<String, String> metadata) {
+      this.version = version;
+      this.alignment = alignment;
+      this.dataOffset = dataOffset;
+      this.metadata = metadata;
+    }
+
+    WritableMap toWritableMap() {
+      WritableMap info = Arguments.createMap();
+      info.putInt("version", version);
+      info.putInt("alignment", alignment);
+      info.putInt("data_offset", (int) dataOffset);
+      for (Map.Entry<String, String> entry : metadata.entrySet()) {
+        info.putString(entry.getKey(), entry.getValue());
+      }
+      return info;
+    }
+  }
+
+  private static final int MAGIC = 0x46554747; // "GGUF" little-endian
+  private static final int DEFAULT_ALIGNMENT = 32;
+  private static final int INITIAL_WINDOW = 1 << 20;
+
+  private static final int TYPE_UINT8 = 0;
+  private static final int TYPE_INT8 = 1;
+  private static final int TYPE_UINT16 = 2;
+  private static final int TYPE_INT16 = 3;
+  private static final int TYPE_UINT32 = 4;
+  private static final int TYPE_INT32 = 5;
+  private static final int TYPE_FLOAT32 = 6;
+  private static final int TYPE_BOOL = 7;
+  private static final int TYPE_STRING = 8;
+  private static final int TYPE_ARRAY = 9;
+  private static final int TYPE_UINT64 = 10;
+  private static final int TYPE_INT64 = 11;
+  private static final int TYPE_FLOAT64 = 12;
+
+  private static final BigInteger TWO_64 = BigInteger.ONE.shiftLeft(64);
+
+  private final FileChannel channel;
+  private final long fileSize;
+  private MappedByteBuffer window;
+  private long position;
+
+  private GgufReader(FileChannel channel) throws IOException {
+    this.channel = channel;
+    this.fileSize = channel.size();
+  }
+
+  static Info read(String path, String[] skip) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(new File(path), "r");
+    try {
+      return new GgufReader(file.getChannel()).parse(new HashSet<>(Arrays.asList(skip)));
+    } finally {
+      file.close();
+    }
+  }
+
+  private Info parse(Set<String> skip) throws IOException {
+    if (readInt() != MAGIC) {
+      throw new IOException("Not a GGUF file");
+    }
+    int version = readInt();
+    if (version < 2) {
+      throw new IOException("Unsupported GGUF version: " + version);
+    }
+    long nTensors = readLong();
+    long nKv = readLong();
+
+    int alignment = DEFAULT_ALIGNMENT;
+    Map<String, String> metadata = new LinkedHashMap<>();
+    for (long i = 0; i < nKv; i++) {
+      String key = readString();
+      int type = readInt();
+      if (key.equals("general.alignment") && type == TYPE_UINT32) {
+        alignment = readInt();
+        if (alignment <= 0 || (alignment & (alignment - 1)) != 0) {
+          throw new IOException("Invalid GGUF alignment: " + alignment);
+        }
+        if (!skip.contains(key)) {
+          metadata.put(key, Long.toString(alignment & 0xffffffffL));
+        }
+      } else if (skip.contains(key)) {
+        skipValue(type);
+      } else {
+        metadata.put(key, readValue(type));
+      }
+    }
+
+    for (long i = 0; i < nTensors; i++) {
+      skipString();
+      int nDims = readInt();
+      // dims (int64 each), ggml type (uint32), offset (uint64)
+      advance(8L * nDims + 4 + 8);
+    }
+
+    long dataOffset = (position + alignment - 1) / alignment * alignment;
+    return new Info(version, alignment, dataOffset, metadata);
+  }
+
+  private String readValue(int type) throws IOException {
+    if (type == TYPE_STRING) {
+      return readString();
+    }
+    if (type != TYPE_ARRAY) {
+      return readScalar(type);
+    }
+    int arrType = readInt();
+    long n = readLong();
+    StringBuilder sb = new StringBuilder("[");
+    for (long j = 0; j < n; j++) {
+      if (arrType == TYPE_STRING) {
+        sb.append('"').append(readString().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+      } else if (arrType == TYPE_ARRAY) {
+        throw new IOException("Nested GGUF arrays are not supported");
+      } else {
+        sb.append(readScalar(arrType));
+      }
+      if (j < n - 1) {
+        sb.append(", ");
+      }
+    }
+    return sb.append(']').toString();
+  }
+
+  private String readScalar(int type) throws IOException {
+    switch (type) {
+      case TYPE_UINT8: return Integer.toString(readByte() & 0xff);
+      case TYPE_INT8: return Integer.toString(readByte());
+      case TYPE_UINT16: return Integer.toString(readShort() & 0xffff);
+      case TYPE_INT16: return Integer.toString(readShort());
+      case TYPE_UINT32: return Long.toString(readInt() & 0xffffffffL);
+      case TYPE_INT32: return Integer.toString(readInt());
+      case TYPE_UINT64: {
+        long value = readLong();
+        return value >= 0 ? Long.toString(value) : BigInteger.valueOf(value).add(TWO_64).toString();
+      }
+      case TYPE_INT64: return Long.toString(readLong());
+      // std::to_string formats floating point with %f
+      case TYPE_FLOAT32: return String.format(Locale.ROOT, "%f", (double) Float.intBitsToFloat(readInt()));
+      case TYPE_FLOAT64: return String.format(Locale.ROOT, "%f", Double.longBitsToDouble(readLong()));
+      case TYPE_BOOL: return readByte() != 0 ? "true" : "false";
+      default: throw new IOException("Unknown GGUF type: " + type);
+    }
+  }
+
+  private void skipValue(int type) throws IOException {
+    if (type == TYPE_STRING) {
+      skipString();
+    } else if (type == TYPE_ARRAY) {
+      int arrType = readInt();
+      long n = readLong();
+      if (arrType == TYPE_STRING) {
+        for (long j = 0; j < n; j++) {
+          skipString();
+        }
+      } else {
+        advance(n * scalarSize(arrType));
+      }
+    } else {
+      advance(scalarSize(type));
+    }
+  }
+
+  private static int scalarSize(int type) throws IOException {
+    switch (type) {
+      case TYPE_UINT8:
+      case TYPE_INT8:
+      case TYPE_BOOL:
+        return 1;
+      case TYPE_UINT16:
+      case TYPE_INT16:
+        return 2;
+      case TYPE_UINT32:
+      case TYPE_INT32:
+      case TYPE_FLOAT32:
+        return 4;
+      case TYPE_UINT64:
+      case TYPE_INT64:
+      case TYPE_FLOAT64:
+        return 8;
+      default:
+        throw new IOException("Unknown GGUF type: " + type);
+    }
+  }
+
+  private String readString() throws IOException {
+    long length = readLong();
+    if (length < 0 || length > Integer.MAX_VALUE) {
+      throw new IOException("Invalid GGUF string length: " + length);
+    }
+    byte[] bytes = new byte[(int) length];
+    require(bytes.length);
+    window.position((int) position);
+    window.get(bytes);
+    position += bytes.length;
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private void skipString() throws IOException {
+    advance(readLong());
+  }
+
+  private byte readByte() throws IOException {
+    require(1);
+    return window.get((int) position++);
+  }
+
+  private short readShort() throws IOException {
+    require(2);
+    short value = window.getShort((int) position);
+    position += 2;
+    return value;
+  }
+
+  private int readInt() throws IOException {
+    require(4);
+    int value = window.getInt((int) position);
+    position += 4;
+    return value;
+  }
+
+  private long readLong() throws IOException {
+    require(8);
+    long value = window.getLong((int) position);
+    position += 8;
+    return value;
+  }
+
+  private void advance(long bytes) throws IOException {
+    if (bytes < 0 || position + bytes > fileSize) {
+      throw new IOException("Truncated GGUF header");
+    }
+    position += bytes;
+  }
+
+  /** Grows the mapped window from the start of the file until it covers the next n bytes. */
+  private void require(long n) throws IOException {
+    long end = position + n;
+    if (end > fileSize) {
+      throw new IOException("Truncated GGUF header");
+    }
+    if (window != null && end <= window.capacity()) {
+      return;
+    }
+    if (end > Integer.MAX_VALUE) {
+      throw new IOException("GGUF header is too large");
+    }
+    long size = window == null ? INITIAL_WINDOW : (long) window.capacity() * 2;
+    size = Math.min(fileSize, Math.min(Integer.MAX_VALUE, Math.max(size, end)));
+    window = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    window.order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
@@ -8,9 +8,11 @@ import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
+import android.util.Base64;
 import android.util.Log;
 import android.provider.Settings;
 import android.os.Build;
+import android.os.Process;
 import android.content.res.AssetManager;
 
 import java.lang.StringBuilder;
@@ -18,9 +20,22 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class LlamaContext {
   public static final String NAME = "CactusContext";
+  // Room for a few thousand audio code tokens while the vocoder catches up
+  private static final int SPEECH_RING_BYTES = 64 * 1024;
 
   private static String loadedLibrary = "";
 
@@ -55,6 +70,10 @@ public class LlamaContext {
   private long context;
   private WritableMap modelDetails;
   private int jobId = -1;
+  private int nParallel = 1;
+  private volatile TokenRing tokenRing;
+  private String sessionIdentity;
+  private EmbeddingCache embeddingCache;
   private DeviceEventManagerModule.RCTDeviceEventEmitter eventEmitter;
 
   public LlamaContext(int id, ReactApplicationContext reactContext, ReadableMap params) {
@@ -66,77 +85,134 @@ public class LlamaContext {
     }
     
     String modelPath = params.getString("model");
-    File modelFile = new File(modelPath);
-    if (!modelFile.exists()) {
-      Log.e(NAME, "Model file does not exist: " + modelPath);
-      throw new IllegalArgumentException("Model file does not exist: " + modelPath);
-    }
-    if (!modelFile.canRead()) {
-      Log.e(NAME, "Model file is not readable: " + modelPath);
-      throw new IllegalArgumentException("Model file is not readable: " + modelPath);
+    ModelSource modelSource;
+    try {
+      modelSource = ModelSource.resolve(reactContext, params);
+    } catch (IllegalArgumentException e) {
+      Log.e(NAME, e.getMessage());
+      throw e;
     }
     eventEmitter = reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class);
     this.id = id;
-    this.context = initContext(
-      // String model,
-      params.getString("model"),
-      // String chat_template,
-      params.hasKey("chat_template") ? params.getString("chat_template") : "",
-      // String reasoning_format,
-      params.hasKey("reasoning_format") ? params.getString("reasoning_format") : "none",
-      // boolean embedding,
-      params.hasKey("embedding") ? params.getBoolean("embedding") : false,
-      // int embd_normalize,
-      params.hasKey("embd_normalize") ? params.getInt("embd_normalize") : -1,
-      // int n_ctx,
-      params.hasKey("n_ctx") ? params.getInt("n_ctx") : 512,
-      // int n_batch,
-      params.hasKey("n_batch") ? params.getInt("n_batch") : 512,
-      // int n_ubatch,
-      params.hasKey("n_ubatch") ? params.getInt("n_ubatch") : 512,
-      // int n_threads,
-      params.hasKey("n_threads") ? params.getInt("n_threads") : 0,
-      // int n_gpu_layers, // TODO: Support this
-      params.hasKey("n_gpu_layers") ? params.getInt("n_gpu_layers") : 0,
-      // boolean flash_attn,
-      params.hasKey("flash_attn") ? params.getBoolean("flash_attn") : false,
-      // String cache_type_k,
-      params.hasKey("cache_type_k") ? params.getString("cache_type_k") : "f16",
-      // String cache_type_v,
-      params.hasKey("cache_type_v") ? params.getString("cache_type_v") : "f16",
-      // boolean use_mlock,
-      params.hasKey("use_mlock") ? params.getBoolean("use_mlock") : true,
-      // boolean use_mmap,
-      params.hasKey("use_mmap") ? params.getBoolean("use_mmap") : true,
-      //boolean vocab_only,
-      params.hasKey("vocab_only") ? params.getBoolean("vocab_only") : false,
-      // String lora,
-      params.hasKey("lora") ? params.getString("lora") : "",
-      // float lora_scaled,
-      params.hasKey("lora_scaled") ? (float) params.getDouble("lora_scaled") : 1.0f,
-      // ReadableArray lora_adapters,
-      params.hasKey("lora_list") ? params.getArray("lora_list") : null,
-      // float rope_freq_base,
-      params.hasKey("rope_freq_base") ? (float) params.getDouble("rope_freq_base") : 0.0f,
-      // float rope_freq_scale
-      params.hasKey("rope_freq_scale") ? (float) params.getDouble("rope_freq_scale") : 0.0f,
-      // int pooling_type,
-      params.hasKey("pooling_type") ? params.getInt("pooling_type") : -1,
-      // LoadProgressCallback load_progress_callback
-      params.hasKey("use_progress_callback") ? new LoadProgressCallback(this) : null
-    );
+    this.nParallel = params.hasKey("n_parallel") ? Math.max(1, params.getInt("n_parallel")) : 1;
+    try {
+      this.context = initContext(
+        // String model,
+        modelSource.path,
+        // String chat_template,
+        params.hasKey("chat_template") ? params.getString("chat_template") : "",
+        // String reasoning_format,
+        params.hasKey("reasoning_format") ? params.getString("reasoning_format") : "none",
+        // boolean embedding,
+        params.hasKey("embedding") ? params.getBoolean("embedding") : false,
+        // int embd_normalize,
+        params.hasKey("embd_normalize") ? params.getInt("embd_normalize") : -1,
+        // int n_ctx,
+        params.hasKey("n_ctx") ? params.getInt("n_ctx") : 512,
+        // int n_batch,
+        params.hasKey("n_batch") ? params.getInt("n_batch") : 512,
+        // int n_ubatch,
+        params.hasKey("n_ubatch") ? params.getInt("n_ubatch") : 512,
+        // int n_threads,
+        params.hasKey("n_threads") ? params.getInt("n_threads") : 0,
+        // int n_gpu_layers, // TODO: Support this
+        params.hasKey("n_gpu_layers") ? params.getInt("n_gpu_layers") : 0,
+        // boolean flash_attn,
+        params.hasKey("flash_attn") ? params.getBoolean("flash_attn") : false,
+        // String cache_type_k,
+        params.hasKey("cache_type_k") ? params.getString("cache_type_k") : "f16",
+        // String cache_type_v,
+        params.hasKey("cache_type_v") ? params.getString("cache_type_v") : "f16",
+        // boolean use_mlock,
+        params.hasKey("use_mlock") ? params.getBoolean("use_mlock") : true,
+        // boolean use_mmap,
+        params.hasKey("use_mmap") ? params.getBoolean("use_mmap") : true,
+        //boolean vocab_only,
+        params.hasKey("vocab_only") ? params.getBoolean("vocab_only") : false,
+        // String lora,
+        params.hasKey("lora") ? params.getString("lora") : "",
+        // float lora_scaled,
+        params.hasKey("lora_scaled") ? (float) params.getDouble("lora_scaled") : 1.0f,
+        // ReadableArray lora_adapters,
+        params.hasKey("lora_list") ? params.getArray("lora_list") : null,
+        // float rope_freq_base,
+        params.hasKey("rope_freq_base") ? (float) params.getDouble("rope_freq_base") : 0.0f,
+        // float rope_freq_scale
+        params.hasKey("rope_freq_scale") ? (float) params.getDouble("rope_freq_scale") : 0.0f,
+        // int pooling_type,
+        params.hasKey("pooling_type") ? params.getInt("pooling_type") : -1,
+        // int n_parallel,
+        nParallel,
+        // int prefix_cache_mb,
+        params.hasKey("prefix_cache_mb") ? params.getInt("prefix_cache_mb") : 0,
+        // boolean background_warmup,
+        params.hasKey("background_warmup") ? params.getBoolean("background_warmup") : false,
+        // LoadProgressCallback load_progress_callback
+        params.hasKey("use_progress_callback") ? new LoadProgressCallback(this, "load") : null
+      );
+    } finally {
+      modelSource.close();
+    }
     if (this.context == -1) {
       throw new IllegalStateException("Failed to initialize context for model: " + modelPath + 
         ". Please check if the model file exists and is accessible.");
     }
+    // Embedding contexts and failed slot setups stay serial whatever was requested
+    if (!isParallelEnabled(this.context)) {
+      this.nParallel = 1;
+    }
     this.modelDetails = loadModelDetails(this.context);
     this.reactContext = reactContext;
+    // Everything a saved session depends on besides the prompt and LoRA adapters
+    this.sessionIdentity = modelSource.identity + '\0' +
+      (params.hasKey("n_ctx") ? params.getInt("n_ctx") : 512) + '\0' +
+      (params.hasKey("cache_type_k") ? params.getString("cache_type_k") : "f16") + '\0' +
+      (params.hasKey("cache_type_v") ? params.getString("cache_type_v") : "f16") + '\0' +
+      (params.hasKey("flash_attn") ? params.getBoolean("flash_attn") : false);
+    int embeddingCacheMb = params.hasKey("embedding_cache_mb") ? params.getInt("embedding_cache_mb") : 0;
+    if (embeddingCacheMb > 0 && isEmbeddingEnabled(this.context)) {
+      this.embeddingCache = new EmbeddingCache((long) embeddingCacheMb << 20, getEmbeddingSize());
+    }
   }
 
   public void interruptLoad() {
     interruptLoad(this.context);
   }
 
+  /**
+   * Faults in the mapped weights layer by layer at background priority,
+   * reporting progress as the "warmup" phase of the init progress event.
+   * Only reads the weights, so it may run alongside other calls on the
+   * context; finish with {@link #warmupDecode} on the context's lane.
+   */
+  public boolean warmup(boolean reportProgress) {
+    LoadProgressCallback callback = reportProgress ? new LoadProgressCallback(this, "warmup") : null;
+    int priority = Process.getThreadPriority(Process.myTid());
+    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    boolean warmedUp = false;
+    try {
+      warmedUp = warmup(this.context, callback);
+      return warmedUp;
+    } finally {
+      Process.setThreadPriority(priority);
+      // Listeners wait for 100 to stop listening, even when the warmup was interrupted
+      if (callback != null && !warmedUp) {
+        callback.onLoadProgress(100);
+      }
+    }
+  }
+
+  /** Dummy decode that ends a warmup, skipped when the context has decoded since loading. */
+  public boolean warmupDecode(boolean reportProgress) {
+    try {
+      return warmupDecode(this.context);
+    } finally {
+      if (reportProgress) {
+        new LoadProgressCallback(this, "warmup").onLoadProgress(100);
+      }
+    }
+  }
+
   public long getContext() {
     return context;
   }
@@ -169,22 +245,37 @@ public class LlamaContext {
     return getFormattedChat(this.context, messages, chatTemplate == null ? "" : chatTemplate);
   }
 
-  private void emitLoadProgress(int progress) {
+  private void emitLoadProgress(int progress, String phase) {
     WritableMap event = Arguments.createMap();
     event.putInt("contextId", LlamaContext.this.id);
     event.putInt("progress", progress);
+    event.putString("phase", phase);
     eventEmitter.emit("@Cactus_onInitContextProgress", event);
   }
 
+  private void emitAudioChunk(float[] samples, boolean last) {
+    // One string per chunk instead of a boxed number per sample, which would flood the bridge at 24 kHz
+    ByteBuffer pcm = ByteBuffer.allocate(samples.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+    pcm.asFloatBuffer().put(samples);
+    WritableMap event = Arguments.createMap();
+    event.putInt("contextId", LlamaContext.this.id);
+    event.putString("pcm", Base64.encodeToString(pcm.array(), Base64.NO_WRAP));
+    event.putInt("sampleRate", SpeechStream.SAMPLE_RATE);
+    event.putBoolean("last", last);
+    eventEmitter.emit("@Cactus_onAudioChunk", event);
+  }
+
   private static class LoadProgressCallback {
     LlamaContext context;
+    String phase;
 
-    public LoadProgressCallback(LlamaContext context) {
+    public LoadProgressCallback(LlamaContext context, String phase) {
       this.context = context;
+      this.phase = phase;
     }
 
     void onLoadProgress(int progress) {
-      context.emitLoadProgress(progress);
+      context.emitLoadProgress(progress, phase);
     }
   }
 
@@ -195,18 +286,86 @@ public class LlamaContext {
     eventEmitter.emit("@Cactus_onToken", event);
   }
 
+  /**
+   * Forwards streamed tokens to JS. With emit_batch_tokens or
+   * emit_batch_interval_ms set, tokens are coalesced into one event once
+   * either limit is reached; the interval is checked as tokens arrive.
+   * Call {@link #flush()} after the completion returns to emit the tail.
+   */
   private static class PartialCompletionCallback {
     LlamaContext context;
     boolean emitNeeded;
+    int batchTokens;
+    long batchIntervalMs;
+    CancellationToken token;
+
+    private final StringBuilder text = new StringBuilder();
+    private ArrayList<Object> probs;
+    private final ArrayList<Object> timestamps = new ArrayList<>();
+    private long firstTokenMs;
 
-    public PartialCompletionCallback(LlamaContext context, boolean emitNeeded) {
+    public PartialCompletionCallback(LlamaContext context, boolean emitNeeded, int batchTokens, long batchIntervalMs) {
       this.context = context;
       this.emitNeeded = emitNeeded;
+      this.batchTokens = Math.max(1, batchTokens);
+      this.batchIntervalMs = batchIntervalMs;
+    }
+
+    static PartialCompletionCallback fromParams(LlamaContext context, ReadableMap params, CancellationToken token) {
+      long intervalMs = params.hasKey("emit_batch_interval_ms") ? (long) params.getDouble("emit_batch_interval_ms") : 0;
+      PartialCompletionCallback callback = new PartialCompletionCallback(
+        context,
+        params.hasKey("emit_partial_completion") ? params.getBoolean("emit_partial_completion") : false,
+        params.hasKey("emit_batch_tokens") ? params.getInt("emit_batch_tokens") : (intervalMs > 0 ? Integer.MAX_VALUE : 1),
+        intervalMs
+      );
+      callback.token = token;
+      return callback;
+    }
+
+    /**
+     * Asked by native code once it has cleared its stop flag for this request,
+     * so a stop that landed before then is not lost.
+     */
+    boolean isStopRequested() {
+      return token != null && token.isCancelled();
     }
 
     void onPartialCompletion(WritableMap tokenResult) {
       if (!emitNeeded) return;
-      context.emitPartialCompletion(tokenResult);
+      if (batchTokens == 1) {
+        context.emitPartialCompletion(tokenResult);
+        return;
+      }
+      long now = System.currentTimeMillis();
+      if (timestamps.isEmpty()) {
+        firstTokenMs = now;
+      }
+      text.append(tokenResult.getString("token"));
+      if (tokenResult.hasKey("completion_probabilities")) {
+        if (probs == null) {
+          probs = new ArrayList<>();
+        }
+        probs.addAll(tokenResult.getArray("completion_probabilities").toArrayList());
+      }
+      timestamps.add((double) now);
+      if (timestamps.size() >= batchTokens || (batchIntervalMs > 0 && now - firstTokenMs >= batchIntervalMs)) {
+        flush();
+      }
+    }
+
+    void flush() {
+      if (timestamps.isEmpty()) return;
+      WritableMap batch = Arguments.createMap();
+      batch.putString("token", text.toString());
+      if (probs != null) {
+        batch.putArray("completion_probabilities", Arguments.fromList(probs));
+      }
+      batch.putArray("token_timestamps", Arguments.fromList(timestamps));
+      text.setLength(0);
+      probs = null;
+      timestamps.clear();
+      context.emitPartialCompletion(batch);
     }
   }
 
@@ -229,10 +388,214 @@ public class LlamaContext {
     if (path == null || path.isEmpty()) {
       throw new IllegalArgumentException("File path is empty");
     }
-    return saveSession(this.context, path, size);
+    int tokens = saveSession(this.context, path, size);
+    if (tokens < 0) {
+      throw new IllegalStateException("Failed to save session");
+    }
+    return tokens;
+  }
+
+  /**
+   * Queues the KV state added since the last checkpoint of this file and
+   * returns without waiting for the write. Loading the file with
+   * {@link #loadCheckpoint} resumes without re-evaluating the prompt.
+   */
+  public int checkpointSession(String path) {
+    if (path == null || path.isEmpty()) {
+      throw new IllegalArgumentException("File path is empty");
+    }
+    int tokens = checkpointSession(this.context, path);
+    if (tokens < 0) {
+      throw new IllegalStateException("Failed to checkpoint session");
+    }
+    return tokens;
+  }
+
+  public WritableMap loadCheckpoint(String path) {
+    if (path == null || path.isEmpty()) {
+      throw new IllegalArgumentException("File path is empty");
+    }
+    if (!new File(path).exists()) {
+      throw new IllegalArgumentException("File does not exist: " + path);
+    }
+    WritableMap result = loadCheckpoint(this.context, path);
+    if (result.hasKey("error")) {
+      throw new IllegalStateException(result.getString("error"));
+    }
+    return result;
+  }
+
+  /** Blocks until queued checkpoints are written. */
+  public void flushCheckpoints() {
+    flushCheckpoints(this.context);
+  }
+
+  /**
+   * Evaluates prompt into the KV cache without sampling. When this model has
+   * prefilled the same tokens before, the state is restored from the session
+   * file in cache instead, so a following completion sharing the prompt as a
+   * prefix only evaluates what comes after it.
+   */
+  public WritableMap prefillPrompt(String prompt, PromptSessionCache cache) {
+    if (isParallel()) {
+      throw new IllegalStateException("Prompt prefill is not supported with n_parallel > 1");
+    }
+    String key = promptSessionKey(tokenizePrompt(this.context, prompt));
+    WritableMap result = Arguments.createMap();
+    File cached = cache.get(key);
+    if (cached != null) {
+      WritableMap loaded = loadSession(this.context, cached.getPath());
+      if (!loaded.hasKey("error")) {
+        result.putBoolean("cached", true);
+        result.putInt("tokens", loaded.getInt("tokens_loaded"));
+        return result;
+      }
+      Log.w(NAME, "Discarding unreadable prompt session " + cached);
+      cache.remove(key);
+    }
+
+    int nPast = prefillPrompt(this.context, prompt);
+    if (nPast < 0) {
+      throw new IllegalStateException("Failed to prefill prompt");
+    }
+    File tmp = cache.tempFile(key);
+    if (saveSession(this.context, tmp.getPath(), nPast) >= 0) {
+      cache.put(key, tmp);
+    } else {
+      tmp.delete();
+    }
+    result.putBoolean("cached", false);
+    result.putInt("tokens", nPast);
+    return result;
+  }
+
+  private String promptSessionKey(int[] tokens) {
+    MessageDigest digest = modelDigest();
+    digest.update(getLoadedLoraAdapters(this.context).toArrayList().toString().getBytes(StandardCharsets.UTF_8));
+    ByteBuffer buffer = ByteBuffer.allocate(tokens.length * 4);
+    buffer.asIntBuffer().put(tokens);
+    digest.update(buffer);
+    return hex(digest.digest());
+  }
+
+  /** SHA-256 already fed with the model identity. */
+  private MessageDigest modelDigest() {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    digest.update(sessionIdentity.getBytes(StandardCharsets.UTF_8));
+    return digest;
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b & 0xff));
+    }
+    return hex.toString();
+  }
+
+  private final Map<Integer, StateSnapshot> snapshots = new ConcurrentHashMap<>();
+  private final AtomicInteger nextSnapshotId = new AtomicInteger(1);
+
+  /** Copies the KV state and its tokens into native memory, without touching disk. */
+  public StateSnapshot snapshotState() {
+    if (isParallel()) {
+      throw new IllegalStateException("State snapshots are not supported with n_parallel > 1");
+    }
+    long handle = snapshotState(this.context);
+    if (handle == 0) {
+      throw new IllegalStateException("Failed to snapshot state");
+    }
+    StateSnapshot snapshot = new StateSnapshot(this, nextSnapshotId.getAndIncrement(), handle, stateTokenCount(handle), stateSize(handle));
+    snapshots.put(snapshot.id, snapshot);
+    return snapshot;
+  }
+
+  public StateSnapshot getSnapshot(int id) {
+    StateSnapshot snapshot = snapshots.get(id);
+    if (snapshot == null) {
+      throw new IllegalArgumentException("Snapshot not found: " + id);
+    }
+    return snapshot;
+  }
+
+  /** Replaces the current KV state; the snapshot stays valid for further restores. */
+  public int restoreState(StateSnapshot snapshot) {
+    if (snapshot.owner != this) {
+      throw new IllegalArgumentException("Snapshot belongs to another context");
+    }
+    synchronized (snapshot) {
+      if (!restoreState(this.context, snapshot.handle())) {
+        throw new IllegalStateException("Failed to restore state");
+      }
+    }
+    return snapshot.tokenCount;
+  }
+
+  public void releaseSnapshot(StateSnapshot snapshot) {
+    snapshots.remove(snapshot.id, snapshot);
+    snapshot.free();
   }
 
   public WritableMap completion(ReadableMap params) {
+    return completion(params, (CancellationToken) null);
+  }
+
+  /** A cancelled token stops the completion even when it was cancelled before decoding began. */
+  WritableMap completion(ReadableMap params, CancellationToken token) {
+    boolean emitAudio = params.hasKey("emit_audio_chunks") && params.getBoolean("emit_audio_chunks");
+    return completion(params, emitAudio ? this::emitAudioChunk : null, token);
+  }
+
+  /**
+   * Runs a completion whose audio codes are decoded by the vocoder while it
+   * generates, handing PCM to audioListener chunk by chunk. Returns once the
+   * last chunk has been delivered. A null listener runs a plain completion.
+   */
+  public WritableMap completion(ReadableMap params, SpeechStream.Listener audioListener) {
+    return completion(params, audioListener, null);
+  }
+
+  private WritableMap completion(ReadableMap params, SpeechStream.Listener audioListener, CancellationToken token) {
+    if (audioListener == null) {
+      return doCompletion(params, tokenRing != null ? tokenRing.buffer() : null, token);
+    }
+    if (isParallel()) {
+      throw new IllegalStateException("Audio streaming is not supported with n_parallel > 1");
+    }
+    if (!isVocoderEnabled()) {
+      throw new IllegalStateException("Vocoder is not initialized");
+    }
+    TokenRing ring = new TokenRing(SPEECH_RING_BYTES);
+    SpeechStream stream = new SpeechStream(
+      this,
+      ring,
+      params.hasKey("audio_first_chunk_codes") ? params.getInt("audio_first_chunk_codes") : 16,
+      params.hasKey("audio_chunk_codes") ? params.getInt("audio_chunk_codes") : 48,
+      params.hasKey("audio_overlap_codes") ? params.getInt("audio_overlap_codes") : 8,
+      audioListener
+    );
+    stream.start();
+    WritableMap result;
+    try {
+      result = doCompletion(params, ring.buffer(), token);
+    } finally {
+      stream.finish();
+    }
+    try {
+      stream.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while decoding audio", e);
+    }
+    return result;
+  }
+
+  private WritableMap doCompletion(ReadableMap params, ByteBuffer ring, CancellationToken token) {
     Log.d(NAME, "🔵 ANDROID: completion() called");
     if (!params.hasKey("prompt")) {
       throw new IllegalArgumentException("Missing required parameter: prompt");
@@ -255,6 +618,7 @@ public class LlamaContext {
     }
 
     Log.d(NAME, "🚀 ANDROID: About to call doCompletion native method...");
+    PartialCompletionCallback partialCompletionCallback = PartialCompletionCallback.fromParams(this, params, token);
     WritableMap result = doCompletion(
       this.context,
       // String prompt,
@@ -326,11 +690,11 @@ public class LlamaContext {
       // String[] dry_sequence_breakers, when undef, we use the default definition from common.h
       params.hasKey("dry_sequence_breakers") ? params.getArray("dry_sequence_breakers").toArrayList().toArray(new String[0]) : new String[]{"\n", ":", "\"", "*"},
       // PartialCompletionCallback partial_completion_callback
-      new PartialCompletionCallback(
-        this,
-        params.hasKey("emit_partial_completion") ? params.getBoolean("emit_partial_completion") : false
-      )
+      partialCompletionCallback,
+      // ByteBuffer token_ring
+      ring
     );
+    partialCompletionCallback.flush();
     Log.d(NAME, "✅ ANDROID: doCompletion returned successfully");
     if (result.hasKey("error")) {
       Log.e(NAME, "❌ ANDROID: doCompletion returned error: " + result.getString("error"));
@@ -344,6 +708,40 @@ public class LlamaContext {
     stopCompletion(this.context);
   }
 
+  /**
+   * Streams completion tokens into a ring drained with {@link #pollTokens()}
+   * instead of emitting token events. Not available on parallel contexts,
+   * where several completions would write to the same ring.
+   */
+  public void enableTokenRing(int capacityBytes) {
+    if (isParallel()) {
+      throw new IllegalStateException("Token ring is not supported with n_parallel > 1");
+    }
+    tokenRing = new TokenRing(capacityBytes);
+  }
+
+  public void disableTokenRing() {
+    tokenRing = null;
+  }
+
+  public List<TokenRing.Token> pollTokens() {
+    TokenRing ring = tokenRing;
+    if (ring == null) {
+      throw new IllegalStateException("Token ring is not enabled");
+    }
+    return ring.poll();
+  }
+
+  public boolean isTokenStreamClosed() {
+    TokenRing ring = tokenRing;
+    return ring == null || ring.isClosed();
+  }
+
+  /** True when concurrent completions are decoded together in one batch across sequences. */
+  public boolean isParallel() {
+    return nParallel > 1;
+  }
+
   public boolean isPredicting() {
     return isPredicting(this.context);
   }
@@ -362,19 +760,202 @@ public class LlamaContext {
     return detokenize(this.context, toks);
   }
 
-  public WritableMap getEmbedding(String text, ReadableMap params) {
+  private void requireEmbedding() {
     if (isEmbeddingEnabled(this.context) == false) {
       throw new IllegalStateException("Embedding is not enabled");
     }
-    WritableMap result = embedding(
-      this.context,
-      text,
+  }
+
+  public int getEmbeddingSize() {
+    return embeddingSize(this.context);
+  }
+
+  /** Embedding of text as a plain float vector, without RN bridge types. */
+  public float[] embed(String text, int embdNormalize) {
+    requireEmbedding();
+    String key = embeddingKey(text, embdNormalize);
+    if (key != null) {
+      float[] cached = new float[getEmbeddingSize()];
+      if (embeddingCache.get(key, cached, 0)) {
+        return cached;
+      }
+    }
+    float[] result = embedding(this.context, text, embdNormalize);
+    if (result == null) {
+      throw new IllegalStateException("Failed to compute embedding");
+    }
+    if (key != null) {
+      embeddingCache.put(key, result, 0, null);
+    }
+    return result;
+  }
+
+  /**
+   * Writes the embedding of text at the buffer's position and advances it
+   * by {@link #getEmbeddingSize()}. The buffer must be direct and in native
+   * byte order, e.g. {@code ByteBuffer.allocateDirect(n).order(ByteOrder.nativeOrder()).asFloatBuffer()}.
+   */
+  public void embed(String text, int embdNormalize, FloatBuffer out) {
+    requireEmbedding();
+    if (!out.isDirect()) {
+      throw new IllegalArgumentException("Embedding buffer must be direct");
+    }
+    // Native code writes floats straight into the memory behind the buffer
+    if (out.order() != ByteOrder.nativeOrder()) {
+      throw new IllegalArgumentException("Embedding buffer must be in native byte order");
+    }
+    if (out.remaining() < getEmbeddingSize()) {
+      throw new IllegalArgumentException("Embedding buffer has no room for " + getEmbeddingSize() + " floats");
+    }
+    String key = embeddingKey(text, embdNormalize);
+    if (key != null && embeddingCache.get(key, out)) {
+      return;
+    }
+    int written = embeddingToBuffer(this.context, text, embdNormalize, out, out.position());
+    if (written < 0) {
+      throw new IllegalStateException("Failed to compute embedding");
+    }
+    if (key != null) {
+      FloatBuffer vector = out.duplicate();
+      vector.limit(out.position() + written);
+      embeddingCache.put(key, vector);
+    }
+    out.position(out.position() + written);
+  }
+
+  /**
+   * Embeddings of all texts as one row-major matrix of texts.length rows by
+   * {@link #getEmbeddingSize()} columns. Texts are packed into as few decodes as fit.
+   */
+  public float[] embedBatch(String[] texts, int embdNormalize) {
+    requireEmbedding();
+    if (embeddingCache == null) {
+      float[] result = embeddingBatch(this.context, texts, embdNormalize);
+      if (result == null) {
+        throw new IllegalStateException("Failed to compute embeddings");
+      }
+      return result;
+    }
+
+    // Only the texts missing from the cache go to the model
+    int nEmbd = getEmbeddingSize();
+    float[] result = new float[texts.length * nEmbd];
+    String[] keys = new String[texts.length];
+    List<Integer> missing = new ArrayList<>();
+    for (int i = 0; i < texts.length; i++) {
+      keys[i] = embeddingKey(texts[i], embdNormalize);
+      if (!embeddingCache.get(keys[i], result, i * nEmbd)) {
+        missing.add(i);
+      }
+    }
+    if (missing.isEmpty()) {
+      return result;
+    }
+    String[] missingTexts = new String[missing.size()];
+    for (int i = 0; i < missingTexts.length; i++) {
+      missingTexts[i] = texts[missing.get(i)];
+    }
+    float[] computed = embeddingBatch(this.context, missingTexts, embdNormalize);
+    if (computed == null) {
+      throw new IllegalStateException("Failed to compute embeddings");
+    }
+    for (int i = 0; i < missingTexts.length; i++) {
+      int row = missing.get(i);
+      System.arraycopy(computed, i * nEmbd, result, row * nEmbd, nEmbd);
+      embeddingCache.put(keys[row], computed, i * nEmbd, null);
+    }
+    return result;
+  }
+
+  private String embeddingKey(String text, int embdNormalize) {
+    if (embeddingCache == null) {
+      return null;
+    }
+    MessageDigest digest = modelDigest();
+    digest.update((byte) 0);
+    digest.update(Integer.toString(embdNormalize).getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    digest.update(text.getBytes(StandardCharsets.UTF_8));
+    return hex(digest.digest());
+  }
+
+  public WritableMap getEmbeddingCacheStats() {
+    WritableMap stats = Arguments.createMap();
+    stats.putBoolean("enabled", embeddingCache != null);
+    if (embeddingCache != null) {
+      stats.putDouble("hits", embeddingCache.hits());
+      stats.putDouble("misses", embeddingCache.misses());
+      stats.putInt("entries", embeddingCache.size());
+      stats.putInt("capacity", embeddingCache.capacity());
+      stats.putDouble("bytes", embeddingCache.sizeBytes());
+    }
+    return stats;
+  }
+
+  public WritableMap getEmbeddingBatch(ReadableArray texts, ReadableMap params) {
+    String[] textArray = new String[texts.size()];
+    for (int i = 0; i < texts.size(); i++) {
+      textArray[i] = texts.getString(i);
+    }
+    float[] matrix = embedBatch(
+      textArray,
       // int embd_normalize,
       params.hasKey("embd_normalize") ? params.getInt("embd_normalize") : -1
     );
-    if (result.hasKey("error")) {
-      throw new IllegalStateException(result.getString("error"));
+    int nEmbd = getEmbeddingSize();
+    WritableArray embeddings = Arguments.createArray();
+    for (int row = 0; row < textArray.length; row++) {
+      WritableArray embedding = Arguments.createArray();
+      for (int col = 0; col < nEmbd; col++) {
+        embedding.pushDouble(matrix[row * nEmbd + col]);
+      }
+      embeddings.pushArray(embedding);
     }
+    WritableMap result = Arguments.createMap();
+    result.putArray("embeddings", embeddings);
+    return result;
+  }
+
+  public WritableMap getEmbedding(String text, ReadableMap params) {
+    requireEmbedding();
+    int embdNormalize = params.hasKey("embd_normalize") ? params.getInt("embd_normalize") : -1;
+    String key = embeddingKey(text, embdNormalize);
+    float[] embedding = null;
+    String[] tokens = null;
+    if (key != null) {
+      embedding = new float[getEmbeddingSize()];
+      if (embeddingCache.get(key, embedding, 0)) {
+        tokens = embeddingCache.promptTokens(key);
+        if (tokens == null) {
+          // Stored by embed() or embedBatch(), which skip the tokens; tokenizing is enough to rebuild them
+          tokens = promptTokenPieces(this.context, text);
+          embeddingCache.putPromptTokens(key, tokens);
+        }
+      } else {
+        embedding = null;
+      }
+    }
+    if (embedding == null) {
+      embedding = embedding(this.context, text, embdNormalize);
+      if (embedding == null) {
+        throw new IllegalStateException("Failed to compute embedding");
+      }
+      tokens = embeddingPromptTokens(this.context);
+      if (key != null) {
+        embeddingCache.put(key, embedding, 0, tokens);
+      }
+    }
+    WritableMap result = Arguments.createMap();
+    WritableArray embeddingArray = Arguments.createArray();
+    for (float value : embedding) {
+      embeddingArray.pushDouble(value);
+    }
+    result.putArray("embedding", embeddingArray);
+    WritableArray promptTokens = Arguments.createArray();
+    for (String token : tokens) {
+      promptTokens.pushString(token);
+    }
+    result.putArray("prompt_tokens", promptTokens);
     return result;
   }
 
@@ -383,6 +964,7 @@ public class LlamaContext {
   }
 
   public int applyLoraAdapters(ReadableArray loraAdapters) {
+    clearEmbeddingCache();
     int result = applyLoraAdapters(this.context, loraAdapters);
     if (result != 0) {
       throw new IllegalStateException("Failed to apply lora adapters");
@@ -391,7 +973,16 @@ public class LlamaContext {
   }
 
   public void removeLoraAdapters() {
-    removeLoraAdapters(this.context);
+    clearEmbeddingCache();
+    if (!removeLoraAdapters(this.context)) {
+      throw new IllegalStateException("Failed to remove lora adapters");
+    }
+  }
+
+  private void clearEmbeddingCache() {
+    if (embeddingCache != null) {
+      embeddingCache.clear();
+    }
   }
 
   public WritableArray getLoadedLoraAdapters() {
@@ -399,12 +990,15 @@ public class LlamaContext {
   }
 
   public void release() {
+    for (StateSnapshot snapshot : snapshots.values()) {
+      releaseSnapshot(snapshot);
+    }
     freeContext(context);
   }
 
   // Multimodal methods
-  public boolean initMultimodal(String mmprojPath, boolean useGpu) {
-    return initMultimodal(this.context, mmprojPath, useGpu);
+  public boolean initMultimodal(String mmprojPath, boolean useGpu, int mediaCacheMb) {
+    return initMultimodal(this.context, mmprojPath, useGpu, mediaCacheMb);
   }
 
   public boolean isMultimodalEnabled() {
@@ -424,15 +1018,30 @@ public class LlamaContext {
   }
 
   public WritableMap multimodalCompletion(String prompt, ReadableArray mediaPaths, ReadableMap params) {
-    if (!params.hasKey("prompt")) {
-      params = Arguments.createMap();
-      ((WritableMap) params).putString("prompt", prompt);
-    }
+    return multimodalCompletion(prompt, mediaPaths, params, null);
+  }
 
+  WritableMap multimodalCompletion(String prompt, ReadableArray mediaPaths, ReadableMap params, CancellationToken token) {
     String[] mediaPathsArray = new String[mediaPaths.size()];
     for (int i = 0; i < mediaPaths.size(); i++) {
       mediaPathsArray[i] = mediaPaths.getString(i);
     }
+    return multimodalCompletion(prompt, mediaPathsArray, new MediaBuffer[0], params, token);
+  }
+
+  /**
+   * Completion over media given as paths and as in-memory buffers. Buffers
+   * follow the paths in the order media markers in the prompt are matched.
+   */
+  public WritableMap multimodalCompletion(String prompt, String[] mediaPathsArray, MediaBuffer[] mediaBuffers, ReadableMap params) {
+    return multimodalCompletion(prompt, mediaPathsArray, mediaBuffers, params, null);
+  }
+
+  private WritableMap multimodalCompletion(String prompt, String[] mediaPathsArray, MediaBuffer[] mediaBuffers, ReadableMap params, CancellationToken token) {
+    if (!params.hasKey("prompt")) {
+      params = Arguments.createMap();
+      ((WritableMap) params).putString("prompt", prompt);
+    }
 
     double[][] logit_bias = new double[0][0];
     if (params.hasKey("logit_bias")) {
@@ -447,10 +1056,13 @@ public class LlamaContext {
       }
     }
 
+    PartialCompletionCallback partialCompletionCallback = PartialCompletionCallback.fromParams(this, params, token);
     WritableMap result = doMultimodalCompletion(
       this.context,
       prompt,
       mediaPathsArray,
+      MediaBuffer.buffers(mediaBuffers),
+      MediaBuffer.info(mediaBuffers),
       params.hasKey("chat_format") ? params.getInt("chat_format") : 0,
       params.hasKey("grammar") ? params.getString("grammar") : "",
       params.hasKey("json_schema") ? params.getString("json_schema") : "",
@@ -484,11 +1096,9 @@ public class LlamaContext {
       params.hasKey("dry_penalty_last_n") ? params.getInt("dry_penalty_last_n") : -1,
       params.hasKey("top_n_sigma") ? (float) params.getDouble("top_n_sigma") : -1.0f,
       params.hasKey("dry_sequence_breakers") ? params.getArray("dry_sequence_breakers").toArrayList().toArray(new String[0]) : new String[]{"\n", ":", "\"", "*"},
-      new PartialCompletionCallback(
-        this,
-        params.hasKey("emit_partial_completion") ? params.getBoolean("emit_partial_completion") : false
-      )
+      partialCompletionCallback
     );
+    partialCompletionCallback.flush();
     if (result.hasKey("error")) {
       throw new IllegalStateException(result.getString("error"));
     }
@@ -500,7 +1110,14 @@ public class LlamaContext {
     for (int i = 0; i < mediaPaths.size(); i++) {
       mediaPathsArray[i] = mediaPaths.getString(i);
     }
-    WritableMap result = tokenize(this.context, text, mediaPathsArray);
+    return tokenize(text, mediaPathsArray, new MediaBuffer[0]);
+  }
+
+  public WritableMap tokenize(String text, String[] mediaPaths, MediaBuffer[] mediaBuffers) {
+    WritableMap result = tokenize(this.context, text, mediaPaths, MediaBuffer.buffers(mediaBuffers), MediaBuffer.info(mediaBuffers));
+    if (result.hasKey("error")) {
+      throw new IllegalStateException(result.getString("error"));
+    }
     return result;
   }
 
@@ -533,6 +1150,18 @@ public class LlamaContext {
     return decodeAudioTokens(this.context, toks);
   }
 
+  int[] filterAudioTokens(int[] tokens) {
+    return filterAudioTokens(this.context, tokens);
+  }
+
+  float[] decodeAudioSamples(int[] audioTokens) {
+    float[] samples = decodeAudioSamples(this.context, audioTokens);
+    if (samples == null) {
+      throw new IllegalStateException("Failed to decode audio tokens");
+    }
+    return samples;
+  }
+
   public WritableMap getDeviceInfo() {
     WritableMap deviceInfo = Arguments.createMap();
 
@@ -639,10 +1268,6 @@ public class LlamaContext {
     }
   }
 
-  protected static native WritableMap modelInfo(
-    String model,
-    String[] skip
-  );
   protected static native long initContext(
     String model,
     String chat_template,
@@ -666,9 +1291,14 @@ public class LlamaContext {
     float rope_freq_base,
     float rope_freq_scale,
     int pooling_type,
+    int n_parallel,
+    int prefix_cache_mb,
+    boolean background_warmup,
     LoadProgressCallback load_progress_callback
   );
   protected static native void interruptLoad(long contextPtr);
+  protected static native boolean warmup(long contextPtr, LoadProgressCallback progress_callback);
+  protected static native boolean warmupDecode(long contextPtr);
   protected static native WritableMap loadModelDetails(
     long contextPtr
   );
@@ -690,11 +1320,22 @@ public class LlamaContext {
     long contextPtr,
     String path
   );
+  protected static native int checkpointSession(long contextPtr, String path);
+  protected static native WritableMap loadCheckpoint(long contextPtr, String path);
+  protected static native void flushCheckpoints(long contextPtr);
+  protected static native long snapshotState(long contextPtr);
+  protected static native boolean restoreState(long contextPtr, long snapshotPtr);
+  protected static native int stateTokenCount(long snapshotPtr);
+  protected static native long stateSize(long snapshotPtr);
+  protected static native void releaseState(long snapshotPtr);
   protected static native int saveSession(
     long contextPtr,
     String path,
     int size
   );
+  protected static native int[] tokenizePrompt(long contextPtr, String prompt);
+  protected static native String[] promptTokenPieces(long contextPtr, String prompt);
+  protected static native int prefillPrompt(long contextPtr, String prompt);
   protected static native WritableMap doCompletion(
     long context_ptr,
     String prompt,
@@ -731,28 +1372,44 @@ public class LlamaContext {
     int dry_penalty_last_n,
     float top_n_sigma,
     String[] dry_sequence_breakers,
-    PartialCompletionCallback partial_completion_callback
+    PartialCompletionCallback partial_completion_callback,
+    ByteBuffer token_ring
   );
   protected static native void stopCompletion(long contextPtr);
   protected static native boolean isPredicting(long contextPtr);
+  protected static native boolean isParallelEnabled(long contextPtr);
   protected static native WritableArray tokenize(long contextPtr, String text);
   protected static native String detokenize(long contextPtr, int[] tokens);
   protected static native boolean isEmbeddingEnabled(long contextPtr);
-  protected static native WritableMap embedding(
+  protected static native int embeddingSize(long contextPtr);
+  protected static native float[] embedding(
     long contextPtr,
     String text,
     int embd_normalize
   );
+  protected static native int embeddingToBuffer(
+    long contextPtr,
+    String text,
+    int embd_normalize,
+    FloatBuffer buffer,
+    int offset
+  );
+  protected static native float[] embeddingBatch(
+    long contextPtr,
+    String[] texts,
+    int embd_normalize
+  );
+  protected static native String[] embeddingPromptTokens(long contextPtr);
   protected static native String bench(long contextPtr, int pp, int tg, int pl, int nr);
   protected static native int applyLoraAdapters(long contextPtr, ReadableArray loraAdapters);
-  protected static native void removeLoraAdapters(long contextPtr);
+  protected static native boolean removeLoraAdapters(long contextPtr);
   protected static native WritableArray getLoadedLoraAdapters(long contextPtr);
   protected static native void freeContext(long contextPtr);
   protected static native void setupLog(NativeLogCallback logCallback);
   protected static native void unsetLog();
 
   // Multimodal native methods
-  protected static native boolean initMultimodal(long contextPtr, String mmprojPath, boolean useGpu);
+  protected static native boolean initMultimodal(long contextPtr, String mmprojPath, boolean useGpu, int mediaCacheMb);
   protected static native boolean isMultimodalEnabled(long contextPtr);
   protected static native boolean isMultimodalSupportVision(long contextPtr);
   protected static native boolean isMultimodalSupportAudio(long contextPtr);
@@ -761,6 +1418,8 @@ public class LlamaContext {
     long contextPtr,
     String prompt,
     String[] mediaPaths,
+    ByteBuffer[] mediaBuffers,
+    int[] mediaBufferInfo,
     int chat_format,
     String grammar,
     String json_schema,
@@ -796,7 +1455,7 @@ public class LlamaContext {
     String[] dry_sequence_breakers,
     PartialCompletionCallback partial_completion_callback
   );
-  protected static native WritableMap tokenize(long contextPtr, String text, String[] mediaPaths);
+  protected static native WritableMap tokenize(long contextPtr, String text, String[] mediaPaths, ByteBuffer[] mediaBuffers, int[] mediaBufferInfo);
 
   // TTS/Vocoder native methods
   protected static native boolean initVocoder(long contextPtr, String vocoderModelPath);
@@ -805,5 +1464,7 @@ public class LlamaContext {
   protected static native String getFormattedAudioCompletion(long contextPtr, String speakerJsonStr, String textToSpeak);
   protected static native WritableArray getAudioCompletionGuideTokens(long contextPtr, String textToSpeak);
   protected static native WritableArray decodeAudioTokens(long contextPtr, int[] tokens);
+  protected static native int[] filterAudioTokens(long contextPtr, int[] tokens);
+  protected static native float[] decodeAudioSamples(long contextPtr, int[] tokens);
   protected static native void releaseVocoder(long contextPtr);
 }
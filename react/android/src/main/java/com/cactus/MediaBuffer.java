@@ -0,0 +1,86 @@
+package com.cactus;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Raw image or audio for a multimodal prompt, read straight from a direct
+ * ByteBuffer instead of going through a file. The bytes between the
+ * buffer's position and limit are used, and must stay untouched until the
+ * call they are passed to returns.
+ */
+public class MediaBuffer {
+  // Same values as cactus::media_format
+  static final int FORMAT_RGB = 0;
+  static final int FORMAT_RGBA = 1;
+  static final int FORMAT_NV21 = 2;
+  static final int FORMAT_PCM_F32 = 3;
+  static final int FORMAT_PCM_S16 = 4;
+
+  /** Ints per buffer in the info array handed to native code. */
+  static final int INFO_SIZE = 6;
+
+  final ByteBuffer buffer;
+  final int format;
+  final int width;
+  final int height;
+  final int rowStride;
+
+  private MediaBuffer(ByteBuffer buffer, int format, int width, int height, int rowStride) {
+    if (!buffer.isDirect()) {
+      throw new IllegalArgumentException("Media buffers must be direct ByteBuffers");
+    }
+    this.buffer = buffer;
+    this.format = format;
+    this.width = width;
+    this.height = height;
+    this.rowStride = rowStride;
+  }
+
+  /** Packed 8-bit RGB pixels; rowStride is bytes per row, or 0 when rows are packed. */
+  public static MediaBuffer rgb(ByteBuffer pixels, int width, int height, int rowStride) {
+    return new MediaBuffer(pixels, FORMAT_RGB, width, height, rowStride);
+  }
+
+  /** 8-bit RGBA pixels, such as an ARGB_8888 Bitmap copied out with copyPixelsToBuffer. */
+  public static MediaBuffer rgba(ByteBuffer pixels, int width, int height, int rowStride) {
+    return new MediaBuffer(pixels, FORMAT_RGBA, width, height, rowStride);
+  }
+
+  /** NV21 camera frame: the Y plane followed by interleaved V/U samples, both with rowStride. */
+  public static MediaBuffer nv21(ByteBuffer frame, int width, int height, int rowStride) {
+    return new MediaBuffer(frame, FORMAT_NV21, width, height, rowStride);
+  }
+
+  /** Mono float PCM at 16 kHz in native byte order. */
+  public static MediaBuffer pcmFloat(ByteBuffer samples) {
+    return new MediaBuffer(samples, FORMAT_PCM_F32, 0, 0, 0);
+  }
+
+  /** Mono 16-bit PCM at 16 kHz in native byte order. */
+  public static MediaBuffer pcm16(ByteBuffer samples) {
+    return new MediaBuffer(samples, FORMAT_PCM_S16, 0, 0, 0);
+  }
+
+  static ByteBuffer[] buffers(MediaBuffer[] media) {
+    ByteBuffer[] buffers = new ByteBuffer[media.length];
+    for (int i = 0; i < media.length; i++) {
+      buffers[i] = media[i].buffer;
+    }
+    return buffers;
+  }
+
+  static int[] info(MediaBuffer[] media) {
+    int[] info = new int[media.length * INFO_SIZE];
+    for (int i = 0; i < media.length; i++) {
+      MediaBuffer m = media[i];
+      int o = i * INFO_SIZE;
+      info[o] = m.format;
+      info[o + 1] = m.buffer.position();
+      info[o + 2] = m.buffer.remaining();
+      info[o + 3] = m.width;
+      info[o + 4] = m.height;
+      info[o + 5] = m.rowStride;
+    }
+    return info;
+  }
+}
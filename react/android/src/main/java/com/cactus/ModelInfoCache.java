@@ -0,0 +1,172 @@
+package com.cactus;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * GGUF metadata cache in front of {@link GgufReader}. Entries are keyed by
+ * path and skip list, and are valid while the file's length and
+ * lastModified are unchanged. Held in an in-memory LRU that is mirrored to
+ * a small index file so unchanged models skip parsing across launches.
+ */
+class ModelInfoCache {
+  private static final String NAME = "ModelInfoCache";
+  private static final int MAGIC = 0x43474d49; // "CGMI"
+  private static final int FORMAT_VERSION = 1;
+
+  private static final class Entry {
+    final long length;
+    final long lastModified;
+    final GgufReader.Info info;
+
+    Entry(long length, long lastModified, GgufReader.Info info) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.info = info;
+    }
+  }
+
+  private final File indexFile;
+  private final LinkedHashMap<String, Entry> entries;
+  private boolean loaded;
+
+  ModelInfoCache(File indexFile, final int maxEntries) {
+    this.indexFile = indexFile;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  GgufReader.Info get(String path, String[] skip) throws IOException {
+    File file = new File(path);
+    long length = file.length();
+    long lastModified = file.lastModified();
+    String key = key(path, skip);
+
+    synchronized (this) {
+      load();
+      Entry entry = entries.get(key);
+      if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+        return entry.info;
+      }
+    }
+
+    GgufReader.Info info = GgufReader.read(path, skip);
+    synchronized (this) {
+      entries.put(key, new Entry(length, lastModified, info));
+      save();
+    }
+    return info;
+  }
+
+  private static String key(String path, String[] skip) {
+    String[] sorted = skip.clone();
+    Arrays.sort(sorted);
+    StringBuilder sb = new StringBuilder(path);
+    for (String s : sorted) {
+      sb.append('\0').append(s);
+    }
+    return sb.toString();
+  }
+
+  private void load() {
+    if (loaded) return;
+    loaded = true;
+    if (!indexFile.exists()) return;
+    long limit = indexFile.length();
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+          return;
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          String key = readString(in, limit);
+          long length = in.readLong();
+          long lastModified = in.readLong();
+          int version = in.readInt();
+          int alignment = in.readInt();
+          long dataOffset = in.readLong();
+          int nMeta = in.readInt();
+          LinkedHashMap<String, String> metadata = new LinkedHashMap<>();
+          for (int j = 0; j < nMeta; j++) {
+            metadata.put(readString(in, limit), readString(in, limit));
+          }
+          entries.put(key, new Entry(length, lastModified, new GgufReader.Info(version, alignment, dataOffset, metadata)));
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      Log.w(NAME, "Discarding unreadable model info index", e);
+      entries.clear();
+    }
+  }
+
+  private void save() {
+    File tmp = new File(indexFile.getPath() + ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+          Entry entry = e.getValue();
+          writeString(out, e.getKey());
+          out.writeLong(entry.length);
+          out.writeLong(entry.lastModified);
+          out.writeInt(entry.info.version);
+          out.writeInt(entry.info.alignment);
+          out.writeLong(entry.info.dataOffset);
+          out.writeInt(entry.info.metadata.size());
+          for (Map.Entry<String, String> meta : entry.info.metadata.entrySet()) {
+            writeString(out, meta.getKey());
+            writeString(out, meta.getValue());
+          }
+        }
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(indexFile)) {
+        throw new IOException("Failed to replace " + indexFile);
+      }
+    } catch (IOException e) {
+      Log.w(NAME, "Failed to write model info index", e);
+      tmp.delete();
+    }
+  }
+
+  // Length-prefixed UTF-8; writeUTF caps strings at 64 KiB, which chat templates can exceed
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in, long limit) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > limit) {
+      throw new IOException("Corrupt model info index");
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,121 @@
+package com.cactus;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Where a context loads its weights from: a file path, an uncompressed APK
+ * asset, or a region of a caller-owned file descriptor. Assets and descriptors
+ * reach the native loader as a "path@offset+size" region of the underlying
+ * file, which it maps in place instead of copying the model out.
+ */
+class ModelSource implements Closeable {
+  private static final String ASSET_URI_PREFIX = "asset:///";
+  /** Default GGUF alignment; tensor data is only aligned in place when the region starts on it. */
+  private static final int GGUF_ALIGNMENT = 32;
+
+  /** Path handed to the native loader. */
+  final String path;
+  /** Stays the same across launches for the same weights, unlike descriptor numbers. */
+  final String identity;
+  private final AssetFileDescriptor asset;
+
+  private ModelSource(String path, String identity, AssetFileDescriptor asset) {
+    this.path = path;
+    this.identity = identity;
+    this.asset = asset;
+  }
+
+  static ModelSource resolve(Context context, ReadableMap params) {
+    String model = params.getString("model");
+    boolean isAsset = params.hasKey("is_model_asset") && params.getBoolean("is_model_asset");
+    if (isAsset || model.startsWith(ASSET_URI_PREFIX)) {
+      return fromAsset(context, model.startsWith(ASSET_URI_PREFIX) ? model.substring(ASSET_URI_PREFIX.length()) : model);
+    }
+    if (params.hasKey("model_fd")) {
+      return fromDescriptor(
+        params.getInt("model_fd"),
+        params.hasKey("model_offset") ? (long) params.getDouble("model_offset") : 0,
+        (long) params.getDouble("model_length")
+      );
+    }
+    return fromPath(model);
+  }
+
+  private static ModelSource fromPath(String path) {
+    File file = new File(path);
+    if (!file.exists()) {
+      throw new IllegalArgumentException("Model file does not exist: " + path);
+    }
+    if (!file.canRead()) {
+      throw new IllegalArgumentException("Model file is not readable: " + path);
+    }
+    return new ModelSource(path, path + '\0' + file.length() + '\0' + file.lastModified(), null);
+  }
+
+  private static ModelSource fromAsset(Context context, String name) {
+    AssetFileDescriptor asset;
+    try {
+      asset = context.getAssets().openFd(name);
+    } catch (IOException e) {
+      // openFd only works for assets stored uncompressed, which are the only ones that can be mapped
+      throw new IllegalArgumentException("Model asset does not exist or is compressed: " + name, e);
+    }
+    long offset = asset.getStartOffset();
+    if (offset % GGUF_ALIGNMENT != 0) {
+      // zipalign and AGP only align uncompressed assets to 4 bytes
+      try {
+        asset.close();
+      } catch (IOException e) {
+        // Nothing left to release
+      }
+      throw new IllegalArgumentException(
+        "Model asset " + name + " starts at offset " + offset + " of the APK, which is not aligned to " + GGUF_ALIGNMENT +
+        " bytes as GGUF requires. Re-align the APK with `zipalign -f " + GGUF_ALIGNMENT + "` before signing it, " +
+        "or copy the model out of the APK and load it by path"
+      );
+    }
+    int fd = asset.getParcelFileDescriptor().getFd();
+    File apk = new File(context.getApplicationInfo().sourceDir);
+    String identity = "asset:" + name + '\0' + asset.getLength() + '\0' + apk.lastModified();
+    return new ModelSource(regionPath(fd, offset, asset.getLength()), identity, asset);
+  }
+
+  private static ModelSource fromDescriptor(int fd, long offset, long length) {
+    if (fd < 0 || offset < 0 || length <= 0) {
+      throw new IllegalArgumentException("Invalid model descriptor region: fd " + fd + ", offset " + offset + ", length " + length);
+    }
+    File target = new File("/proc/self/fd/" + fd);
+    String name;
+    try {
+      name = target.getCanonicalPath();
+    } catch (IOException e) {
+      name = target.getPath();
+    }
+    String identity = name + '\0' + offset + '\0' + length + '\0' + new File(name).lastModified();
+    return new ModelSource(regionPath(fd, offset, length), identity, null);
+  }
+
+  private static String regionPath(int fd, long offset, long length) {
+    return "/proc/self/fd/" + fd + "@" + offset + "+" + length;
+  }
+
+  /** The loader keeps its own mapping, so an asset can be closed once the context exists. */
+  @Override
+  public void close() {
+    if (asset == null) {
+      return;
+    }
+    try {
+      asset.close();
+    } catch (IOException e) {
+      // Nothing left to release
+    }
+  }
+}
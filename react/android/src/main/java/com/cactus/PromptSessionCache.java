@@ -0,0 +1,92 @@
+package com.cactus;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Directory of session files holding the KV state of a prefilled prompt,
+ * named by a hash of the model and the prompt tokens. A file's lastModified
+ * doubles as its last use, and the least recently used files are deleted once
+ * the directory grows past its size cap.
+ */
+class PromptSessionCache {
+  private static final String NAME = "PromptSessionCache";
+  private static final String SUFFIX = ".session";
+
+  private final File dir;
+  private final long maxBytes;
+
+  PromptSessionCache(File dir, long maxBytes) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+  }
+
+  /** The cached session for key, marked as just used, or null. */
+  synchronized File get(String key) {
+    File file = new File(dir, key + SUFFIX);
+    if (!file.isFile()) {
+      return null;
+    }
+    file.setLastModified(System.currentTimeMillis());
+    return file;
+  }
+
+  /** Where to write a new session for key before handing it to {@link #put}. */
+  synchronized File tempFile(String key) {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      Log.w(NAME, "Failed to create " + dir);
+    }
+    return new File(dir, key + SUFFIX + ".tmp");
+  }
+
+  synchronized void put(String key, File tmp) {
+    File file = new File(dir, key + SUFFIX);
+    if (tmp.length() > maxBytes || !tmp.renameTo(file)) {
+      tmp.delete();
+      return;
+    }
+    evict(file);
+  }
+
+  synchronized void remove(String key) {
+    new File(dir, key + SUFFIX).delete();
+  }
+
+  private void evict(File keep) {
+    File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+    if (files == null) {
+      return;
+    }
+    long total = 0;
+    for (File file : files) {
+      total += file.length();
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+    final long[] lastUsed = new long[files.length];
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < files.length; i++) {
+      lastUsed[i] = files[i].lastModified();
+      order.add(i);
+    }
+    Collections.sort(order, (a, b) -> Long.compare(lastUsed[a], lastUsed[b]));
+    for (int i : order) {
+      if (total <= maxBytes) {
+        break;
+      }
+      File file = files[i];
+      if (file.equals(keep)) {
+        continue;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        total -= length;
+      }
+    }
+  }
+}
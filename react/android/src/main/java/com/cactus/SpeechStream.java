@@ -0,0 +1,150 @@
+package com.cactus;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Turns the audio codes of a running TTS completion into PCM while the model
+ * is still generating. A second thread drains the completion's token ring and
+ * runs the vocoder over windows of codes that overlap their neighbours by a
+ * few codes on each side; the overlapping audio is cross-faded, so chunk
+ * boundaries do not click even though each window is decoded on its own.
+ */
+public class SpeechStream {
+  public interface Listener {
+    /** Mono float PCM at {@link #SAMPLE_RATE}; last is set on the final, possibly empty, chunk. */
+    void onAudio(float[] samples, boolean last);
+  }
+
+  /** Output rate of the WavTokenizer vocoder. */
+  public static final int SAMPLE_RATE = 24000;
+
+  private static final long POLL_INTERVAL_MS = 5;
+
+  private final LlamaContext context;
+  private final TokenRing ring;
+  private final int firstChunkCodes;
+  private final int chunkCodes;
+  private final int overlapCodes;
+  private final Listener listener;
+  private final CountDownLatch done = new CountDownLatch(1);
+
+  private int[] codes = new int[256];
+  private int count;
+  private int emitted;
+  private float[] tail;
+  private volatile boolean finished;
+  private volatile Throwable error;
+
+  SpeechStream(LlamaContext context, TokenRing ring, int firstChunkCodes, int chunkCodes, int overlapCodes, Listener listener) {
+    if (firstChunkCodes <= 0 || chunkCodes <= 0 || overlapCodes < 0) {
+      throw new IllegalArgumentException("Invalid audio chunking: first " + firstChunkCodes + ", chunk " + chunkCodes + ", overlap " + overlapCodes);
+    }
+    this.context = context;
+    this.ring = ring;
+    this.firstChunkCodes = firstChunkCodes;
+    this.chunkCodes = chunkCodes;
+    this.overlapCodes = overlapCodes;
+    this.listener = listener;
+  }
+
+  void start() {
+    // Own thread rather than the bridge pool, which may be a single thread already busy with the completion
+    Thread thread = new Thread(this::run, "cactus-speech");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Called once the completion has returned, including when it failed before writing to the ring. */
+  void finish() {
+    finished = true;
+  }
+
+  /** Waits until every chunk has been handed to the listener, rethrowing a decode failure. */
+  void await() throws InterruptedException {
+    done.await();
+    Throwable e = error;
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    }
+    if (e != null) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        // Checked before polling so nothing can be written after the last poll
+        boolean last = finished || ring.isClosed();
+        List<TokenRing.Token> tokens = ring.poll();
+        if (!tokens.isEmpty()) {
+          int[] ids = new int[tokens.size()];
+          for (int i = 0; i < ids.length; i++) {
+            ids[i] = tokens.get(i).id;
+          }
+          append(context.filterAudioTokens(ids));
+        }
+        decodeReady(last);
+        if (last) {
+          return;
+        }
+        if (tokens.isEmpty()) {
+          Thread.sleep(POLL_INTERVAL_MS);
+        }
+      }
+    } catch (Throwable e) {
+      error = e;
+      context.stopCompletion();
+    } finally {
+      done.countDown();
+    }
+  }
+
+  private void append(int[] audioTokens) {
+    if (count + audioTokens.length > codes.length) {
+      codes = Arrays.copyOf(codes, Math.max(codes.length * 2, count + audioTokens.length));
+    }
+    System.arraycopy(audioTokens, 0, codes, count, audioTokens.length);
+    count += audioTokens.length;
+  }
+
+  private void decodeReady(boolean last) {
+    while (true) {
+      int target = emitted + (emitted == 0 ? firstChunkCodes : chunkCodes);
+      // Without a full chunk plus its right context only the end of the stream is decoded
+      boolean end = count < target + overlapCodes;
+      if (end && !last) {
+        return;
+      }
+      if (end) {
+        if (count == emitted) {
+          listener.onAudio(new float[0], true);
+          return;
+        }
+        target = count;
+      }
+      int start = Math.max(0, emitted - overlapCodes);
+      int stop = end ? count : target + overlapCodes;
+      float[] pcm = context.decodeAudioSamples(Arrays.copyOfRange(codes, start, stop));
+      int hop = pcm.length / (stop - start);
+
+      float[] chunk = Arrays.copyOfRange(pcm, (emitted - start) * hop, (target - start) * hop);
+      if (tail != null) {
+        int fade = Math.min(tail.length, chunk.length);
+        for (int i = 0; i < fade; i++) {
+          float w = (i + 1) / (float) (fade + 1);
+          chunk[i] = tail[i] * (1 - w) + chunk[i] * w;
+        }
+      }
+      // Audio for the right context, blended into the start of the next chunk
+      tail = end || overlapCodes == 0 ? null : Arrays.copyOfRange(pcm, (target - start) * hop, (stop - start) * hop);
+      emitted = target;
+      listener.onAudio(chunk, end);
+      if (end) {
+        return;
+      }
+    }
+  }
+}
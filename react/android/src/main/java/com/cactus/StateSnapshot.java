@@ -0,0 +1,46 @@
+package com.cactus;
+
+/**
+ * In-memory copy of a context's KV state and the tokens behind it, held in
+ * native memory until {@link #release()}. Only restorable into the context
+ * that took it.
+ */
+public class StateSnapshot {
+  public final int id;
+  public final int tokenCount;
+  public final long sizeBytes;
+
+  final LlamaContext owner;
+  private long handle;
+
+  StateSnapshot(LlamaContext owner, int id, long handle, int tokenCount, long sizeBytes) {
+    this.owner = owner;
+    this.id = id;
+    this.handle = handle;
+    this.tokenCount = tokenCount;
+    this.sizeBytes = sizeBytes;
+  }
+
+  synchronized long handle() {
+    if (handle == 0) {
+      throw new IllegalStateException("Snapshot has been released");
+    }
+    return handle;
+  }
+
+  public synchronized boolean isReleased() {
+    return handle == 0;
+  }
+
+  /** Frees the native memory; safe to call more than once. */
+  public void release() {
+    owner.releaseSnapshot(this);
+  }
+
+  synchronized void free() {
+    if (handle != 0) {
+      LlamaContext.releaseState(handle);
+      handle = 0;
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package com.cactus;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-flight bridge tasks indexed by (context id, operation).
+ */
+class TaskRegistry {
+  private static final String NAME = "TaskRegistry";
+
+  /** Operations that are not bound to a context register under this id. */
+  static final int NO_CONTEXT = -1;
+
+  static final class Key {
+    final int contextId;
+    final String operation;
+
+    Key(int contextId, String operation) {
+      this.contextId = contextId;
+      this.operation = operation;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return contextId == other.contextId && operation.equals(other.operation);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * contextId + operation.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return operation + "-" + contextId;
+    }
+  }
+
+  private final ConcurrentHashMap<Key, Set<CactusTask<?>>> tasks = new ConcurrentHashMap<>();
+
+  void add(CactusTask<?> task) {
+    Set<CactusTask<?>> set = tasks.get(task.key());
+    if (set == null) {
+      Set<CactusTask<?>> created = Collections.newSetFromMap(new ConcurrentHashMap<CactusTask<?>, Boolean>());
+      set = tasks.putIfAbsent(task.key(), created);
+      if (set == null) {
+        set = created;
+      }
+    }
+    set.add(task);
+  }
+
+  void remove(CactusTask<?> task) {
+    Set<CactusTask<?>> set = tasks.get(task.key());
+    if (set != null) {
+      set.remove(task);
+    }
+  }
+
+  List<CactusTask<?>> get(int contextId, String operation) {
+    Set<CactusTask<?>> set = tasks.get(new Key(contextId, operation));
+    if (set == null) {
+      return Collections.emptyList();
+    }
+    return new ArrayList<CactusTask<?>>(set);
+  }
+
+  List<CactusTask<?>> all() {
+    List<CactusTask<?>> result = new ArrayList<>();
+    for (Set<CactusTask<?>> set : tasks.values()) {
+      result.addAll(set);
+    }
+    return result;
+  }
+
+  /**
+   * Cancels queued tasks and waits for running ones. The calling thread's own
+   * task is skipped so a task can drain the registry without waiting on itself.
+   */
+  void awaitAll() {
+    await(all());
+  }
+
+  /** Same as {@link #awaitAll()} for one operation on one context. */
+  void awaitAll(int contextId, String operation) {
+    await(get(contextId, operation));
+  }
+
+  private void await(List<CactusTask<?>> pending) {
+    Thread current = Thread.currentThread();
+    for (CactusTask<?> task : pending) {
+      if (task.isRunningOn(current) || task.cancelIfNotStarted()) {
+        continue;
+      }
+      try {
+        task.get();
+      } catch (Exception e) {
+        Log.e(NAME, "Failed to wait for task " + task.key(), e);
+      }
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package com.cactus;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pull-based token stream filled by the native decode loop without calling
+ * back into Java. Single producer (the running completion) and single
+ * consumer (the thread calling {@link #poll()}). The ring is reset when a
+ * completion starts, so drain it until {@link #isClosed()} before starting
+ * the next one. Every generated token gets a record; text held back by a
+ * partial stop word or an incomplete UTF-8 sequence arrives with a later
+ * token, so a record's text may be empty.
+ */
+public class TokenRing {
+  public static final class Token {
+    public final int id;
+    public final String text;
+
+    Token(int id, String text) {
+      this.id = id;
+      this.text = text;
+    }
+  }
+
+  // Must match TOKEN_RING_HEADER in token-ring.h
+  private static final int HEADER = 64;
+  private static final int RECORD_HEADER = 8;
+
+  private final ByteBuffer buffer;
+  private final int capacity;
+  private final byte[] recordHeader = new byte[RECORD_HEADER];
+
+  public TokenRing(int capacityBytes) {
+    if (capacityBytes <= RECORD_HEADER) {
+      throw new IllegalArgumentException("Token ring capacity is too small: " + capacityBytes);
+    }
+    this.capacity = capacityBytes;
+    this.buffer = ByteBuffer.allocateDirect(HEADER + capacityBytes).order(ByteOrder.nativeOrder());
+  }
+
+  ByteBuffer buffer() {
+    return buffer;
+  }
+
+  /** Takes every token written since the last poll; never blocks. */
+  public List<Token> poll() {
+    long read = readIndex(buffer);
+    long write = writeIndex(buffer);
+    List<Token> tokens = new ArrayList<>();
+    while (read + RECORD_HEADER <= write) {
+      copyOut(read, recordHeader);
+      ByteBuffer header = ByteBuffer.wrap(recordHeader).order(ByteOrder.nativeOrder());
+      int id = header.getInt();
+      byte[] bytes = new byte[header.getInt()];
+      copyOut(read + RECORD_HEADER, bytes);
+      tokens.add(new Token(id, new String(bytes, StandardCharsets.UTF_8)));
+      read += RECORD_HEADER + bytes.length;
+    }
+    if (!tokens.isEmpty()) {
+      release(buffer, read);
+    }
+    return tokens;
+  }
+
+  /** True once the completion has finished and every token has been polled. */
+  public boolean isClosed() {
+    return isClosed(buffer) && readIndex(buffer) == writeIndex(buffer);
+  }
+
+  private void copyOut(long index, byte[] dst) {
+    int pos = (int) (index % capacity);
+    int first = Math.min(dst.length, capacity - pos);
+    ByteBuffer view = buffer.duplicate();
+    view.position(HEADER + pos);
+    view.get(dst, 0, first);
+    if (first < dst.length) {
+      view.position(HEADER);
+      view.get(dst, first, dst.length - first);
+    }
+  }
+
+  private static native long writeIndex(ByteBuffer buffer);
+  private static native long readIndex(ByteBuffer buffer);
+  private static native void release(ByteBuffer buffer, long readIndex);
+  private static native boolean isClosed(ByteBuffer buffer);
+}
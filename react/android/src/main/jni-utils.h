@@ -1,25 +1,125 @@
 #include <jni.h>
 
+// Class and method IDs resolved once in JNI_OnLoad
+
+namespace jnicache {
+
+struct ids {
+    jclass arguments;
+    jclass string;
+    jmethodID createMap;
+    jmethodID createArray;
+
+    jmethodID mapPutString;
+    jmethodID mapPutInt;
+    jmethodID mapPutDouble;
+    jmethodID mapPutBoolean;
+    jmethodID mapPutMap;
+    jmethodID mapPutArray;
+
+    jmethodID arrayPushInt;
+    jmethodID arrayPushDouble;
+    jmethodID arrayPushString;
+    jmethodID arrayPushMap;
+
+    jmethodID readableArraySize;
+    jmethodID readableArrayGetMap;
+    jmethodID readableArrayGetString;
+
+    jmethodID readableMapHasKey;
+    jmethodID readableMapGetInt;
+    jmethodID readableMapGetBoolean;
+    jmethodID readableMapGetLong;
+    jmethodID readableMapGetDouble;
+    jmethodID readableMapGetString;
+
+    jmethodID onLoadProgress;
+    jmethodID onPartialCompletion;
+    jmethodID isStopRequested;
+    jmethodID emitNativeLog;
+};
+
+static ids cache;
+
+static bool init(JNIEnv *env) {
+    jclass arguments = env->FindClass("com/facebook/react/bridge/Arguments");
+    jclass string = env->FindClass("java/lang/String");
+    jclass writableMap = env->FindClass("com/facebook/react/bridge/WritableMap");
+    jclass writableArray = env->FindClass("com/facebook/react/bridge/WritableArray");
+    jclass readableArray = env->FindClass("com/facebook/react/bridge/ReadableArray");
+    jclass readableMap = env->FindClass("com/facebook/react/bridge/ReadableMap");
+    jclass loadProgressCallback = env->FindClass("com/cactus/LlamaContext$LoadProgressCallback");
+    jclass partialCompletionCallback = env->FindClass("com/cactus/LlamaContext$PartialCompletionCallback");
+    jclass nativeLogCallback = env->FindClass("com/cactus/LlamaContext$NativeLogCallback");
+    if (env->ExceptionCheck()) {
+        return false;
+    }
+
+    // Static calls and array allocation need the class itself, so these outlive this frame
+    cache.arguments = (jclass) env->NewGlobalRef(arguments);
+    cache.string = (jclass) env->NewGlobalRef(string);
+    env->DeleteLocalRef(arguments);
+    env->DeleteLocalRef(string);
+
+    cache.createMap = env->GetStaticMethodID(cache.arguments, "createMap", "()Lcom/facebook/react/bridge/WritableMap;");
+    cache.createArray = env->GetStaticMethodID(cache.arguments, "createArray", "()Lcom/facebook/react/bridge/WritableArray;");
+
+    cache.mapPutString = env->GetMethodID(writableMap, "putString", "(Ljava/lang/String;Ljava/lang/String;)V");
+    cache.mapPutInt = env->GetMethodID(writableMap, "putInt", "(Ljava/lang/String;I)V");
+    cache.mapPutDouble = env->GetMethodID(writableMap, "putDouble", "(Ljava/lang/String;D)V");
+    cache.mapPutBoolean = env->GetMethodID(writableMap, "putBoolean", "(Ljava/lang/String;Z)V");
+    cache.mapPutMap = env->GetMethodID(writableMap, "putMap", "(Ljava/lang/String;Lcom/facebook/react/bridge/ReadableMap;)V");
+    cache.mapPutArray = env->GetMethodID(writableMap, "putArray", "(Ljava/lang/String;Lcom/facebook/react/bridge/ReadableArray;)V");
+
+    cache.arrayPushInt = env->GetMethodID(writableArray, "pushInt", "(I)V");
+    cache.arrayPushDouble = env->GetMethodID(writableArray, "pushDouble", "(D)V");
+    cache.arrayPushString = env->GetMethodID(writableArray, "pushString", "(Ljava/lang/String;)V");
+    cache.arrayPushMap = env->GetMethodID(writableArray, "pushMap", "(Lcom/facebook/react/bridge/ReadableMap;)V");
+
+    cache.readableArraySize = env->GetMethodID(readableArray, "size", "()I");
+    cache.readableArrayGetMap = env->GetMethodID(readableArray, "getMap", "(I)Lcom/facebook/react/bridge/ReadableMap;");
+    cache.readableArrayGetString = env->GetMethodID(readableArray, "getString", "(I)Ljava/lang/String;");
+
+    cache.readableMapHasKey = env->GetMethodID(readableMap, "hasKey", "(Ljava/lang/String;)Z");
+    cache.readableMapGetInt = env->GetMethodID(readableMap, "getInt", "(Ljava/lang/String;)I");
+    cache.readableMapGetBoolean = env->GetMethodID(readableMap, "getBoolean", "(Ljava/lang/String;)Z");
+    cache.readableMapGetLong = env->GetMethodID(readableMap, "getLong", "(Ljava/lang/String;)J");
+    cache.readableMapGetDouble = env->GetMethodID(readableMap, "getDouble", "(Ljava/lang/String;)D");
+    cache.readableMapGetString = env->GetMethodID(readableMap, "getString", "(Ljava/lang/String;)Ljava/lang/String;");
+
+    cache.onLoadProgress = env->GetMethodID(loadProgressCallback, "onLoadProgress", "(I)V");
+    cache.onPartialCompletion = env->GetMethodID(partialCompletionCallback, "onPartialCompletion", "(Lcom/facebook/react/bridge/WritableMap;)V");
+    cache.isStopRequested = env->GetMethodID(partialCompletionCallback, "isStopRequested", "()Z");
+    cache.emitNativeLog = env->GetMethodID(nativeLogCallback, "emitNativeLog", "(Ljava/lang/String;Ljava/lang/String;)V");
+
+    env->DeleteLocalRef(writableMap);
+    env->DeleteLocalRef(writableArray);
+    env->DeleteLocalRef(readableArray);
+    env->DeleteLocalRef(readableMap);
+    env->DeleteLocalRef(loadProgressCallback);
+    env->DeleteLocalRef(partialCompletionCallback);
+    env->DeleteLocalRef(nativeLogCallback);
+
+    // A missing method leaves a pending NoSuchMethodError
+    return !env->ExceptionCheck();
+}
+
+}
+
 // ReadableMap utils
 
 namespace readablearray {
 
 int size(JNIEnv *env, jobject readableArray) {
-    jclass arrayClass = env->GetObjectClass(readableArray);
-    jmethodID sizeMethod = env->GetMethodID(arrayClass, "size", "()I");
-    return env->CallIntMethod(readableArray, sizeMethod);
+    return env->CallIntMethod(readableArray, jnicache::cache.readableArraySize);
 }
 
 jobject getMap(JNIEnv *env, jobject readableArray, int index) {
-    jclass arrayClass = env->GetObjectClass(readableArray);
-    jmethodID getMapMethod = env->GetMethodID(arrayClass, "getMap", "(I)Lcom/facebook/react/bridge/ReadableMap;");
-    return env->CallObjectMethod(readableArray, getMapMethod, index);
+    return env->CallObjectMethod(readableArray, jnicache::cache.readableArrayGetMap, index);
 }
 
 jstring getString(JNIEnv *env, jobject readableArray, int index) {
-    jclass arrayClass = env->GetObjectClass(readableArray);
-    jmethodID getStringMethod = env->GetMethodID(arrayClass, "getString", "(I)Ljava/lang/String;");
-    return (jstring) env->CallObjectMethod(readableArray, getStringMethod, index);
+    return (jstring) env->CallObjectMethod(readableArray, jnicache::cache.readableArrayGetString, index);
 }
 
 // Other methods not used yet
@@ -29,10 +129,8 @@ jstring getString(JNIEnv *env, jobject readableArray, int index) {
 namespace readablemap {
 
 bool hasKey(JNIEnv *env, jobject readableMap, const char *key) {
-    jclass mapClass = env->GetObjectClass(readableMap);
-    jmethodID hasKeyMethod = env->GetMethodID(mapClass, "hasKey", "(Ljava/lang/String;)Z");
     jstring jKey = env->NewStringUTF(key);
-    jboolean result = env->CallBooleanMethod(readableMap, hasKeyMethod, jKey);
+    jboolean result = env->CallBooleanMethod(readableMap, jnicache::cache.readableMapHasKey, jKey);
     env->DeleteLocalRef(jKey);
     return result;
 }
@@ -41,10 +139,8 @@ int getInt(JNIEnv *env, jobject readableMap, const char *key, jint defaultValue)
     if (!hasKey(env, readableMap, key)) {
         return defaultValue;
     }
-    jclass mapClass = env->GetObjectClass(readableMap);
-    jmethodID getIntMethod = env->GetMethodID(mapClass, "getInt", "(Ljava/lang/String;)I");
     jstring jKey = env->NewStringUTF(key);
-    jint result = env->CallIntMethod(readableMap, getIntMethod, jKey);
+    jint result = env->CallIntMethod(readableMap, jnicache::cache.readableMapGetInt, jKey);
     env->DeleteLocalRef(jKey);
     return result;
 }
@@ -53,10 +149,8 @@ bool getBool(JNIEnv *env, jobject readableMap, const char *key, jboolean default
     if (!hasKey(env, readableMap, key)) {
         return defaultValue;
     }
-    jclass mapClass = env->GetObjectClass(readableMap);
-    jmethodID getBoolMethod = env->GetMethodID(mapClass, "getBoolean", "(Ljava/lang/String;)Z");
     jstring jKey = env->NewStringUTF(key);
-    jboolean result = env->CallBooleanMethod(readableMap, getBoolMethod, jKey);
+    jboolean result = env->CallBooleanMethod(readableMap, jnicache::cache.readableMapGetBoolean, jKey);
     env->DeleteLocalRef(jKey);
     return result;
 }
@@ -65,10 +159,8 @@ long getLong(JNIEnv *env, jobject readableMap, const char *key, jlong defaultVal
     if (!hasKey(env, readableMap, key)) {
         return defaultValue;
     }
-    jclass mapClass = env->GetObjectClass(readableMap);
-    jmethodID getLongMethod = env->GetMethodID(mapClass, "getLong", "(Ljava/lang/String;)J");
     jstring jKey = env->NewStringUTF(key);
-    jlong result = env->CallLongMethod(readableMap, getLongMethod, jKey);
+    jlong result = env->CallLongMethod(readableMap, jnicache::cache.readableMapGetLong, jKey);
     env->DeleteLocalRef(jKey);
     return result;
 }
@@ -77,10 +169,8 @@ float getFloat(JNIEnv *env, jobject readableMap, const char *key, jfloat default
     if (!hasKey(env, readableMap, key)) {
         return defaultValue;
     }
-    jclass mapClass = env->GetObjectClass(readableMap);
-    jmethodID getFloatMethod = env->GetMethodID(mapClass, "getDouble", "(Ljava/lang/String;)D");
     jstring jKey = env->NewStringUTF(key);
-    jfloat result = env->CallDoubleMethod(readableMap, getFloatMethod, jKey);
+    jfloat result = env->CallDoubleMethod(readableMap, jnicache::cache.readableMapGetDouble, jKey);
     env->DeleteLocalRef(jKey);
     return result;
 }
@@ -89,10 +179,8 @@ jstring getString(JNIEnv *env, jobject readableMap, const char *key, jstring def
     if (!hasKey(env, readableMap, key)) {
         return defaultValue;
     }
-    jclass mapClass = env->GetObjectClass(readableMap);
-    jmethodID getStringMethod = env->GetMethodID(mapClass, "getString", "(Ljava/lang/String;)Ljava/lang/String;");
     jstring jKey = env->NewStringUTF(key);
-    jstring result = (jstring) env->CallObjectMethod(readableMap, getStringMethod, jKey);
+    jstring result = (jstring) env->CallObjectMethod(readableMap, jnicache::cache.readableMapGetString, jKey);
     env->DeleteLocalRef(jKey);
     return result;
 }
@@ -2,10 +2,12 @@
 // #include <android/asset_manager.h>
 // #include <android/asset_manager_jni.h>
 #include <android/log.h>
+#include <algorithm>
 #include <cstdlib>
 #include <ctime>
 #include <sys/sysinfo.h>
 #include <string>
+#include <mutex>
 #include <thread>
 #include <unordered_map>
 #include "json-schema-to-grammar.h"
@@ -14,6 +16,7 @@
 #include "ggml.h"
 #include "cactus.h"
 #include "jni-utils.h"
+#include "token-ring.h"
 #define UNUSED(x) (void)(x)
 #define TAG "CACTUS_ANDROID_JNI"
 
@@ -35,178 +38,98 @@ extern "C" {
 
 // Method to create WritableMap
 static inline jobject createWriteableMap(JNIEnv *env) {
-    jclass mapClass = env->FindClass("com/facebook/react/bridge/Arguments");
-    jmethodID init = env->GetStaticMethodID(mapClass, "createMap", "()Lcom/facebook/react/bridge/WritableMap;");
-    jobject map = env->CallStaticObjectMethod(mapClass, init);
-    return map;
+    return env->CallStaticObjectMethod(jnicache::cache.arguments, jnicache::cache.createMap);
 }
 
 // Method to put string into WritableMap
 static inline void putString(JNIEnv *env, jobject map, const char *key, const char *value) {
-    jclass mapClass = env->FindClass("com/facebook/react/bridge/WritableMap");
-    jmethodID putStringMethod = env->GetMethodID(mapClass, "putString", "(Ljava/lang/String;Ljava/lang/String;)V");
-
     jstring jKey = env->NewStringUTF(key);
     jstring jValue = env->NewStringUTF(value);
 
-    env->CallVoidMethod(map, putStringMethod, jKey, jValue);
+    env->CallVoidMethod(map, jnicache::cache.mapPutString, jKey, jValue);
+    env->DeleteLocalRef(jKey);
+    env->DeleteLocalRef(jValue);
 }
 
 // Method to put int into WritableMap
 static inline void putInt(JNIEnv *env, jobject map, const char *key, int value) {
-    jclass mapClass = env->FindClass("com/facebook/react/bridge/WritableMap");
-    jmethodID putIntMethod = env->GetMethodID(mapClass, "putInt", "(Ljava/lang/String;I)V");
-
     jstring jKey = env->NewStringUTF(key);
 
-    env->CallVoidMethod(map, putIntMethod, jKey, value);
+    env->CallVoidMethod(map, jnicache::cache.mapPutInt, jKey, value);
+    env->DeleteLocalRef(jKey);
 }
 
 // Method to put double into WritableMap
 static inline void putDouble(JNIEnv *env, jobject map, const char *key, double value) {
-    jclass mapClass = env->FindClass("com/facebook/react/bridge/WritableMap");
-    jmethodID putDoubleMethod = env->GetMethodID(mapClass, "putDouble", "(Ljava/lang/String;D)V");
-
     jstring jKey = env->NewStringUTF(key);
 
-    env->CallVoidMethod(map, putDoubleMethod, jKey, value);
+    env->CallVoidMethod(map, jnicache::cache.mapPutDouble, jKey, value);
+    env->DeleteLocalRef(jKey);
 }
 
 // Method to put boolean into WritableMap
 static inline void putBoolean(JNIEnv *env, jobject map, const char *key, bool value) {
-    jclass mapClass = env->FindClass("com/facebook/react/bridge/WritableMap");
-    jmethodID putBooleanMethod = env->GetMethodID(mapClass, "putBoolean", "(Ljava/lang/String;Z)V");
-
     jstring jKey = env->NewStringUTF(key);
 
-    env->CallVoidMethod(map, putBooleanMethod, jKey, value);
+    env->CallVoidMethod(map, jnicache::cache.mapPutBoolean, jKey, value);
+    env->DeleteLocalRef(jKey);
 }
 
 // Method to put WriteableMap into WritableMap
 static inline void putMap(JNIEnv *env, jobject map, const char *key, jobject value) {
-    jclass mapClass = env->FindClass("com/facebook/react/bridge/WritableMap");
-    jmethodID putMapMethod = env->GetMethodID(mapClass, "putMap", "(Ljava/lang/String;Lcom/facebook/react/bridge/ReadableMap;)V");
-
     jstring jKey = env->NewStringUTF(key);
 
-    env->CallVoidMethod(map, putMapMethod, jKey, value);
+    env->CallVoidMethod(map, jnicache::cache.mapPutMap, jKey, value);
+    env->DeleteLocalRef(jKey);
 }
 
 // Method to create WritableArray
 static inline jobject createWritableArray(JNIEnv *env) {
-    jclass mapClass = env->FindClass("com/facebook/react/bridge/Arguments");
-    jmethodID init = env->GetStaticMethodID(mapClass, "createArray", "()Lcom/facebook/react/bridge/WritableArray;");
-    jobject map = env->CallStaticObjectMethod(mapClass, init);
-    return map;
+    return env->CallStaticObjectMethod(jnicache::cache.arguments, jnicache::cache.createArray);
 }
 
 // Method to push int into WritableArray
 static inline void pushInt(JNIEnv *env, jobject arr, int value) {
-    jclass mapClass = env->FindClass("com/facebook/react/bridge/WritableArray");
-    jmethodID pushIntMethod = env->GetMethodID(mapClass, "pushInt", "(I)V");
-
-    env->CallVoidMethod(arr, pushIntMethod, value);
+    env->CallVoidMethod(arr, jnicache::cache.arrayPushInt, value);
 }
 
 // Method to push double into WritableArray
 static inline void pushDouble(JNIEnv *env, jobject arr, double value) {
-    jclass mapClass = env->FindClass("com/facebook/react/bridge/WritableArray");
-    jmethodID pushDoubleMethod = env->GetMethodID(mapClass, "pushDouble", "(D)V");
-
-    env->CallVoidMethod(arr, pushDoubleMethod, value);
+    env->CallVoidMethod(arr, jnicache::cache.arrayPushDouble, value);
 }
 
 // Method to push string into WritableArray
 static inline void pushString(JNIEnv *env, jobject arr, const char *value) {
-    jclass mapClass = env->FindClass("com/facebook/react/bridge/WritableArray");
-    jmethodID pushStringMethod = env->GetMethodID(mapClass, "pushString", "(Ljava/lang/String;)V");
-
     jstring jValue = env->NewStringUTF(value);
-    env->CallVoidMethod(arr, pushStringMethod, jValue);
+    env->CallVoidMethod(arr, jnicache::cache.arrayPushString, jValue);
+    env->DeleteLocalRef(jValue);
 }
 
 // Method to push WritableMap into WritableArray
 static inline void pushMap(JNIEnv *env, jobject arr, jobject value) {
-    jclass mapClass = env->FindClass("com/facebook/react/bridge/WritableArray");
-    jmethodID pushMapMethod = env->GetMethodID(mapClass, "pushMap", "(Lcom/facebook/react/bridge/ReadableMap;)V");
-
-    env->CallVoidMethod(arr, pushMapMethod, value);
+    env->CallVoidMethod(arr, jnicache::cache.arrayPushMap, value);
 }
 
 // Method to put WritableArray into WritableMap
 static inline void putArray(JNIEnv *env, jobject map, const char *key, jobject value) {
-    jclass mapClass = env->FindClass("com/facebook/react/bridge/WritableMap");
-    jmethodID putArrayMethod = env->GetMethodID(mapClass, "putArray", "(Ljava/lang/String;Lcom/facebook/react/bridge/ReadableArray;)V");
-
     jstring jKey = env->NewStringUTF(key);
 
-    env->CallVoidMethod(map, putArrayMethod, jKey, value);
+    env->CallVoidMethod(map, jnicache::cache.mapPutArray, jKey, value);
+    env->DeleteLocalRef(jKey);
 }
 
-JNIEXPORT jobject JNICALL
-Java_com_cactus_LlamaContext_modelInfo(
-    JNIEnv *env,
-    jobject thiz,
-    jstring model_path_str,
-    jobjectArray skip
-) {
-    UNUSED(thiz);
-
-    const char *model_path_chars = env->GetStringUTFChars(model_path_str, nullptr);
-
-    std::vector<std::string> skip_vec;
-    int skip_len = env->GetArrayLength(skip);
-    for (int i = 0; i < skip_len; i++) {
-        jstring skip_str = (jstring) env->GetObjectArrayElement(skip, i);
-        const char *skip_chars = env->GetStringUTFChars(skip_str, nullptr);
-        skip_vec.push_back(skip_chars);
-        env->ReleaseStringUTFChars(skip_str, skip_chars);
-    }
-
-    struct lm_gguf_init_params params = {
-        /*.no_alloc = */ false,
-        /*.ctx      = */ NULL,
-    };
-    struct lm_gguf_context * ctx = lm_gguf_init_from_file(model_path_chars, params);
-
-    if (!ctx) {
-        LOGI("%s: failed to load '%s'\n", __func__, model_path_chars);
-        return nullptr;
+JNIEXPORT jint JNICALL
+JNI_OnLoad(JavaVM *vm, void *reserved) {
+    UNUSED(reserved);
+    JNIEnv *env;
+    if (vm->GetEnv((void**)&env, JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
     }
-
-    auto info = createWriteableMap(env);
-    putInt(env, info, "version", lm_gguf_get_version(ctx));
-    putInt(env, info, "alignment", lm_gguf_get_alignment(ctx));
-    putInt(env, info, "data_offset", lm_gguf_get_data_offset(ctx));
-    {
-        const int n_kv = lm_gguf_get_n_kv(ctx);
-
-        for (int i = 0; i < n_kv; ++i) {
-            const char * key = lm_gguf_get_key(ctx, i);
-
-            bool skipped = false;
-            if (skip_len > 0) {
-                for (int j = 0; j < skip_len; j++) {
-                    if (skip_vec[j] == key) {
-                        skipped = true;
-                        break;
-                    }
-                }
-            }
-
-            if (skipped) {
-                continue;
-            }
-
-            const std::string value = lm_gguf_kv_to_str(ctx, i);
-            putString(env, info, key, value.c_str());
-        }
+    if (!jnicache::init(env)) {
+        LOGE("Failed to resolve JNI class and method IDs");
+        return JNI_ERR;
     }
-
-    env->ReleaseStringUTFChars(model_path_str, model_path_chars);
-    lm_gguf_free(ctx);
-
-    return reinterpret_cast<jobject>(info);
+    return JNI_VERSION_1_6;
 }
 
 struct callback_context {
@@ -216,6 +139,23 @@ struct callback_context {
 };
 
 std::unordered_map<long, cactus::cactus_context *> context_map;
+static std::mutex context_map_mutex;
+
+static cactus::cactus_context *get_context(jlong context_ptr) {
+    std::lock_guard<std::mutex> lock(context_map_mutex);
+    auto it = context_map.find((long) context_ptr);
+    return it != context_map.end() ? it->second : nullptr;
+}
+
+static void put_context(cactus::cactus_context *llama) {
+    std::lock_guard<std::mutex> lock(context_map_mutex);
+    context_map[(long) llama->ctx] = llama;
+}
+
+static void erase_context(long key) {
+    std::lock_guard<std::mutex> lock(context_map_mutex);
+    context_map.erase(key);
+}
 
 JNIEXPORT jlong JNICALL
 Java_com_cactus_LlamaContext_initContext(
@@ -243,6 +183,9 @@ Java_com_cactus_LlamaContext_initContext(
     jfloat rope_freq_base,
     jfloat rope_freq_scale,
     jint pooling_type,
+    jint n_parallel,
+    jint prefix_cache_mb,
+    jboolean background_warmup,
     jobject load_progress_callback
 ) {
     UNUSED(thiz);
@@ -250,7 +193,7 @@ Java_com_cactus_LlamaContext_initContext(
     common_params defaultParams;
 
     defaultParams.vocab_only = vocab_only;
-    if(vocab_only) {
+    if(vocab_only || background_warmup) {
         defaultParams.warmup = false;
     }
 
@@ -270,6 +213,7 @@ Java_com_cactus_LlamaContext_initContext(
     defaultParams.n_ctx = n_ctx;
     defaultParams.n_batch = n_batch;
     defaultParams.n_ubatch = n_ubatch;
+    defaultParams.n_parallel = n_parallel > 1 ? n_parallel : 1;
 
     if (pooling_type != -1) {
         defaultParams.pooling_type = static_cast<enum llama_pooling_type>(pooling_type);
@@ -316,9 +260,7 @@ Java_com_cactus_LlamaContext_initContext(
             int percentage = (int) (100 * progress);
             if (percentage > llama->loading_progress) {
                 llama->loading_progress = percentage;
-                jclass callback_class = env->GetObjectClass(callback);
-                jmethodID onLoadProgress = env->GetMethodID(callback_class, "onLoadProgress", "(I)V");
-                env->CallVoidMethod(callback, onLoadProgress, percentage);
+                env->CallVoidMethod(callback, jnicache::cache.onLoadProgress, percentage);
             }
             return !llama->is_load_interrupted;
         };
@@ -345,7 +287,10 @@ Java_com_cactus_LlamaContext_initContext(
             llama_free(llama->ctx);
             return -1;
         }
-        context_map[(long) llama->ctx] = llama;
+        put_context(llama);
+        if (prefix_cache_mb > 0) {
+            llama->enablePrefixCache((size_t) prefix_cache_mb << 20);
+        }
     } else {
         LOGE("[CACTUS] Failed to load model from path: %s", model_path_chars);
         llama_free(llama->ctx);
@@ -383,7 +328,7 @@ Java_com_cactus_LlamaContext_initContext(
     if (result != 0) {
       LOGE("[CACTUS] Failed to apply lora adapters");
       llama_free(llama->ctx);
-      context_map.erase((long) llama->ctx);
+      erase_context((long) llama->ctx);
       delete llama;
       return -1;
     }
@@ -399,12 +344,44 @@ Java_com_cactus_LlamaContext_interruptLoad(
     jlong context_ptr
 ) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     if (llama) {
         llama->is_load_interrupted = true;
     }
 }
 
+JNIEXPORT jboolean JNICALL
+Java_com_cactus_LlamaContext_warmup(
+    JNIEnv *env,
+    jobject thiz,
+    jlong context_ptr,
+    jobject progress_callback
+) {
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+    int last_percentage = -1;
+    return llama->warmup([&](float progress) {
+        int percentage = (int) (100 * progress);
+        if (progress_callback != nullptr && percentage > last_percentage) {
+            last_percentage = percentage;
+            env->CallVoidMethod(progress_callback, jnicache::cache.onLoadProgress, percentage);
+        }
+        return !llama->is_load_interrupted;
+    });
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_cactus_LlamaContext_warmupDecode(
+    JNIEnv *env,
+    jobject thiz,
+    jlong context_ptr
+) {
+    UNUSED(env);
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+    return llama->warmupDecode();
+}
+
 JNIEXPORT jobject JNICALL
 Java_com_cactus_LlamaContext_loadModelDetails(
     JNIEnv *env,
@@ -412,7 +389,7 @@ Java_com_cactus_LlamaContext_loadModelDetails(
     jlong context_ptr
 ) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
 
     int count = llama_model_meta_count(llama->model);
     auto meta = createWriteableMap(env);
@@ -489,7 +466,7 @@ Java_com_cactus_LlamaContext_getFormattedChatWithJinja(
     jstring tool_choice
 ) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
 
     const char *messages_chars = env->GetStringUTFChars(messages, nullptr);
     const char *tmpl_chars = env->GetStringUTFChars(chat_template, nullptr);
@@ -551,7 +528,7 @@ Java_com_cactus_LlamaContext_getFormattedChat(
     jstring chat_template
 ) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
 
     const char *messages_chars = env->GetStringUTFChars(messages, nullptr);
     const char *tmpl_chars = env->GetStringUTFChars(chat_template, nullptr);
@@ -572,20 +549,16 @@ Java_com_cactus_LlamaContext_loadSession(
     jstring path
 ) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     const char *path_chars = env->GetStringUTFChars(path, nullptr);
 
     auto result = createWriteableMap(env);
-    size_t n_token_count_out = 0;
-    llama->embd.resize(llama->params.n_ctx);
-    if (!llama_state_load_file(llama->ctx, path_chars, llama->embd.data(), llama->embd.capacity(), &n_token_count_out)) {
-      env->ReleaseStringUTFChars(path, path_chars);
-
+    int n_token_count_out = llama->loadSession(path_chars);
+    env->ReleaseStringUTFChars(path, path_chars);
+    if (n_token_count_out < 0) {
       putString(env, result, "error", "Failed to load session");
       return reinterpret_cast<jobject>(result);
     }
-    llama->embd.resize(n_token_count_out);
-    env->ReleaseStringUTFChars(path, path_chars);
 
     const std::string text = cactus::tokens_to_str(llama->ctx, llama->embd.cbegin(), llama->embd.cend());
     putInt(env, result, "tokens_loaded", n_token_count_out);
@@ -602,20 +575,141 @@ Java_com_cactus_LlamaContext_saveSession(
     jint size
 ) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
 
     const char *path_chars = env->GetStringUTFChars(path, nullptr);
+    int n_tokens = llama->saveSession(path_chars, size);
+    env->ReleaseStringUTFChars(path, path_chars);
+    return n_tokens;
+}
 
-    std::vector<llama_token> session_tokens = llama->embd;
-    int default_size = session_tokens.size();
-    int save_size = size > 0 && size <= default_size ? size : default_size;
-    if (!llama_state_save_file(llama->ctx, path_chars, session_tokens.data(), save_size)) {
-      env->ReleaseStringUTFChars(path, path_chars);
-      return -1;
-    }
+JNIEXPORT jintArray JNICALL
+Java_com_cactus_LlamaContext_tokenizePrompt(
+    JNIEnv *env,
+    jobject thiz,
+    jlong context_ptr,
+    jstring prompt
+) {
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+    const char *prompt_chars = env->GetStringUTFChars(prompt, nullptr);
+    // Same tokenization loadPrompt applies to a fresh prompt
+    const std::vector<llama_token> tokens = common_tokenize(llama->ctx, prompt_chars, true, true);
+    env->ReleaseStringUTFChars(prompt, prompt_chars);
+    jintArray result = env->NewIntArray(tokens.size());
+    env->SetIntArrayRegion(result, 0, tokens.size(), tokens.data());
+    return result;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_cactus_LlamaContext_prefillPrompt(
+    JNIEnv *env,
+    jobject thiz,
+    jlong context_ptr,
+    jstring prompt
+) {
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+    const char *prompt_chars = env->GetStringUTFChars(prompt, nullptr);
+    int n_past = llama->prefillPrompt(prompt_chars);
+    env->ReleaseStringUTFChars(prompt, prompt_chars);
+    return n_past;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_cactus_LlamaContext_checkpointSession(
+    JNIEnv *env,
+    jobject thiz,
+    jlong context_ptr,
+    jstring path
+) {
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+    const char *path_chars = env->GetStringUTFChars(path, nullptr);
+    int n_tokens = llama->checkpointSession(path_chars);
+    env->ReleaseStringUTFChars(path, path_chars);
+    return n_tokens;
+}
 
+JNIEXPORT jobject JNICALL
+Java_com_cactus_LlamaContext_loadCheckpoint(
+    JNIEnv *env,
+    jobject thiz,
+    jlong context_ptr,
+    jstring path
+) {
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+    const char *path_chars = env->GetStringUTFChars(path, nullptr);
+    int n_tokens = llama->restoreSession(path_chars);
     env->ReleaseStringUTFChars(path, path_chars);
-    return session_tokens.size();
+
+    auto result = createWriteableMap(env);
+    if (n_tokens < 0) {
+        putString(env, result, "error", "Failed to load checkpoint");
+        return reinterpret_cast<jobject>(result);
+    }
+    const std::string text = cactus::tokens_to_str(llama->ctx, llama->embd.cbegin(), llama->embd.cend());
+    putInt(env, result, "tokens_loaded", n_tokens);
+    putString(env, result, "prompt", text.c_str());
+    return reinterpret_cast<jobject>(result);
+}
+
+JNIEXPORT void JNICALL
+Java_com_cactus_LlamaContext_flushCheckpoints(
+        JNIEnv *env, jobject thiz, jlong context_ptr) {
+    UNUSED(env);
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+    llama->flushSession();
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_cactus_LlamaContext_snapshotState(
+        JNIEnv *env, jobject thiz, jlong context_ptr) {
+    UNUSED(env);
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+    auto snapshot = new cactus::cactus_state_snapshot();
+    if (!llama->snapshotState(*snapshot)) {
+        delete snapshot;
+        return 0;
+    }
+    return reinterpret_cast<jlong>(snapshot);
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_cactus_LlamaContext_restoreState(
+        JNIEnv *env, jobject thiz, jlong context_ptr, jlong snapshot_ptr) {
+    UNUSED(env);
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+    auto snapshot = reinterpret_cast<cactus::cactus_state_snapshot *>(snapshot_ptr);
+    return llama->restoreState(*snapshot);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_cactus_LlamaContext_stateTokenCount(
+        JNIEnv *env, jobject thiz, jlong snapshot_ptr) {
+    UNUSED(env);
+    UNUSED(thiz);
+    return reinterpret_cast<cactus::cactus_state_snapshot *>(snapshot_ptr)->tokens.size();
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_cactus_LlamaContext_stateSize(
+        JNIEnv *env, jobject thiz, jlong snapshot_ptr) {
+    UNUSED(env);
+    UNUSED(thiz);
+    return reinterpret_cast<cactus::cactus_state_snapshot *>(snapshot_ptr)->state.size();
+}
+
+JNIEXPORT void JNICALL
+Java_com_cactus_LlamaContext_releaseState(
+        JNIEnv *env, jobject thiz, jlong snapshot_ptr) {
+    UNUSED(env);
+    UNUSED(thiz);
+    delete reinterpret_cast<cactus::cactus_state_snapshot *>(snapshot_ptr);
 }
 
 static inline jobject tokenProbsToMap(
@@ -632,16 +726,120 @@ static inline jobject tokenProbsToMap(
             putString(env, probResult, "tok_str", tokStr.c_str());
             putDouble(env, probResult, "prob", p.prob);
             pushMap(env, probsForToken, probResult);
+            env->DeleteLocalRef(probResult);
         }
         std::string tokStr = cactus::tokens_to_output_formatted_string(llama->ctx, prob.tok);
         auto tokenResult = createWriteableMap(env);
         putString(env, tokenResult, "content", tokStr.c_str());
         putArray(env, tokenResult, "probs", probsForToken);
         pushMap(env, result, tokenResult);
+        env->DeleteLocalRef(probsForToken);
+        env->DeleteLocalRef(tokenResult);
     }
     return result;
 }
 
+static jobject doParallelCompletion(
+    JNIEnv *env,
+    cactus::cactus_context *llama,
+    cactus::cactus_parallel_request &request,
+    jint chat_format,
+    jobject partial_completion_callback
+) {
+    // stopParallel() only reaches claimed slots, so a stop sent before the claim is read from the request's token
+    request.is_cancelled = [&]() {
+        return env->CallBooleanMethod(partial_completion_callback, jnicache::cache.isStopRequested) == JNI_TRUE;
+    };
+    cactus::cactus_parallel_result parallel_result;
+    if (request.is_cancelled()) {
+        parallel_result.interrupted = true;
+    } else {
+        parallel_result = llama->parallelCompletion(request, [&](const cactus::completion_token_output &token, const std::string &text) {
+            if (text.empty()) {
+                return;
+            }
+            env->PushLocalFrame(16);
+            auto tokenResult = createWriteableMap(env);
+            putString(env, tokenResult, "token", text.c_str());
+            if (request.sampling.n_probs > 0 && token.tok != LLAMA_TOKEN_NULL) {
+                putArray(env, tokenResult, "completion_probabilities", tokenProbsToMap(env, llama, {token}));
+            }
+            env->CallVoidMethod(partial_completion_callback, jnicache::cache.onPartialCompletion, tokenResult);
+            env->PopLocalFrame(nullptr);
+        });
+    }
+
+    if (!parallel_result.error.empty()) {
+        auto result = createWriteableMap(env);
+        putString(env, result, "error", parallel_result.error.c_str());
+        return reinterpret_cast<jobject>(result);
+    }
+
+    auto toolCalls = createWritableArray(env);
+    std::string reasoningContent = "";
+    std::string content;
+    auto toolCallsSize = 0;
+    if (!parallel_result.interrupted) {
+        try {
+            common_chat_msg message = common_chat_parse(parallel_result.text, static_cast<common_chat_format>(chat_format));
+            if (!message.reasoning_content.empty()) {
+                reasoningContent = message.reasoning_content;
+            }
+            content = message.content;
+            for (const auto &tc : message.tool_calls) {
+                auto toolCall = createWriteableMap(env);
+                putString(env, toolCall, "type", "function");
+                auto functionMap = createWriteableMap(env);
+                putString(env, functionMap, "name", tc.name.c_str());
+                putString(env, functionMap, "arguments", tc.arguments.c_str());
+                putMap(env, toolCall, "function", functionMap);
+                if (!tc.id.empty()) {
+                    putString(env, toolCall, "id", tc.id.c_str());
+                }
+                pushMap(env, toolCalls, toolCall);
+                toolCallsSize++;
+            }
+        } catch (const std::exception &e) {
+        }
+    }
+
+    auto result = createWriteableMap(env);
+    putString(env, result, "text", parallel_result.text.c_str());
+    if (!content.empty()) {
+        putString(env, result, "content", content.c_str());
+    }
+    if (!reasoningContent.empty()) {
+        putString(env, result, "reasoning_content", reasoningContent.c_str());
+    }
+    if (toolCallsSize > 0) {
+        putArray(env, result, "tool_calls", toolCalls);
+    }
+    putArray(env, result, "completion_probabilities", tokenProbsToMap(env, llama, parallel_result.probs));
+    putInt(env, result, "tokens_predicted", parallel_result.n_predicted);
+    putInt(env, result, "tokens_evaluated", parallel_result.n_prompt_tokens);
+    putInt(env, result, "truncated", parallel_result.truncated);
+    putInt(env, result, "stopped_eos", parallel_result.stopped_eos);
+    putInt(env, result, "stopped_word", parallel_result.stopped_word);
+    putInt(env, result, "stopped_limit", parallel_result.stopped_limit);
+    putString(env, result, "stopping_word", parallel_result.stopping_word.c_str());
+    putInt(env, result, "tokens_cached", parallel_result.n_prompt_tokens + parallel_result.n_predicted);
+
+    const double prompt_n = parallel_result.n_prompt_tokens;
+    const double predicted_n = parallel_result.n_predicted;
+    auto timingsResult = createWriteableMap(env);
+    putInt(env, timingsResult, "prompt_n", parallel_result.n_prompt_tokens);
+    putInt(env, timingsResult, "prompt_ms", parallel_result.t_prompt_ms);
+    putInt(env, timingsResult, "prompt_per_token_ms", prompt_n > 0 ? parallel_result.t_prompt_ms / prompt_n : 0);
+    putDouble(env, timingsResult, "prompt_per_second", parallel_result.t_prompt_ms > 0 ? 1e3 / parallel_result.t_prompt_ms * prompt_n : 0);
+    putInt(env, timingsResult, "predicted_n", parallel_result.n_predicted);
+    putInt(env, timingsResult, "predicted_ms", parallel_result.t_predicted_ms);
+    putInt(env, timingsResult, "predicted_per_token_ms", predicted_n > 0 ? parallel_result.t_predicted_ms / predicted_n : 0);
+    putDouble(env, timingsResult, "predicted_per_second", parallel_result.t_predicted_ms > 0 ? 1e3 / parallel_result.t_predicted_ms * predicted_n : 0);
+    putMap(env, result, "timings", timingsResult);
+
+    return reinterpret_cast<jobject>(result);
+}
+
 JNIEXPORT jobject JNICALL
 Java_com_cactus_LlamaContext_doCompletion(
     JNIEnv *env,
@@ -681,28 +879,38 @@ Java_com_cactus_LlamaContext_doCompletion(
     jint dry_penalty_last_n,
     jfloat top_n_sigma,
     jobjectArray dry_sequence_breakers,
-    jobject partial_completion_callback
+    jobject partial_completion_callback,
+    jobject token_ring
 ) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
-
-    llama->rewind();
+    auto llama = get_context(context_ptr);
+
+    // Parallel requests are staged in locals; llama->params belongs to work on the serial lane
+    const bool parallel = llama->isParallelEnabled();
+    common_params_sampling request_sampling;
+    std::vector<std::string> request_antiprompt;
+    if (!parallel) {
+        llama->rewind();
+    }
+    auto & sparams = parallel ? request_sampling : llama->params.sampling;
+    auto & antiprompt = parallel ? request_antiprompt : llama->params.antiprompt;
 
     //llama_reset_timings(llama->ctx);
 
     auto prompt_chars = env->GetStringUTFChars(prompt, nullptr);
-    llama->params.prompt = prompt_chars;
-    llama->params.sampling.seed = (seed == -1) ? time(NULL) : seed;
+    sparams.seed = (seed == -1) ? time(NULL) : seed;
+    if (!parallel) {
+        llama->params.prompt = prompt_chars;
 
-    int max_threads = std::thread::hardware_concurrency();
-    // Use 2 threads by default on 4-core devices, 4 threads on more cores
-    int default_n_threads = max_threads == 4 ? 2 : min(4, max_threads);
-    llama->params.cpuparams.n_threads = n_threads > 0 ? n_threads : default_n_threads;
+        int max_threads = std::thread::hardware_concurrency();
+        // Use 2 threads by default on 4-core devices, 4 threads on more cores
+        int default_n_threads = max_threads == 4 ? 2 : min(4, max_threads);
+        llama->params.cpuparams.n_threads = n_threads > 0 ? n_threads : default_n_threads;
 
-    llama->params.n_predict = n_predict;
-    llama->params.sampling.ignore_eos = ignore_eos;
+        llama->params.n_predict = n_predict;
+    }
+    sparams.ignore_eos = ignore_eos;
 
-    auto & sparams = llama->params.sampling;
     sparams.temp = temperature;
     sparams.penalty_last_n = penalty_last_n;
     sparams.penalty_repeat = penalty_repeat;
@@ -834,29 +1042,56 @@ Java_com_cactus_LlamaContext_doCompletion(
         env->DeleteLocalRef(el);
     }
 
-    llama->params.antiprompt.clear();
+    antiprompt.clear();
     int stop_len = env->GetArrayLength(stop);
     for (int i = 0; i < stop_len; i++) {
         jstring stop_str = (jstring) env->GetObjectArrayElement(stop, i);
         const char *stop_chars = env->GetStringUTFChars(stop_str, nullptr);
-        llama->params.antiprompt.push_back(stop_chars);
+        antiprompt.push_back(stop_chars);
         env->ReleaseStringUTFChars(stop_str, stop_chars);
     }
 
+    if (parallel) {
+        cactus::cactus_parallel_request request;
+        request.prompt = prompt_chars;
+        request.sampling = std::move(request_sampling);
+        request.antiprompt = std::move(request_antiprompt);
+        request.n_predict = n_predict;
+        env->ReleaseStringUTFChars(grammar, grammar_chars);
+        env->ReleaseStringUTFChars(prompt, prompt_chars);
+        return doParallelCompletion(env, llama, request, chat_format, partial_completion_callback);
+    }
+
     if (!llama->initSampling()) {
         auto result = createWriteableMap(env);
         putString(env, result, "error", "Failed to initialize sampling");
         return reinterpret_cast<jobject>(result);
     }
     llama->beginCompletion();
+    // beginCompletion() clears is_interrupted, which would drop a stop sent while this request was starting
+    if (env->CallBooleanMethod(partial_completion_callback, jnicache::cache.isStopRequested)) {
+        llama->is_interrupted = true;
+    }
     llama->loadPrompt();
 
+    tokenring::view ring = tokenring::from_buffer(env, token_ring);
+    if (ring.valid()) {
+        tokenring::reset(ring);
+    }
+
     size_t sent_count = 0;
     size_t sent_token_probs_index = 0;
 
     while (llama->has_next_token && !llama->is_interrupted) {
         const cactus::completion_token_output token_with_probs = llama->doCompletion();
-        if (token_with_probs.tok == -1 || llama->incomplete) {
+        if (token_with_probs.tok == -1) {
+            continue;
+        }
+        if (llama->incomplete) {
+            // The ring gets every generated id; text held back for UTF-8 arrives with a later token
+            if (ring.valid()) {
+                tokenring::push(ring, token_with_probs.tok, "", llama->is_interrupted);
+            }
             continue;
         }
         const std::string token_text = common_token_to_piece(llama->ctx, token_with_probs.tok);
@@ -888,6 +1123,11 @@ Java_com_cactus_LlamaContext_doCompletion(
 
             sent_count += to_send.size();
 
+            if (ring.valid()) {
+                tokenring::push(ring, token_with_probs.tok, to_send, llama->is_interrupted);
+                continue;
+            }
+
             std::vector<cactus::completion_token_output> probs_output = {};
 
             auto tokenResult = createWriteableMap(env);
@@ -902,15 +1142,23 @@ Java_com_cactus_LlamaContext_doCompletion(
               }
               sent_token_probs_index = probs_stop_pos;
 
-              putArray(env, tokenResult, "completion_probabilities", tokenProbsToMap(env, llama, probs_output));
+              jobject probsResult = tokenProbsToMap(env, llama, probs_output);
+              putArray(env, tokenResult, "completion_probabilities", probsResult);
+              env->DeleteLocalRef(probsResult);
             }
 
-            jclass cb_class = env->GetObjectClass(partial_completion_callback);
-            jmethodID onPartialCompletion = env->GetMethodID(cb_class, "onPartialCompletion", "(Lcom/facebook/react/bridge/WritableMap;)V");
-            env->CallVoidMethod(partial_completion_callback, onPartialCompletion, tokenResult);
+            env->CallVoidMethod(partial_completion_callback, jnicache::cache.onPartialCompletion, tokenResult);
+            env->DeleteLocalRef(tokenResult);
+        } else if (ring.valid()) {
+            // Withheld by a partial stop match, or cut by a full one
+            tokenring::push(ring, token_with_probs.tok, "", llama->is_interrupted);
         }
     }
 
+    if (ring.valid()) {
+        tokenring::close(ring);
+    }
+
     env->ReleaseStringUTFChars(grammar, grammar_chars);
     env->ReleaseStringUTFChars(prompt, prompt_chars);
     llama_perf_context_print(llama->ctx);
@@ -984,9 +1232,45 @@ Java_com_cactus_LlamaContext_doCompletion(
 }
 
 // ===== MULTIMODAL COMPLETION SUPPORT =====
+
+// Direct ByteBuffers described by MediaBuffer.INFO_SIZE ints each: format,
+// position, length, width, height and row stride
+static std::vector<cactus::media_buffer> read_media_buffers(JNIEnv *env, jobjectArray buffers, jintArray info) {
+    std::vector<cactus::media_buffer> result;
+    if (buffers == nullptr || info == nullptr) {
+        return result;
+    }
+    const jsize n = env->GetArrayLength(buffers);
+    std::vector<jint> fields(env->GetArrayLength(info));
+    env->GetIntArrayRegion(info, 0, fields.size(), fields.data());
+    if (fields.size() < (size_t) n * 6) {
+        throw std::runtime_error("Media buffer info is incomplete");
+    }
+    for (jsize i = 0; i < n; i++) {
+        jobject buffer = env->GetObjectArrayElement(buffers, i);
+        const uint8_t *base = buffer != nullptr ? (const uint8_t *) env->GetDirectBufferAddress(buffer) : nullptr;
+        const jlong capacity = buffer != nullptr ? env->GetDirectBufferCapacity(buffer) : -1;
+        env->DeleteLocalRef(buffer);
+        const jint *f = fields.data() + i * 6;
+        if (base == nullptr || f[1] < 0 || f[2] < 0 || (jlong) f[1] + f[2] > capacity) {
+            throw std::runtime_error("Media buffers must be direct ByteBuffers");
+        }
+        cactus::media_buffer buf;
+        buf.format = (cactus::media_format) f[0];
+        buf.data = base + f[1];
+        buf.size = (size_t) f[2];
+        buf.width = (uint32_t) f[3];
+        buf.height = (uint32_t) f[4];
+        buf.row_stride = (uint32_t) f[5];
+        result.push_back(buf);
+    }
+    return result;
+}
+
 JNIEXPORT jobject JNICALL
 Java_com_cactus_LlamaContext_doMultimodalCompletion(
     JNIEnv *env, jobject thiz, jlong context_ptr, jstring prompt, jobjectArray media_paths,
+    jobjectArray media_buffers, jintArray media_buffer_info,
     jint chat_format, jstring grammar, jstring json_schema, jboolean grammar_lazy,
     jobject grammar_triggers, jobject preserved_tokens, jfloat temperature, jint n_threads,
     jint n_predict, jint n_probs, jint penalty_last_n, jfloat penalty_repeat,
@@ -998,13 +1282,20 @@ Java_com_cactus_LlamaContext_doMultimodalCompletion(
     jobjectArray dry_sequence_breakers, jobject partial_completion_callback) {
     
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
 
     if (!llama->isMultimodalEnabled()) {
         auto result = createWriteableMap(env);
         putString(env, result, "error", "Multimodal is not enabled");
         return reinterpret_cast<jobject>(result);
     }
+    // Decodes on the serial path, so parallel slots must be idle for the whole run
+    auto gate = llama->lockIdle();
+    if (!gate.owns_lock()) {
+        auto result = createWriteableMap(env);
+        putString(env, result, "error", "Context is busy");
+        return reinterpret_cast<jobject>(result);
+    }
 
     // Set all parameters (same as regular doCompletion)
     const char *prompt_chars = env->GetStringUTFChars(prompt, nullptr);
@@ -1055,9 +1346,13 @@ Java_com_cactus_LlamaContext_doMultimodalCompletion(
     }
     
     llama->beginCompletion();
+    // beginCompletion() clears is_interrupted, which would drop a stop sent while this request was starting
+    if (env->CallBooleanMethod(partial_completion_callback, jnicache::cache.isStopRequested)) {
+        llama->is_interrupted = true;
+    }
     
     try {
-        llama->loadPrompt(media_paths_vector);  // Use media-aware loadPrompt
+        llama->loadPrompt(media_paths_vector, read_media_buffers(env, media_buffers, media_buffer_info));  // Use media-aware loadPrompt
     } catch (const std::exception& e) {
         auto result = createWriteableMap(env);
         putString(env, result, "error", e.what());
@@ -1086,10 +1381,9 @@ Java_com_cactus_LlamaContext_doMultimodalCompletion(
             if (partial_completion_callback != nullptr) {
                 auto tokenResult = createWriteableMap(env);
                 putString(env, tokenResult, "token", to_send.c_str());
-                
-                jclass cb_class = env->GetObjectClass(partial_completion_callback);
-                jmethodID onPartialCompletion = env->GetMethodID(cb_class, "onPartialCompletion", "(Lcom/facebook/react/bridge/WritableMap;)V");
-                env->CallVoidMethod(partial_completion_callback, onPartialCompletion, tokenResult);
+
+                env->CallVoidMethod(partial_completion_callback, jnicache::cache.onPartialCompletion, tokenResult);
+                env->DeleteLocalRef(tokenResult);
             }
         }
     }
@@ -1116,8 +1410,20 @@ Java_com_cactus_LlamaContext_stopCompletion(
         JNIEnv *env, jobject thiz, jlong context_ptr) {
     UNUSED(env);
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
-    llama->is_interrupted = true;
+    auto llama = get_context(context_ptr);
+    if (llama != nullptr) {
+        llama->is_interrupted = true;
+        llama->stopParallel();
+    }
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_cactus_LlamaContext_isParallelEnabled(
+        JNIEnv *env, jobject thiz, jlong context_ptr) {
+    UNUSED(env);
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+    return llama->isParallelEnabled();
 }
 
 JNIEXPORT jboolean JNICALL
@@ -1125,15 +1431,16 @@ Java_com_cactus_LlamaContext_isPredicting(
         JNIEnv *env, jobject thiz, jlong context_ptr) {
     UNUSED(env);
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
-    return llama->is_predicting;
+    auto llama = get_context(context_ptr);
+    return llama->is_predicting || llama->isParallelBusy();
 }
 
 JNIEXPORT jobject JNICALL
 Java_com_cactus_LlamaContext_tokenize(
-        JNIEnv *env, jobject thiz, jlong context_ptr, jstring text, jobjectArray media_paths) {
+        JNIEnv *env, jobject thiz, jlong context_ptr, jstring text, jobjectArray media_paths,
+        jobjectArray media_buffers, jintArray media_buffer_info) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
 
     const char *text_chars = env->GetStringUTFChars(text, nullptr);
     
@@ -1151,7 +1458,15 @@ Java_com_cactus_LlamaContext_tokenize(
         }
     }
 
-    cactus::cactus_tokenize_result tokenize_result = llama->tokenize(text_chars, media_paths_vector);
+    cactus::cactus_tokenize_result tokenize_result;
+    try {
+        tokenize_result = llama->tokenize(text_chars, media_paths_vector, read_media_buffers(env, media_buffers, media_buffer_info));
+    } catch (const std::exception &e) {
+        env->ReleaseStringUTFChars(text, text_chars);
+        auto result = createWriteableMap(env);
+        putString(env, result, "error", e.what());
+        return reinterpret_cast<jobject>(result);
+    }
 
     auto result = createWriteableMap(env);
     
@@ -1193,7 +1508,7 @@ JNIEXPORT jstring JNICALL
 Java_com_cactus_LlamaContext_detokenize(
         JNIEnv *env, jobject thiz, jlong context_ptr, jintArray tokens) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
 
     jsize tokens_len = env->GetArrayLength(tokens);
     jint *tokens_ptr = env->GetIntArrayElements(tokens, 0);
@@ -1214,20 +1529,12 @@ Java_com_cactus_LlamaContext_isEmbeddingEnabled(
         JNIEnv *env, jobject thiz, jlong context_ptr) {
     UNUSED(env);
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     return llama->params.embedding;
 }
 
-JNIEXPORT jobject JNICALL
-Java_com_cactus_LlamaContext_embedding(
-        JNIEnv *env, jobject thiz,
-        jlong context_ptr,
-        jstring text,
-        jint embd_normalize
-) {
-    UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
-
+// Evaluates text on the context and returns its pooled embedding, empty on failure
+static std::vector<float> computeEmbedding(JNIEnv *env, cactus::cactus_context *llama, jstring text, jint embd_normalize) {
     common_params embdParams;
     embdParams.embedding = true;
     embdParams.embd_normalize = llama->params.embd_normalize;
@@ -1235,6 +1542,12 @@ Java_com_cactus_LlamaContext_embedding(
       embdParams.embd_normalize = embd_normalize;
     }
 
+    auto gate = llama->lockIdle();
+    if (!gate.owns_lock()) {
+        LOGE("Cannot compute embeddings while parallel completions are running");
+        return {};
+    }
+
     const char *text_chars = env->GetStringUTFChars(text, nullptr);
 
     llama->rewind();
@@ -1245,31 +1558,171 @@ Java_com_cactus_LlamaContext_embedding(
 
     llama->params.n_predict = 0;
 
-    auto result = createWriteableMap(env);
+    env->ReleaseStringUTFChars(text, text_chars);
+
     if (!llama->initSampling()) {
-        putString(env, result, "error", "Failed to initialize sampling");
-        return reinterpret_cast<jobject>(result);
+        LOGE("Failed to initialize sampling");
+        return {};
     }
 
     llama->beginCompletion();
     llama->loadPrompt();
     llama->doCompletion();
 
-    std::vector<float> embedding = llama->getEmbedding(embdParams);
+    return llama->getEmbedding(embdParams);
+}
 
-    auto embeddings = createWritableArray(env);
-    for (const auto &val : embedding) {
-      pushDouble(env, embeddings, (double) val);
+JNIEXPORT jlong JNICALL
+Java_com_cactus_TokenRing_writeIndex(JNIEnv *env, jclass clazz, jobject buffer) {
+    UNUSED(clazz);
+    tokenring::view ring = tokenring::from_buffer(env, buffer);
+    return ring.valid() ? ring.write->load(std::memory_order_acquire) : 0;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_cactus_TokenRing_readIndex(JNIEnv *env, jclass clazz, jobject buffer) {
+    UNUSED(clazz);
+    tokenring::view ring = tokenring::from_buffer(env, buffer);
+    return ring.valid() ? ring.read->load(std::memory_order_relaxed) : 0;
+}
+
+JNIEXPORT void JNICALL
+Java_com_cactus_TokenRing_release(JNIEnv *env, jclass clazz, jobject buffer, jlong read_index) {
+    UNUSED(clazz);
+    tokenring::view ring = tokenring::from_buffer(env, buffer);
+    if (ring.valid()) {
+        ring.read->store(read_index, std::memory_order_release);
     }
-    putArray(env, result, "embedding", embeddings);
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_cactus_TokenRing_isClosed(JNIEnv *env, jclass clazz, jobject buffer) {
+    UNUSED(clazz);
+    tokenring::view ring = tokenring::from_buffer(env, buffer);
+    return ring.valid() && ring.closed->load(std::memory_order_acquire) != 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_cactus_LlamaContext_embeddingSize(
+        JNIEnv *env, jobject thiz, jlong context_ptr) {
+    UNUSED(env);
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+    return llama_model_n_embd(llama->model);
+}
+
+JNIEXPORT jfloatArray JNICALL
+Java_com_cactus_LlamaContext_embedding(
+        JNIEnv *env, jobject thiz,
+        jlong context_ptr,
+        jstring text,
+        jint embd_normalize
+) {
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
 
-    auto promptTokens = createWritableArray(env);
-    for (const auto &tok : llama->embd) {
-      pushString(env, promptTokens, common_token_to_piece(llama->ctx, tok).c_str());
+    std::vector<float> embedding = computeEmbedding(env, llama, text, embd_normalize);
+    if (embedding.empty()) {
+        return nullptr;
     }
-    putArray(env, result, "prompt_tokens", promptTokens);
 
-    env->ReleaseStringUTFChars(text, text_chars);
+    jfloatArray result = env->NewFloatArray(embedding.size());
+    env->SetFloatArrayRegion(result, 0, embedding.size(), embedding.data());
+    return result;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_cactus_LlamaContext_embeddingToBuffer(
+        JNIEnv *env, jobject thiz,
+        jlong context_ptr,
+        jstring text,
+        jint embd_normalize,
+        jobject buffer,
+        jint offset
+) {
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+
+    float *dst = (float *) env->GetDirectBufferAddress(buffer);
+    jlong capacity = env->GetDirectBufferCapacity(buffer);
+    const int n_embd = llama_model_n_embd(llama->model);
+    if (dst == nullptr || offset < 0 || offset + n_embd > capacity) {
+        return -1;
+    }
+
+    std::vector<float> embedding = computeEmbedding(env, llama, text, embd_normalize);
+    if (embedding.empty()) {
+        return -1;
+    }
+
+    std::copy(embedding.begin(), embedding.end(), dst + offset);
+    return embedding.size();
+}
+
+JNIEXPORT jfloatArray JNICALL
+Java_com_cactus_LlamaContext_embeddingBatch(
+        JNIEnv *env, jobject thiz,
+        jlong context_ptr,
+        jobjectArray texts,
+        jint embd_normalize
+) {
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+
+    int normalize = embd_normalize != -1 ? embd_normalize : llama->params.embd_normalize;
+
+    jsize texts_size = env->GetArrayLength(texts);
+    std::vector<std::string> texts_vec;
+    texts_vec.reserve(texts_size);
+    for (jsize i = 0; i < texts_size; i++) {
+        jstring text = (jstring) env->GetObjectArrayElement(texts, i);
+        const char *text_chars = env->GetStringUTFChars(text, nullptr);
+        texts_vec.emplace_back(text_chars);
+        env->ReleaseStringUTFChars(text, text_chars);
+        env->DeleteLocalRef(text);
+    }
+
+    std::vector<float> embeddings = llama->getEmbeddingBatch(texts_vec, normalize);
+    if (embeddings.empty() && !texts_vec.empty()) {
+        return nullptr;
+    }
+
+    jfloatArray result = env->NewFloatArray(embeddings.size());
+    env->SetFloatArrayRegion(result, 0, embeddings.size(), embeddings.data());
+    return result;
+}
+
+// Token pieces of a prompt as loadPrompt would tokenize it, without running the model
+JNIEXPORT jobjectArray JNICALL
+Java_com_cactus_LlamaContext_promptTokenPieces(
+        JNIEnv *env, jobject thiz, jlong context_ptr, jstring prompt) {
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+    const char *prompt_chars = env->GetStringUTFChars(prompt, nullptr);
+    const std::vector<llama_token> tokens = common_tokenize(llama->ctx, prompt_chars, true, true);
+    env->ReleaseStringUTFChars(prompt, prompt_chars);
+
+    jobjectArray result = env->NewObjectArray(tokens.size(), jnicache::cache.string, nullptr);
+    for (size_t i = 0; i < tokens.size(); i++) {
+        jstring piece = env->NewStringUTF(common_token_to_piece(llama->ctx, tokens[i]).c_str());
+        env->SetObjectArrayElement(result, i, piece);
+        env->DeleteLocalRef(piece);
+    }
+    return result;
+}
+
+JNIEXPORT jobjectArray JNICALL
+Java_com_cactus_LlamaContext_embeddingPromptTokens(
+        JNIEnv *env, jobject thiz, jlong context_ptr) {
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+
+    jobjectArray result = env->NewObjectArray(llama->embd.size(), jnicache::cache.string, nullptr);
+    for (size_t i = 0; i < llama->embd.size(); i++) {
+        jstring piece = env->NewStringUTF(common_token_to_piece(llama->ctx, llama->embd[i]).c_str());
+        env->SetObjectArrayElement(result, i, piece);
+        env->DeleteLocalRef(piece);
+    }
     return result;
 }
 
@@ -1284,7 +1737,7 @@ Java_com_cactus_LlamaContext_bench(
     jint nr
 ) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     std::string result = llama->bench(pp, tg, pl, nr);
     return env->NewStringUTF(result.c_str());
 }
@@ -1293,7 +1746,7 @@ JNIEXPORT jint JNICALL
 Java_com_cactus_LlamaContext_applyLoraAdapters(
     JNIEnv *env, jobject thiz, jlong context_ptr, jobjectArray loraAdapters) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
 
     // lora_adapters: ReadableArray<ReadableMap>
     std::vector<common_adapter_lora_info> lora_adapters;
@@ -1314,20 +1767,20 @@ Java_com_cactus_LlamaContext_applyLoraAdapters(
     return llama->applyLoraAdapters(lora_adapters);
 }
 
-JNIEXPORT void JNICALL
+JNIEXPORT jboolean JNICALL
 Java_com_cactus_LlamaContext_removeLoraAdapters(
     JNIEnv *env, jobject thiz, jlong context_ptr) {
     UNUSED(env);
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
-    llama->removeLoraAdapters();
+    auto llama = get_context(context_ptr);
+    return llama->removeLoraAdapters();
 }
 
 JNIEXPORT jobject JNICALL
 Java_com_cactus_LlamaContext_getLoadedLoraAdapters(
     JNIEnv *env, jobject thiz, jlong context_ptr) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     auto loaded_lora_adapters = llama->getLoadedLoraAdapters();
     auto result = createWritableArray(env);
     for (common_adapter_lora_info &la : loaded_lora_adapters) {
@@ -1344,20 +1797,20 @@ Java_com_cactus_LlamaContext_freeContext(
         JNIEnv *env, jobject thiz, jlong context_ptr) {
     UNUSED(env);
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
-    context_map.erase((long) llama->ctx);
+    auto llama = get_context(context_ptr);
+    erase_context((long) llama->ctx);
     delete llama;
 }
 
 // ===== MULTIMODAL SUPPORT =====
 JNIEXPORT jboolean JNICALL
 Java_com_cactus_LlamaContext_initMultimodal(
-        JNIEnv *env, jobject thiz, jlong context_ptr, jstring mmproj_path, jboolean use_gpu) {
+        JNIEnv *env, jobject thiz, jlong context_ptr, jstring mmproj_path, jboolean use_gpu, jint media_cache_mb) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     
     const char *mmproj_path_chars = env->GetStringUTFChars(mmproj_path, nullptr);
-    bool result = llama->initMultimodal(mmproj_path_chars, use_gpu);
+    bool result = llama->initMultimodal(mmproj_path_chars, use_gpu, (size_t) std::max(media_cache_mb, 0) << 20);
     env->ReleaseStringUTFChars(mmproj_path, mmproj_path_chars);
     
     return result;
@@ -1368,7 +1821,7 @@ Java_com_cactus_LlamaContext_isMultimodalEnabled(
         JNIEnv *env, jobject thiz, jlong context_ptr) {
     UNUSED(env);
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     return llama->isMultimodalEnabled();
 }
 
@@ -1377,7 +1830,7 @@ Java_com_cactus_LlamaContext_isMultimodalSupportVision(
         JNIEnv *env, jobject thiz, jlong context_ptr) {
     UNUSED(env);
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     return llama->isMultimodalSupportVision();
 }
 
@@ -1386,7 +1839,7 @@ Java_com_cactus_LlamaContext_isMultimodalSupportAudio(
         JNIEnv *env, jobject thiz, jlong context_ptr) {
     UNUSED(env);
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     return llama->isMultimodalSupportAudio();
 }
 
@@ -1395,7 +1848,7 @@ Java_com_cactus_LlamaContext_releaseMultimodal(
         JNIEnv *env, jobject thiz, jlong context_ptr) {
     UNUSED(env);
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     llama->releaseMultimodal();
 }
 
@@ -1404,7 +1857,7 @@ JNIEXPORT jboolean JNICALL
 Java_com_cactus_LlamaContext_initVocoder(
         JNIEnv *env, jobject thiz, jlong context_ptr, jstring vocoder_model_path) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     
     const char *vocoder_path_chars = env->GetStringUTFChars(vocoder_model_path, nullptr);
     bool result = llama->initVocoder(vocoder_path_chars);
@@ -1418,7 +1871,7 @@ Java_com_cactus_LlamaContext_isVocoderEnabled(
         JNIEnv *env, jobject thiz, jlong context_ptr) {
     UNUSED(env);
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     return llama->isVocoderEnabled();
 }
 
@@ -1427,7 +1880,7 @@ Java_com_cactus_LlamaContext_getTTSType(
         JNIEnv *env, jobject thiz, jlong context_ptr) {
     UNUSED(env);
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     return static_cast<jint>(llama->getTTSType());
 }
 
@@ -1435,7 +1888,7 @@ JNIEXPORT jstring JNICALL
 Java_com_cactus_LlamaContext_getFormattedAudioCompletion(
         JNIEnv *env, jobject thiz, jlong context_ptr, jstring speaker_json_str, jstring text_to_speak) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     
     const char *speaker_chars = env->GetStringUTFChars(speaker_json_str, nullptr);
     const char *text_chars = env->GetStringUTFChars(text_to_speak, nullptr);
@@ -1452,7 +1905,7 @@ JNIEXPORT jobject JNICALL
 Java_com_cactus_LlamaContext_getAudioCompletionGuideTokens(
         JNIEnv *env, jobject thiz, jlong context_ptr, jstring text_to_speak) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     
     const char *text_chars = env->GetStringUTFChars(text_to_speak, nullptr);
     std::vector<llama_token> tokens = llama->getAudioCompletionGuideTokens(text_chars);
@@ -1470,7 +1923,7 @@ JNIEXPORT jobject JNICALL
 Java_com_cactus_LlamaContext_decodeAudioTokens(
         JNIEnv *env, jobject thiz, jlong context_ptr, jintArray tokens) {
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     
     jsize tokens_len = env->GetArrayLength(tokens);
     jint *tokens_ptr = env->GetIntArrayElements(tokens, 0);
@@ -1490,12 +1943,51 @@ Java_com_cactus_LlamaContext_decodeAudioTokens(
     return result;
 }
 
+static std::vector<llama_token> read_tokens(JNIEnv *env, jintArray tokens) {
+    jsize tokens_len = env->GetArrayLength(tokens);
+    std::vector<llama_token> token_vector(tokens_len);
+    env->GetIntArrayRegion(tokens, 0, tokens_len, token_vector.data());
+    return token_vector;
+}
+
+JNIEXPORT jintArray JNICALL
+Java_com_cactus_LlamaContext_filterAudioTokens(
+        JNIEnv *env, jobject thiz, jlong context_ptr, jintArray tokens) {
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+    std::vector<llama_token> audio_tokens = llama->filterAudioTokens(read_tokens(env, tokens));
+    jintArray result = env->NewIntArray(audio_tokens.size());
+    env->SetIntArrayRegion(result, 0, audio_tokens.size(), audio_tokens.data());
+    return result;
+}
+
+// Same as decodeAudioTokens, but hands back a primitive array so streamed chunks skip per-sample boxing
+JNIEXPORT jfloatArray JNICALL
+Java_com_cactus_LlamaContext_decodeAudioSamples(
+        JNIEnv *env, jobject thiz, jlong context_ptr, jintArray tokens) {
+    UNUSED(thiz);
+    auto llama = get_context(context_ptr);
+    std::vector<float> audio_data;
+    try {
+        audio_data = llama->decodeAudioTokens(read_tokens(env, tokens));
+    } catch (const std::exception &e) {
+        LOGE("[CACTUS] decodeAudioSamples failed: %s", e.what());
+        return nullptr;
+    }
+    if (audio_data.empty()) {
+        return nullptr;
+    }
+    jfloatArray result = env->NewFloatArray(audio_data.size());
+    env->SetFloatArrayRegion(result, 0, audio_data.size(), audio_data.data());
+    return result;
+}
+
 JNIEXPORT void JNICALL
 Java_com_cactus_LlamaContext_releaseVocoder(
         JNIEnv *env, jobject thiz, jlong context_ptr) {
     UNUSED(env);
     UNUSED(thiz);
-    auto llama = context_map[(long) context_ptr];
+    auto llama = get_context(context_ptr);
     llama->releaseVocoder();
 }
 
@@ -1536,12 +2028,9 @@ static void cactus_log_callback_to_j(lm_ggml_log_level level, const char * text,
     }
 
     jobject callback = cb_ctx->callback;
-    jclass cb_class = env->GetObjectClass(callback);
-    jmethodID emitNativeLog = env->GetMethodID(cb_class, "emitNativeLog", "(Ljava/lang/String;Ljava/lang/String;)V");
-
     jstring level_str = env->NewStringUTF(level_c);
     jstring text_str = env->NewStringUTF(text);
-    env->CallVoidMethod(callback, emitNativeLog, level_str, text_str);
+    env->CallVoidMethod(callback, jnicache::cache.emitNativeLog, level_str, text_str);
     env->DeleteLocalRef(level_str);
     env->DeleteLocalRef(text_str);
 
@@ -0,0 +1,90 @@
+#include <jni.h>
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <cstdint>
+#include <cstring>
+#include <string>
+#include <thread>
+
+// Single-producer/single-consumer token ring over a direct ByteBuffer owned by
+// TokenRing.java. The decode thread appends records, Java drains them.
+//
+// Layout: [0] int64 write index, [8] int64 read index, [16] int32 closed,
+// then the data area from TOKEN_RING_HEADER to the end of the buffer.
+// Indices grow monotonically; the position in the data area is index % capacity.
+// A record is int32 token id, int32 byte length, then the UTF-8 bytes.
+
+namespace tokenring {
+
+static const int64_t TOKEN_RING_HEADER = 64;
+
+struct view {
+    uint8_t *data = nullptr;
+    int64_t capacity = 0;
+    std::atomic<int64_t> *write = nullptr;
+    std::atomic<int64_t> *read = nullptr;
+    std::atomic<int32_t> *closed = nullptr;
+
+    bool valid() const {
+        return data != nullptr && capacity > 0;
+    }
+};
+
+static view from_buffer(JNIEnv *env, jobject buffer) {
+    view ring;
+    if (buffer == nullptr) {
+        return ring;
+    }
+    uint8_t *base = (uint8_t *) env->GetDirectBufferAddress(buffer);
+    jlong size = env->GetDirectBufferCapacity(buffer);
+    if (base == nullptr || size <= TOKEN_RING_HEADER) {
+        return ring;
+    }
+    ring.write = reinterpret_cast<std::atomic<int64_t> *>(base);
+    ring.read = reinterpret_cast<std::atomic<int64_t> *>(base + 8);
+    ring.closed = reinterpret_cast<std::atomic<int32_t> *>(base + 16);
+    ring.data = base + TOKEN_RING_HEADER;
+    ring.capacity = size - TOKEN_RING_HEADER;
+    return ring;
+}
+
+static void copy_in(view &ring, int64_t index, const void *src, size_t size) {
+    const int64_t pos = index % ring.capacity;
+    const size_t first = std::min<size_t>(size, ring.capacity - pos);
+    memcpy(ring.data + pos, src, first);
+    memcpy(ring.data, (const uint8_t *) src + first, size - first);
+}
+
+// Blocks while the consumer has not freed enough room, so a slow reader slows
+// decoding instead of losing tokens. Gives up once the stop flag is raised.
+static bool push(view &ring, int32_t token, const std::string &text, const std::atomic<bool> &stop) {
+    const int64_t size = 8 + (int64_t) text.size();
+    if (size > ring.capacity) {
+        return false;
+    }
+    const int64_t write = ring.write->load(std::memory_order_relaxed);
+    while (write + size - ring.read->load(std::memory_order_acquire) > ring.capacity) {
+        if (stop.load()) {
+            return false;
+        }
+        std::this_thread::sleep_for(std::chrono::milliseconds(1));
+    }
+    const int32_t header[2] = { token, (int32_t) text.size() };
+    copy_in(ring, write, header, sizeof(header));
+    copy_in(ring, write + sizeof(header), text.data(), text.size());
+    ring.write->store(write + size, std::memory_order_release);
+    return true;
+}
+
+static void reset(view &ring) {
+    ring.write->store(0, std::memory_order_relaxed);
+    ring.read->store(0, std::memory_order_relaxed);
+    ring.closed->store(0, std::memory_order_release);
+}
+
+static void close(view &ring) {
+    ring.closed->store(1, std::memory_order_release);
+}
+
+}
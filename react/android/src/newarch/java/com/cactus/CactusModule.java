@@ -67,6 +67,36 @@ public class CactusModule extends NativeCactusSpec {
     cactus.saveSession(id, path, size, promise);
   }
 
+  @ReactMethod
+  public void prefillPrompt(double id, String prompt, Promise promise) {
+    cactus.prefillPrompt(id, prompt, promise);
+  }
+
+  @ReactMethod
+  public void checkpointSession(double id, String path, Promise promise) {
+    cactus.checkpointSession(id, path, promise);
+  }
+
+  @ReactMethod
+  public void loadCheckpoint(double id, String path, Promise promise) {
+    cactus.loadCheckpoint(id, path, promise);
+  }
+
+  @ReactMethod
+  public void snapshotState(double id, Promise promise) {
+    cactus.snapshotState(id, promise);
+  }
+
+  @ReactMethod
+  public void restoreState(double id, double snapshotId, Promise promise) {
+    cactus.restoreState(id, snapshotId, promise);
+  }
+
+  @ReactMethod
+  public void releaseState(double id, double snapshotId, Promise promise) {
+    cactus.releaseState(id, snapshotId, promise);
+  }
+
   @ReactMethod
   public void completion(double id, final ReadableMap params, final Promise promise) {
     cactus.completion(id, params, promise);
@@ -97,6 +127,16 @@ public class CactusModule extends NativeCactusSpec {
     cactus.embedding(id, text, params, promise);
   }
 
+  @ReactMethod
+  public void embeddingBatch(double id, ReadableArray texts, ReadableMap params, Promise promise) {
+    cactus.embeddingBatch(id, texts, params, promise);
+  }
+
+  @ReactMethod
+  public void getEmbeddingCacheStats(double id, Promise promise) {
+    cactus.getEmbeddingCacheStats(id, promise);
+  }
+
   @ReactMethod
   public void bench(double id, double pp, double tg, double pl, double nr, Promise promise) {
     cactus.bench(id, pp, tg, pl, nr, promise);
@@ -119,8 +159,8 @@ public class CactusModule extends NativeCactusSpec {
 
   // New Multimodal Methods
   @ReactMethod
-  public void initMultimodal(double id, String mmprojPath, Boolean useGpu, Promise promise) {
-    cactus.initMultimodal(id, mmprojPath, useGpu.booleanValue(), promise);
+  public void initMultimodal(double id, String mmprojPath, Boolean useGpu, Double mediaCacheMb, Promise promise) {
+    cactus.initMultimodal(id, mmprojPath, useGpu.booleanValue(), mediaCacheMb == null ? 64 : mediaCacheMb.intValue(), promise);
   }
 
   @ReactMethod
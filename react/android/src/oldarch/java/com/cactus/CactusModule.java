@@ -68,6 +68,36 @@ public class CactusModule extends ReactContextBaseJavaModule {
     cactus.saveSession(id, path, size, promise);
   }
 
+  @ReactMethod
+  public void prefillPrompt(double id, String prompt, Promise promise) {
+    cactus.prefillPrompt(id, prompt, promise);
+  }
+
+  @ReactMethod
+  public void checkpointSession(double id, String path, Promise promise) {
+    cactus.checkpointSession(id, path, promise);
+  }
+
+  @ReactMethod
+  public void loadCheckpoint(double id, String path, Promise promise) {
+    cactus.loadCheckpoint(id, path, promise);
+  }
+
+  @ReactMethod
+  public void snapshotState(double id, Promise promise) {
+    cactus.snapshotState(id, promise);
+  }
+
+  @ReactMethod
+  public void restoreState(double id, double snapshotId, Promise promise) {
+    cactus.restoreState(id, snapshotId, promise);
+  }
+
+  @ReactMethod
+  public void releaseState(double id, double snapshotId, Promise promise) {
+    cactus.releaseState(id, snapshotId, promise);
+  }
+
   @ReactMethod
   public void completion(double id, final ReadableMap params, final Promise promise) {
     cactus.completion(id, params, promise);
@@ -98,6 +128,16 @@ public class CactusModule extends ReactContextBaseJavaModule {
     cactus.embedding(id, text, params, promise);
   }
 
+  @ReactMethod
+  public void embeddingBatch(double id, final ReadableArray texts, final ReadableMap params, final Promise promise) {
+    cactus.embeddingBatch(id, texts, params, promise);
+  }
+
+  @ReactMethod
+  public void getEmbeddingCacheStats(double id, Promise promise) {
+    cactus.getEmbeddingCacheStats(id, promise);
+  }
+
   @ReactMethod
   public void bench(double id, final double pp, final double tg, final double pl, final double nr, final Promise promise) {
     cactus.bench(id, pp, tg, pl, nr, promise);
@@ -119,8 +159,8 @@ public class CactusModule extends ReactContextBaseJavaModule {
   }
 
   @ReactMethod
-  public void initMultimodal(double id, final String mmprojPath, final boolean useGpu, final Promise promise) {
-    cactus.initMultimodal(id, mmprojPath, useGpu, promise);
+  public void initMultimodal(double id, final String mmprojPath, final boolean useGpu, final double mediaCacheMb, final Promise promise) {
+    cactus.initMultimodal(id, mmprojPath, useGpu, (int) mediaCacheMb, promise);
   }
 
   @ReactMethod
@@ -66,7 +66,7 @@ RCT_EXPORT_METHOD(initContext:(double)contextId
     @try {
       CactusContext *context = [CactusContext initWithParams:contextParams onProgress:^(unsigned int progress) {
           dispatch_async(dispatch_get_main_queue(), ^{
-              [self sendEventWithName:@"@Cactus_onInitContextProgress" body:@{ @"contextId": @(contextId), @"progress": @(progress) }];
+              [self sendEventWithName:@"@Cactus_onInitContextProgress" body:@{ @"contextId": @(contextId), @"progress": @(progress), @"phase": @"load" }];
           });
       }];
       if (![context isModelLoaded]) {
@@ -76,6 +76,18 @@ RCT_EXPORT_METHOD(initContext:(double)contextId
 
       [llamaContexts setObject:context forKey:contextIdNumber];
 
+      if (contextParams[@"background_warmup"] && [contextParams[@"background_warmup"] boolValue]) {
+          BOOL reportProgress = contextParams[@"use_progress_callback"] && [contextParams[@"use_progress_callback"] boolValue];
+          // Later calls dispatched to the same queue wait for the warmup
+          dispatch_async(llamaDQueue, dispatch_block_create_with_qos_class(0, QOS_CLASS_UTILITY, 0, ^{
+              [context warmup:reportProgress ? ^(unsigned int progress) {
+                  dispatch_async(dispatch_get_main_queue(), ^{
+                      [self sendEventWithName:@"@Cactus_onInitContextProgress" body:@{ @"contextId": @(contextId), @"progress": @(progress), @"phase": @"warmup" }];
+                  });
+              } : nil];
+          }));
+      }
+
       resolve(@{
           @"gpu": @([context isMetalEnabled]),
           @"reasonNoGPU": [context reasonNoMetal],
@@ -165,6 +177,146 @@ RCT_EXPORT_METHOD(saveSession:(double)contextId
     });
 }
 
+RCT_EXPORT_METHOD(prefillPrompt:(double)contextId
+                 withPrompt:(NSString *)prompt
+                 withResolver:(RCTPromiseResolveBlock)resolve
+                 withRejecter:(RCTPromiseRejectBlock)reject)
+{
+    CactusContext *context = llamaContexts[[NSNumber numberWithDouble:contextId]];
+    if (context == nil) {
+        reject(@"llama_error", @"Context not found", nil);
+        return;
+    }
+    if ([context isPredicting]) {
+        reject(@"llama_error", @"Context is busy", nil);
+        return;
+    }
+    dispatch_async(llamaDQueue, ^{
+        @try {
+            @autoreleasepool {
+                resolve([context prefillPrompt:prompt]);
+            }
+        } @catch (NSException *exception) {
+            reject(@"llama_cpp_error", exception.reason, nil);
+        }
+    });
+}
+
+RCT_EXPORT_METHOD(checkpointSession:(double)contextId
+                 withFilePath:(NSString *)filePath
+                 withResolver:(RCTPromiseResolveBlock)resolve
+                 withRejecter:(RCTPromiseRejectBlock)reject)
+{
+    CactusContext *context = llamaContexts[[NSNumber numberWithDouble:contextId]];
+    if (context == nil) {
+        reject(@"llama_error", @"Context not found", nil);
+        return;
+    }
+    if ([context isPredicting]) {
+        reject(@"llama_error", @"Context is busy", nil);
+        return;
+    }
+    dispatch_async(llamaDQueue, ^{
+        @try {
+            @autoreleasepool {
+                resolve(@([context checkpointSession:filePath]));
+            }
+        } @catch (NSException *exception) {
+            reject(@"llama_cpp_error", exception.reason, nil);
+        }
+    });
+}
+
+RCT_EXPORT_METHOD(loadCheckpoint:(double)contextId
+                 withFilePath:(NSString *)filePath
+                 withResolver:(RCTPromiseResolveBlock)resolve
+                 withRejecter:(RCTPromiseRejectBlock)reject)
+{
+    CactusContext *context = llamaContexts[[NSNumber numberWithDouble:contextId]];
+    if (context == nil) {
+        reject(@"llama_error", @"Context not found", nil);
+        return;
+    }
+    if ([context isPredicting]) {
+        reject(@"llama_error", @"Context is busy", nil);
+        return;
+    }
+    dispatch_async(llamaDQueue, ^{
+        @try {
+            @autoreleasepool {
+                resolve([context loadCheckpoint:filePath]);
+            }
+        } @catch (NSException *exception) {
+            reject(@"llama_cpp_error", exception.reason, nil);
+        }
+    });
+}
+
+RCT_EXPORT_METHOD(snapshotState:(double)contextId
+                 withResolver:(RCTPromiseResolveBlock)resolve
+                 withRejecter:(RCTPromiseRejectBlock)reject)
+{
+    CactusContext *context = llamaContexts[[NSNumber numberWithDouble:contextId]];
+    if (context == nil) {
+        reject(@"llama_error", @"Context not found", nil);
+        return;
+    }
+    if ([context isPredicting]) {
+        reject(@"llama_error", @"Context is busy", nil);
+        return;
+    }
+    dispatch_async(llamaDQueue, ^{
+        @try {
+            @autoreleasepool {
+                resolve([context snapshotState]);
+            }
+        } @catch (NSException *exception) {
+            reject(@"llama_cpp_error", exception.reason, nil);
+        }
+    });
+}
+
+RCT_EXPORT_METHOD(restoreState:(double)contextId
+                 withSnapshotId:(double)snapshotId
+                 withResolver:(RCTPromiseResolveBlock)resolve
+                 withRejecter:(RCTPromiseRejectBlock)reject)
+{
+    CactusContext *context = llamaContexts[[NSNumber numberWithDouble:contextId]];
+    if (context == nil) {
+        reject(@"llama_error", @"Context not found", nil);
+        return;
+    }
+    if ([context isPredicting]) {
+        reject(@"llama_error", @"Context is busy", nil);
+        return;
+    }
+    dispatch_async(llamaDQueue, ^{
+        @try {
+            @autoreleasepool {
+                resolve(@([context restoreState:(int)snapshotId]));
+            }
+        } @catch (NSException *exception) {
+            reject(@"llama_cpp_error", exception.reason, nil);
+        }
+    });
+}
+
+RCT_EXPORT_METHOD(releaseState:(double)contextId
+                 withSnapshotId:(double)snapshotId
+                 withResolver:(RCTPromiseResolveBlock)resolve
+                 withRejecter:(RCTPromiseRejectBlock)reject)
+{
+    CactusContext *context = llamaContexts[[NSNumber numberWithDouble:contextId]];
+    if (context == nil) {
+        reject(@"llama_error", @"Context not found", nil);
+        return;
+    }
+    dispatch_async(llamaDQueue, ^{
+        [context releaseState:(int)snapshotId];
+        resolve(nil);
+    });
+}
+
 - (NSArray *)supportedEvents {
   return@[
     @"@Cactus_onInitContextProgress",
@@ -293,6 +445,25 @@ RCT_EXPORT_METHOD(embedding:(double)contextId
     }
 }
 
+RCT_EXPORT_METHOD(embeddingBatch:(double)contextId
+                  texts:(NSArray *)texts
+                  params:(NSDictionary *)params
+                  withResolver:(RCTPromiseResolveBlock)resolve
+                  withRejecter:(RCTPromiseRejectBlock)reject)
+{
+    CactusContext *context = llamaContexts[[NSNumber numberWithDouble:contextId]];
+    if (context == nil) {
+        reject(@"llama_error", @"Context not found", nil);
+        return;
+    }
+    @try {
+        NSDictionary *embeddings = [context embeddingBatch:texts params:params];
+        resolve(embeddings);
+    } @catch (NSException *exception) {
+        reject(@"llama_cpp_error", exception.reason, nil);
+    }
+}
+
 RCT_EXPORT_METHOD(bench:(double)contextId
                   pp:(int)pp
                   tg:(int)tg
@@ -361,9 +532,23 @@ RCT_EXPORT_METHOD(getLoadedLoraAdapters:(double)contextId
     resolve([context getLoadedLoraAdapters]);
 }
 
+RCT_EXPORT_METHOD(getEmbeddingCacheStats:(double)contextId
+                 withResolver:(RCTPromiseResolveBlock)resolve
+                 withRejecter:(RCTPromiseRejectBlock)reject)
+{
+    CactusContext *context = llamaContexts[[NSNumber numberWithDouble:contextId]];
+    if (context == nil) {
+        reject(@"llama_error", @"Context not found", nil);
+        return;
+    }
+    // The embedding cache is only implemented on Android
+    resolve(@{ @"enabled": @NO });
+}
+
 RCT_EXPORT_METHOD(initMultimodal:(double)contextId
                  mmprojPath:(NSString *)mmprojPath
                  useGpu:(BOOL)useGpu
+                 mediaCacheMb:(double)mediaCacheMb
                  withResolver:(RCTPromiseResolveBlock)resolve
                  withRejecter:(RCTPromiseRejectBlock)reject)
 {
@@ -373,7 +558,7 @@ RCT_EXPORT_METHOD(initMultimodal:(double)contextId
         return;
     }
     @try {
-        BOOL result = [context initMultimodal:mmprojPath useGpu:useGpu];
+        BOOL result = [context initMultimodal:mmprojPath useGpu:useGpu mediaCacheMb:(int)mediaCacheMb];
         resolve(@(result));
     } @catch (NSException *exception) {
         reject(@"llama_cpp_error", exception.reason, nil);
@@ -12,6 +12,8 @@
     #import "cactus.h"
     #import "json-schema-to-grammar.h"
   #endif
+  #include <map>
+  #include <memory>
 #endif
 
 
@@ -23,12 +25,16 @@
     void (^onProgress)(unsigned int progress);
 
     cactus::cactus_context * llama;
+
+    std::map<int, std::unique_ptr<cactus::cactus_state_snapshot>> snapshots;
+    int next_snapshot_id;
 }
 
 + (void)toggleNativeLog:(BOOL)enabled onEmitLog:(void (^)(NSString *level, NSString *text))onEmitLog;
 + (NSDictionary *)modelInfo:(NSString *)path skip:(NSArray *)skip;
 + (instancetype)initWithParams:(NSDictionary *)params onProgress:(void (^)(unsigned int progress))onProgress;
 - (void)interruptLoad;
+- (BOOL)warmup:(void (^)(unsigned int progress))onProgress;
 - (bool)isMetalEnabled;
 - (NSString *)reasonNoMetal;
 - (NSDictionary *)modelInfo;
@@ -40,6 +46,7 @@
 - (NSArray *)tokenize:(NSString *)text withMediaPaths:(NSArray *)mediaPaths;
 - (NSString *)detokenize:(NSArray *)tokens;
 - (NSDictionary *)embedding:(NSString *)text params:(NSDictionary *)params;
+- (NSDictionary *)embeddingBatch:(NSArray *)texts params:(NSDictionary *)params;
 - (NSDictionary *)getFormattedChatWithJinja:(NSString *)messages
     withChatTemplate:(NSString *)chatTemplate
     withJsonSchema:(NSString *)jsonSchema
@@ -49,13 +56,19 @@
 - (NSString *)getFormattedChat:(NSString *)messages withChatTemplate:(NSString *)chatTemplate;
 - (NSDictionary *)loadSession:(NSString *)path;
 - (int)saveSession:(NSString *)path size:(int)size;
+- (NSDictionary *)prefillPrompt:(NSString *)prompt;
+- (int)checkpointSession:(NSString *)path;
+- (NSDictionary *)loadCheckpoint:(NSString *)path;
+- (NSDictionary *)snapshotState;
+- (int)restoreState:(int)snapshotId;
+- (void)releaseState:(int)snapshotId;
 - (NSString *)bench:(int)pp tg:(int)tg pl:(int)pl nr:(int)nr;
 - (void)applyLoraAdapters:(NSArray *)loraAdapters;
 - (void)removeLoraAdapters;
 - (NSArray *)getLoadedLoraAdapters;
 
 // New Multimodal Methods
-- (BOOL)initMultimodal:(NSString *)mmprojPath useGpu:(BOOL)useGpu;
+- (BOOL)initMultimodal:(NSString *)mmprojPath useGpu:(BOOL)useGpu mediaCacheMb:(int)mediaCacheMb;
 - (BOOL)isMultimodalEnabled;
 - (BOOL)isMultimodalSupportVision;
 - (BOOL)isMultimodalSupportAudio;
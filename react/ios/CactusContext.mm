@@ -78,6 +78,9 @@
         defaultParams.vocab_only = [params[@"vocab_only"] boolValue];
         defaultParams.warmup = false;
     }
+    if (params[@"background_warmup"] && [params[@"background_warmup"] boolValue]) {
+        defaultParams.warmup = false;
+    }
 
     NSString *modelPath = params[@"model"];
     BOOL isAsset = [params[@"is_model_asset"] boolValue];
@@ -223,6 +226,10 @@
         @throw [NSException exceptionWithName:@"LlamaException" reason:@"Embedding is not supported in encoder-decoder models" userInfo:nil];
     }
 
+    if (context->is_model_loaded && params[@"prefix_cache_mb"] && [params[@"prefix_cache_mb"] intValue] > 0) {
+        context->llama->enablePrefixCache((size_t) [params[@"prefix_cache_mb"] intValue] << 20);
+    }
+
     std::vector<common_adapter_lora_info> lora;
     if (params[@"lora"]) {
         common_adapter_lora_info la;
@@ -261,6 +268,22 @@
     llama->is_load_interrupted = true;
 }
 
+- (BOOL)warmup:(void (^)(unsigned int progress))onProgress {
+    __block int lastPercentage = -1;
+    bool warmedUp = llama->warmup([&](float progress) {
+        int percentage = (int) (100 * progress);
+        if (onProgress != nil && percentage > lastPercentage) {
+            lastPercentage = percentage;
+            onProgress(percentage);
+        }
+        return !llama->is_load_interrupted;
+    });
+    if (!warmedUp && onProgress != nil) {
+        onProgress(100);
+    }
+    return warmedUp;
+}
+
 - (bool)isMetalEnabled {
     return is_metal_enabled;
 }
@@ -775,6 +798,38 @@
     return resultDict;
 }
 
+- (NSDictionary *)embeddingBatch:(NSArray *)texts params:(NSDictionary *)params {
+    if (llama->params.embedding != true) {
+        @throw [NSException exceptionWithName:@"LlamaException" reason:@"Embedding is not enabled" userInfo:nil];
+    }
+
+    int embdNormalize = llama->params.embd_normalize;
+    if (params[@"embd_normalize"] && [params[@"embd_normalize"] isKindOfClass:[NSNumber class]]) {
+        embdNormalize = [params[@"embd_normalize"] intValue];
+    }
+
+    std::vector<std::string> textsVec;
+    for (NSString *text in texts) {
+        textsVec.push_back([text UTF8String]);
+    }
+
+    std::vector<float> result = llama->getEmbeddingBatch(textsVec, embdNormalize);
+    if (result.empty() && !textsVec.empty()) {
+        @throw [NSException exceptionWithName:@"LlamaException" reason:@"Failed to compute embeddings" userInfo:nil];
+    }
+
+    const int nEmbd = llama_model_n_embd(llama->model);
+    NSMutableArray *embeddings = [[NSMutableArray alloc] initWithCapacity:textsVec.size()];
+    for (size_t row = 0; row < textsVec.size(); row++) {
+        NSMutableArray *embedding = [[NSMutableArray alloc] initWithCapacity:nEmbd];
+        for (int col = 0; col < nEmbd; col++) {
+            [embedding addObject:@(result[row * nEmbd + col])];
+        }
+        [embeddings addObject:embedding];
+    }
+    return @{ @"embeddings": embeddings };
+}
+
 - (NSDictionary *)loadSession:(NSString *)path {
     if (!path || [path length] == 0) {
         @throw [NSException exceptionWithName:@"LlamaException" reason:@"Session path is empty" userInfo:nil];
@@ -783,12 +838,10 @@
         @throw [NSException exceptionWithName:@"LlamaException" reason:@"Session file does not exist" userInfo:nil];
     }
 
-    size_t n_token_count_out = 0;
-    llama->embd.resize(llama->params.n_ctx);
-    if (!llama_state_load_file(llama->ctx, [path UTF8String], llama->embd.data(), llama->embd.capacity(), &n_token_count_out)) {
+    int n_token_count_out = llama->loadSession([path UTF8String]);
+    if (n_token_count_out < 0) {
         @throw [NSException exceptionWithName:@"LlamaException" reason:@"Failed to load session" userInfo:nil];
     }
-    llama->embd.resize(n_token_count_out);
     const std::string text = cactus::tokens_to_str(llama->ctx, llama->embd.cbegin(), llama->embd.cend());
     return @{
         @"tokens_loaded": @(n_token_count_out),
@@ -809,6 +862,76 @@
     return session_tokens.size();
 }
 
+- (NSDictionary *)prefillPrompt:(NSString *)prompt {
+    int n_past = llama->prefillPrompt([prompt UTF8String]);
+    if (n_past < 0) {
+        @throw [NSException exceptionWithName:@"LlamaException" reason:@"Failed to prefill prompt" userInfo:nil];
+    }
+    return @{
+        @"cached": @NO,
+        @"tokens": @(n_past)
+    };
+}
+
+- (int)checkpointSession:(NSString *)path {
+    if (!path || [path length] == 0) {
+        @throw [NSException exceptionWithName:@"LlamaException" reason:@"Session path is empty" userInfo:nil];
+    }
+    int n_tokens = llama->checkpointSession([path UTF8String]);
+    if (n_tokens < 0) {
+        @throw [NSException exceptionWithName:@"LlamaException" reason:@"Failed to checkpoint session" userInfo:nil];
+    }
+    return n_tokens;
+}
+
+- (NSDictionary *)loadCheckpoint:(NSString *)path {
+    if (!path || [path length] == 0) {
+        @throw [NSException exceptionWithName:@"LlamaException" reason:@"Session path is empty" userInfo:nil];
+    }
+    if (![[NSFileManager defaultManager] fileExistsAtPath:path]) {
+        @throw [NSException exceptionWithName:@"LlamaException" reason:@"Session file does not exist" userInfo:nil];
+    }
+    int n_tokens = llama->restoreSession([path UTF8String]);
+    if (n_tokens < 0) {
+        @throw [NSException exceptionWithName:@"LlamaException" reason:@"Failed to load checkpoint" userInfo:nil];
+    }
+    const std::string text = cactus::tokens_to_str(llama->ctx, llama->embd.cbegin(), llama->embd.cend());
+    return @{
+        @"tokens_loaded": @(n_tokens),
+        @"prompt": [NSString stringWithUTF8String:text.c_str()]
+    };
+}
+
+- (NSDictionary *)snapshotState {
+    auto snapshot = std::make_unique<cactus::cactus_state_snapshot>();
+    if (!llama->snapshotState(*snapshot)) {
+        @throw [NSException exceptionWithName:@"LlamaException" reason:@"Failed to snapshot state" userInfo:nil];
+    }
+    int snapshotId = ++next_snapshot_id;
+    NSDictionary *result = @{
+        @"id": @(snapshotId),
+        @"tokens": @(snapshot->tokens.size()),
+        @"size": @(snapshot->state.size())
+    };
+    snapshots[snapshotId] = std::move(snapshot);
+    return result;
+}
+
+- (int)restoreState:(int)snapshotId {
+    auto it = snapshots.find(snapshotId);
+    if (it == snapshots.end()) {
+        @throw [NSException exceptionWithName:@"LlamaException" reason:@"Snapshot not found" userInfo:nil];
+    }
+    if (!llama->restoreState(*it->second)) {
+        @throw [NSException exceptionWithName:@"LlamaException" reason:@"Failed to restore state" userInfo:nil];
+    }
+    return (int) it->second->tokens.size();
+}
+
+- (void)releaseState:(int)snapshotId {
+    snapshots.erase(snapshotId);
+}
+
 - (NSString *)bench:(int)pp tg:(int)tg pl:(int)pl nr:(int)nr {
     return [NSString stringWithUTF8String:llama->bench(pp, tg, pl, nr).c_str()];
 }
@@ -848,8 +971,8 @@
 }
 
 // New Multimodal Methods
-- (BOOL)initMultimodal:(NSString *)mmprojPath useGpu:(BOOL)useGpu {
-    return llama->initMultimodal([mmprojPath UTF8String], useGpu);
+- (BOOL)initMultimodal:(NSString *)mmprojPath useGpu:(BOOL)useGpu mediaCacheMb:(int)mediaCacheMb {
+    return llama->initMultimodal([mmprojPath UTF8String], useGpu, (size_t) MAX(mediaCacheMb, 0) << 20);
 }
 
 - (BOOL)isMultimodalEnabled {
@@ -963,6 +1086,7 @@
 }
 
 - (void)invalidate {
+    snapshots.clear();
     delete llama;
     // llama_backend_free();
 }
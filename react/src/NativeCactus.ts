@@ -14,12 +14,38 @@ export type NativeContextParams = {
 
   reasoning_format?: string
 
+  /**
+   * Treat `model` as the name of a bundled asset. On Android the asset must be
+   * stored uncompressed (e.g. `noCompress 'gguf'`) at an offset aligned to the
+   * GGUF alignment of 32 bytes; it is then mapped in place from the APK instead
+   * of copied. AGP only aligns assets to 4 bytes, so re-align the APK with
+   * `zipalign -f 32` before signing it, otherwise initContext rejects the asset.
+   * A `model` of the form `asset:///name` implies this flag.
+   */
   is_model_asset?: boolean
+  /**
+   * Android only: load the model from `model_length` bytes at `model_offset`
+   * of this open file descriptor, which must stay open during initContext.
+   */
+  model_fd?: number
+  model_offset?: number
+  model_length?: number
   use_progress_callback?: boolean
 
   n_ctx?: number
   n_batch?: number
   n_ubatch?: number
+  /**
+   * Number of sequences decoded together when completions run concurrently (Currently only for Android).
+   * Each sequence gets n_ctx / n_parallel tokens of context. Ignored when `embedding` is set.
+   */
+  n_parallel?: number
+  /**
+   * Memory budget in MB for KV snapshots of previous prompts. A new prompt
+   * resumes from the longest snapshotted prefix instead of re-evaluating it.
+   * Disabled by default.
+   */
+  prefix_cache_mb?: number
 
   n_threads?: number
 
@@ -71,6 +97,20 @@ export type NativeContextParams = {
   // Embedding params
   embedding?: boolean
   embd_normalize?: number
+  /**
+   * Memory budget in MB for an LRU cache of embeddings keyed by text and
+   * normalization, so repeated texts skip the model. Android only.
+   * Disabled by default.
+   */
+  embedding_cache_mb?: number
+  /**
+   * Resolve initContext as soon as the model is loaded, then page in the
+   * weights at background priority so the first completion does not pay for
+   * page faults, and run a dummy decode once no other call is using the
+   * context. Calls made meanwhile do not wait for the page-in. Progress is
+   * reported after loading with the phase 'warmup'.
+   */
+  background_warmup?: boolean
 }
 
 export type NativeCompletionParams = {
@@ -215,6 +255,32 @@ export type NativeCompletionParams = {
   seed?: number
 
   emit_partial_completion: boolean
+  /**
+   * Coalesce streamed tokens into one event every N tokens. Android only. Default: `1`
+   */
+  emit_batch_tokens?: number
+  /**
+   * Coalesce streamed tokens into one event once this many milliseconds have passed since the first
+   * buffered token, whichever of this and `emit_batch_tokens` comes first. Android only. Default: `0` (disabled)
+   */
+  emit_batch_interval_ms?: number
+  /**
+   * Decode audio code tokens with the vocoder while the completion runs and emit PCM chunks.
+   * Requires `initVocoder`. Android only.
+   */
+  emit_audio_chunks?: boolean
+  /**
+   * Audio codes in the first emitted chunk; smaller means earlier audio. 75 codes make one second. Default: `16`
+   */
+  audio_first_chunk_codes?: number
+  /**
+   * Audio codes in each later chunk. Default: `48`
+   */
+  audio_chunk_codes?: number
+  /**
+   * Codes of context decoded on each side of a chunk and cross-faded with its neighbours. Default: `8`
+   */
+  audio_overlap_codes?: number
 }
 
 export type NativeCompletionTokenProbItem = {
@@ -289,6 +355,23 @@ export type NativeEmbeddingResult = {
   embedding: Array<number>
 }
 
+export type NativeEmbeddingBatchResult = {
+  /**
+   * One embedding per input text, in input order
+   */
+  embeddings: Array<Array<number>>
+}
+
+export type NativeEmbeddingCacheStats = {
+  enabled: boolean
+  hits?: number
+  misses?: number
+  entries?: number
+  /** Number of vectors that fit in the budget */
+  capacity?: number
+  bytes?: number
+}
+
 // New TTS/Audio types
 export type NativeTTSType = {
   type: number // TTS_UNKNOWN = -1, TTS_OUTETTS_V0_2 = 1, TTS_OUTETTS_V0_3 = 2
@@ -359,6 +442,19 @@ export type NativeSessionLoadResult = {
   prompt: string
 }
 
+export type NativePrefillResult = {
+  /** Whether the state was restored from a cached session file */
+  cached: boolean
+  tokens: number
+}
+
+export type NativeStateSnapshot = {
+  id: number
+  tokens: number
+  /** Bytes of native memory held until released */
+  size: number
+}
+
 export type NativeLlamaChatMessage = {
   role: string
   content: string
@@ -409,6 +505,15 @@ export interface Spec extends TurboModule {
     filepath: string,
     size: number,
   ): Promise<number>
+  prefillPrompt(contextId: number, prompt: string): Promise<NativePrefillResult>
+  checkpointSession(contextId: number, filepath: string): Promise<number>
+  loadCheckpoint(
+    contextId: number,
+    filepath: string,
+  ): Promise<NativeSessionLoadResult>
+  snapshotState(contextId: number): Promise<NativeStateSnapshot>
+  restoreState(contextId: number, snapshotId: number): Promise<number>
+  releaseState(contextId: number, snapshotId: number): Promise<void>
   completion(
     contextId: number,
     params: NativeCompletionParams,
@@ -427,6 +532,12 @@ export interface Spec extends TurboModule {
     text: string,
     params: NativeEmbeddingParams,
   ): Promise<NativeEmbeddingResult>
+  embeddingBatch(
+    contextId: number,
+    texts: string[],
+    params: NativeEmbeddingParams,
+  ): Promise<NativeEmbeddingBatchResult>
+  getEmbeddingCacheStats(contextId: number): Promise<NativeEmbeddingCacheStats>
   bench(
     contextId: number,
     pp: number,
@@ -449,6 +560,10 @@ export interface Spec extends TurboModule {
     contextId: number,
     mmprojPath: string,
     useGpu?: boolean,
+    /**
+     * Memory budget in MB for encoded image and audio chunks, so repeated media skips the encoder. 0 disables it. Default: 64
+     */
+    mediaCacheMb?: number,
   ): Promise<boolean>
   isMultimodalEnabled(contextId: number): Promise<boolean>
   isMultimodalSupportVision(contextId: number): Promise<boolean>
@@ -84,21 +84,20 @@ export class Agent {
         return
       }
       
-      const cachePromise = this.context.completion({
+      const cachePromise = this.context.prefillPrompt({
         messages: [systemMessage],
         jinja: true,
         tools: this.tools.getSchemas(),
-        n_predict: 1,
       })
       
       const timeoutPromise = new Promise<never>((_, reject) => {
         setTimeout(() => reject(new Error('System prompt caching timeout')), 30000)
       })
       
-      await Promise.race([cachePromise, timeoutPromise])
+      const { cached, tokens } = await Promise.race([cachePromise, timeoutPromise])
       
       this.systemPromptCached = true
-      Telemetry.info('System prompt cached successfully')
+      Telemetry.info(`System prompt ${cached ? 'restored' : 'cached'} (${tokens} tokens)`)
     } catch (error) {
       console.error('Failed to cache system prompt:', error)
       Telemetry.info('Continuing without system prompt cache - performance may be slower')
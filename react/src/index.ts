@@ -9,7 +9,11 @@ import type {
   NativeCompletionResult,
   NativeTokenizeResult,
   NativeEmbeddingResult,
+  NativeEmbeddingBatchResult,
+  NativeEmbeddingCacheStats,
   NativeSessionLoadResult,
+  NativeStateSnapshot,
+  NativePrefillResult,
   NativeEmbeddingParams,
   NativeCompletionTokenProbItem,
   NativeCompletionResultTimings,
@@ -38,7 +42,11 @@ export type {
   NativeCompletionResult,
   NativeTokenizeResult,
   NativeEmbeddingResult,
+  NativeEmbeddingBatchResult,
+  NativeEmbeddingCacheStats,
   NativeSessionLoadResult,
+  NativeStateSnapshot,
+  NativePrefillResult,
   NativeEmbeddingParams,
   NativeCompletionTokenProbItem,
   NativeCompletionResultTimings,
@@ -60,6 +68,7 @@ export * from './remote'
 const EVENT_ON_INIT_CONTEXT_PROGRESS = '@Cactus_onInitContextProgress'
 const EVENT_ON_TOKEN = '@Cactus_onToken'
 const EVENT_ON_NATIVE_LOG = '@Cactus_onNativeLog'
+const EVENT_ON_AUDIO_CHUNK = '@Cactus_onAudioChunk'
 
 let EventEmitter: NativeEventEmitter | DeviceEventEmitterStatic
 if (Platform.OS === 'ios') {
@@ -87,6 +96,10 @@ if (EventEmitter) {
 export type TokenData = {
   token: string
   completion_probabilities?: Array<NativeCompletionTokenProb>
+  /**
+   * Arrival time in epoch milliseconds of each token in a coalesced event
+   */
+  token_timestamps?: Array<number>
 }
 
 type TokenNativeEvent = {
@@ -94,6 +107,52 @@ type TokenNativeEvent = {
   tokenResult: TokenData
 }
 
+export type AudioChunkData = {
+  /** Mono float PCM */
+  samples: Float32Array
+  sampleRate: number
+  /** Set on the final chunk of the completion */
+  last: boolean
+}
+
+type AudioChunkNativeEvent = {
+  contextId: number
+  /** Base64 of little-endian float32 PCM */
+  pcm: string
+  sampleRate: number
+  last: boolean
+}
+
+const BASE64_ALPHABET =
+  'ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/'
+const BASE64_LOOKUP = new Uint8Array(128)
+for (let i = 0; i < BASE64_ALPHABET.length; i++) {
+  BASE64_LOOKUP[BASE64_ALPHABET.charCodeAt(i)] = i
+}
+
+const decodeFloat32Base64 = (data: string): Float32Array => {
+  let end = data.length
+  while (end > 0 && data[end - 1] === '=') end--
+  const bytes = new Uint8Array((end * 3) >> 2)
+  let bits = 0
+  let nbits = 0
+  let out = 0
+  for (let i = 0; i < end; i++) {
+    bits = (bits << 6) | BASE64_LOOKUP[data.charCodeAt(i)]!
+    nbits += 6
+    if (nbits >= 8) {
+      nbits -= 8
+      bytes[out++] = (bits >> nbits) & 0xff
+    }
+  }
+  const view = new DataView(bytes.buffer)
+  const samples = new Float32Array(bytes.length >> 2)
+  for (let i = 0; i < samples.length; i++) {
+    samples[i] = view.getFloat32(i * 4, true)
+  }
+  return samples
+}
+
 export type ContextParams = Omit<
   NativeContextParams,
   'cache_type_k' | 'cache_type_v' | 'pooling_type'
@@ -143,7 +202,7 @@ export type CompletionBaseParams = {
 }
 export type CompletionParams = Omit<
   NativeCompletionParams,
-  'emit_partial_completion' | 'prompt'
+  'emit_partial_completion' | 'emit_audio_chunks' | 'prompt'
 > &
   CompletionBaseParams
 
@@ -208,6 +267,69 @@ export class LlamaContext {
     return Cactus.saveSession(this.id, filepath, options?.tokenSize || -1)
   }
 
+  /**
+   * Evaluate a prompt into the KV cache without generating, so a following
+   * completion that starts with it only evaluates the rest. The state is kept
+   * in a size-capped cache of session files keyed by the model and prompt
+   * tokens (Android), and restored from there when the prompt was seen before.
+   */
+  async prefillPrompt(
+    params: Pick<
+      CompletionParams,
+      'prompt' | 'messages' | 'chat_template' | 'chatTemplate' | 'jinja' | 'tools'
+    >,
+  ): Promise<NativePrefillResult> {
+    let prompt = params.prompt || ''
+    if (params.messages) {
+      const formatted = await this.getFormattedChat(
+        params.messages,
+        params.chat_template || params.chatTemplate,
+        { jinja: params.jinja, tools: params.tools },
+      )
+      prompt = typeof formatted === 'string' ? formatted : formatted.prompt
+    }
+    return Cactus.prefillPrompt(this.id, prompt)
+  }
+
+  /**
+   * Append the KV state added since the last checkpoint of this file. The write
+   * happens in the background; the file is compacted when it grows too large.
+   * Returns the number of tokens in the checkpoint.
+   */
+  async checkpointSession(filepath: string): Promise<number> {
+    let path = filepath
+    if (path.startsWith('file://')) path = path.slice(7)
+    return Cactus.checkpointSession(this.id, path)
+  }
+
+  /**
+   * Load a file written by checkpointSession.
+   */
+  async loadCheckpoint(filepath: string): Promise<NativeSessionLoadResult> {
+    let path = filepath
+    if (path.startsWith('file://')) path = path.slice(7)
+    return Cactus.loadCheckpoint(this.id, path)
+  }
+
+  /**
+   * Copy the current KV state into native memory, e.g. to switch between
+   * conversations on one context. Release it with releaseState when done.
+   */
+  async snapshotState(): Promise<NativeStateSnapshot> {
+    return Cactus.snapshotState(this.id)
+  }
+
+  /**
+   * Restore a snapshot taken on this context. Returns the number of tokens restored.
+   */
+  async restoreState(snapshot: NativeStateSnapshot): Promise<number> {
+    return Cactus.restoreState(this.id, snapshot.id)
+  }
+
+  async releaseState(snapshot: NativeStateSnapshot): Promise<void> {
+    return Cactus.releaseState(this.id, snapshot.id)
+  }
+
   isLlamaChatSupported(): boolean {
     return !!this.model.chatTemplates.llamaChat
   }
@@ -310,14 +432,20 @@ export class LlamaContext {
     return result;
   }
 
+  /**
+   * With onAudioChunk set, audio tokens are turned into PCM by the vocoder
+   * while the completion runs (Android only).
+   */
   async completion(
     params: CompletionParams,
     callback?: (data: TokenData) => void,
+    onAudioChunk?: (chunk: AudioChunkData) => void,
   ): Promise<NativeCompletionResult> {
     const nativeParams = {
       ...params,
       prompt: params.prompt || '',
       emit_partial_completion: !!callback,
+      emit_audio_chunks: !!onAudioChunk,
     }
     if (params.messages) {
       // messages always win
@@ -376,6 +504,14 @@ export class LlamaContext {
         wrappedCallback(tokenResult)
       })
 
+    let audioListener: any =
+      onAudioChunk &&
+      EventEmitter.addListener(EVENT_ON_AUDIO_CHUNK, (evt: AudioChunkNativeEvent) => {
+        const { contextId, pcm, sampleRate, last } = evt
+        if (contextId !== this.id) return
+        onAudioChunk({ samples: decodeFloat32Base64(pcm), sampleRate, last })
+      })
+
     if (!nativeParams.prompt) throw new Error('Prompt is required')
 
     const promise = Cactus.completion(this.id, nativeParams)
@@ -389,11 +525,15 @@ export class LlamaContext {
         }, telemetryParams, deviceInfo);
         tokenListener?.remove()
         tokenListener = null
+        audioListener?.remove()
+        audioListener = null
         return completionResult
       })
       .catch((err: any) => {
         tokenListener?.remove()
         tokenListener = null
+        audioListener?.remove()
+        audioListener = null
         throw err
       })
   }
@@ -427,6 +567,17 @@ export class LlamaContext {
     
   }
 
+  embeddingBatch(
+    texts: string[],
+    params?: EmbeddingParams,
+  ): Promise<NativeEmbeddingBatchResult> {
+    return Cactus.embeddingBatch(this.id, texts, params || {})
+  }
+
+  getEmbeddingCacheStats(): Promise<NativeEmbeddingCacheStats> {
+    return Cactus.getEmbeddingCacheStats(this.id)
+  }
+
   async bench(
     pp: number,
     tg: number,
@@ -533,7 +684,7 @@ export async function initLlama(
     lora_list: loraList,
     ...rest
   }: ContextParams,
-  onProgress?: (progress: number) => void,
+  onProgress?: (progress: number, phase?: 'load' | 'warmup') => void,
 ): Promise<LlamaContext> {
   let path = model
   if (path.startsWith('file://')) path = path.slice(7)
@@ -557,13 +708,15 @@ export async function initLlama(
 
   let removeProgressListener: any = null
   if (onProgress) {
-    removeProgressListener = EventEmitter.addListener(
+    const listener = EventEmitter.addListener(
       EVENT_ON_INIT_CONTEXT_PROGRESS,
-      (evt: { contextId: number; progress: number }) => {
+      (evt: { contextId: number; progress: number; phase?: 'load' | 'warmup' }) => {
         if (evt.contextId !== contextId) return
-        onProgress(evt.progress)
+        onProgress(evt.progress, evt.phase)
+        if (evt.phase === 'warmup' && evt.progress >= 100) listener.remove()
       },
     )
+    removeProgressListener = listener
   }
 
   const poolType = poolTypeMap[poolingType as keyof typeof poolTypeMap]
@@ -584,7 +737,8 @@ export async function initLlama(
     removeProgressListener?.remove()
     throw err
   })
-  removeProgressListener?.remove()
+  // A background warmup keeps reporting after initContext resolves
+  if (!rest.background_warmup) removeProgressListener?.remove()
   return new LlamaContext({
     contextId,
     gpu,
@@ -602,8 +756,8 @@ export const initContext = async (params: NativeContextParams) => {
   return await Cactus.initContext(contextIdCounter++, params);
 };
 
-export const initMultimodal = async (contextId: number, mmprojPath: string, useGpu: boolean = false) => {
-  return await Cactus.initMultimodal(contextId, mmprojPath, useGpu);
+export const initMultimodal = async (contextId: number, mmprojPath: string, useGpu: boolean = false, mediaCacheMb: number = 64) => {
+  return await Cactus.initMultimodal(contextId, mmprojPath, useGpu, mediaCacheMb);
 };
 
 export const isMultimodalEnabled = async (contextId: number) => {
@@ -5,7 +5,12 @@ import {
   decodeAudioTokens,
   releaseVocoder,
 } from './index'
-import type { NativeAudioDecodeResult } from './index'
+import type {
+  AudioChunkData,
+  CompletionParams,
+  NativeAudioDecodeResult,
+  NativeCompletionResult,
+} from './index'
 
 export class CactusTTS {
   private context: LlamaContext
@@ -39,6 +44,29 @@ export class CactusTTS {
     return decodeAudioTokens(this.context.id, tokens)
   }
 
+  /**
+   * Generates speech with the context's model and hands PCM to onAudioChunk as
+   * the vocoder decodes it, so playback can start before generation ends.
+   * Android only.
+   */
+  async generateStream(
+    textToSpeak: string,
+    speakerJsonStr: string,
+    onAudioChunk: (chunk: AudioChunkData) => void,
+    params?: Omit<CompletionParams, 'prompt' | 'messages'>,
+  ): Promise<NativeCompletionResult> {
+    const { formatted_prompt } = await getFormattedAudioCompletion(
+      this.context.id,
+      speakerJsonStr,
+      textToSpeak,
+    )
+    return this.context.completion(
+      { n_predict: 4096, temperature: 0.4, ...params, prompt: formatted_prompt },
+      undefined,
+      onAudioChunk,
+    )
+  }
+
   async release(): Promise<void> {
     return releaseVocoder(this.context.id)
   }